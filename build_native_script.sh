@@ -0,0 +1,5 @@
+docker stop pubsubdemo-native-docker || true
+docker rm pubsubdemo-native-docker || true
+docker rmi pubsubdemo-native-docker || true
+docker build -f Dockerfile.native -t pubsubdemo-native-docker:latest .
+docker run -p 8091:8091 -d --name pubsubdemo-native-docker pubsubdemo-native-docker
@@ -0,0 +1,16 @@
+# Starts the JVM image (pubsubdemo-docker) and the native image
+# (pubsubdemo-native-docker) one after the other and prints, for each, the
+# startup time reported by Spring Boot and the container's memory usage once
+# it is up. Build both images first with build_script.sh and
+# build_native_script.sh.
+for image in pubsubdemo-docker pubsubdemo-native-docker; do
+    docker rm -f pubsubdemo-compare > /dev/null 2>&1 || true
+    docker run -d --name pubsubdemo-compare $image > /dev/null
+    until docker logs pubsubdemo-compare 2>&1 | grep -q "Started PubsubdemoApplication"; do
+        sleep 0.2
+    done
+    startup=$(docker logs pubsubdemo-compare 2>&1 | grep -o "Started PubsubdemoApplication in [0-9.]* seconds")
+    memory=$(docker stats --no-stream --format "{{.MemUsage}}" pubsubdemo-compare)
+    echo "$image: $startup, memory $memory"
+    docker rm -f pubsubdemo-compare > /dev/null
+done
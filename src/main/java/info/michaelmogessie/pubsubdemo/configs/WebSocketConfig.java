@@ -1,11 +1,19 @@
 package info.michaelmogessie.pubsubdemo.configs;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
+import info.michaelmogessie.pubsubdemo.handlers.Coalescer;
+import info.michaelmogessie.pubsubdemo.handlers.DispatchPools;
+import info.michaelmogessie.pubsubdemo.handlers.Heartbeat;
+import info.michaelmogessie.pubsubdemo.handlers.IdempotencyCache;
+import info.michaelmogessie.pubsubdemo.handlers.ParallelFanOut;
+import info.michaelmogessie.pubsubdemo.handlers.PublisherWebSocketHandler;
+import info.michaelmogessie.pubsubdemo.handlers.SubscriberGroup;
 import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
 
 /**
@@ -17,13 +25,37 @@ import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
 public class WebSocketConfig implements WebSocketConfigurer {
     @Autowired
     private WebSocketHandler webSocketHandler;
+    @Autowired
+    private PublisherWebSocketHandler publisherWebSocketHandler;
+    @Autowired
+    private Coalescer coalescer;
+    @Autowired
+    private ParallelFanOut parallelFanOut;
+    @Autowired
+    private IdempotencyCache idempotencyCache;
+    @Autowired
+    private Heartbeat heartbeat;
+    @Autowired
+    private DispatchPools dispatchPools;
+    @Value("${subscription.group.balancing}")
+    private String groupBalancing;
 
     /**
-     * Adds a websocket handler to the websocket handler registry.
+     * Adds the subscriber and publisher websocket handlers to the websocket handler
+     * registry, and hands the coalescer, the parallel fan-out, the idempotency
+     * cache, the group balancing setting, the heartbeat and the dispatch pools to
+     * the subscriber handler.
      */
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        WebSocketHandler.setCoalescer(coalescer);
+        WebSocketHandler.setParallelFanOut(parallelFanOut);
+        WebSocketHandler.setIdempotencyCache(idempotencyCache);
+        WebSocketHandler.setGroupBalancing(SubscriberGroup.Balancing.parse(groupBalancing));
+        WebSocketHandler.setHeartbeat(heartbeat);
+        WebSocketHandler.setDispatchPools(dispatchPools);
         registry.addHandler(webSocketHandler, "/start").setAllowedOrigins("*");
+        registry.addHandler(publisherWebSocketHandler, "/publish").setAllowedOrigins("*");
         new Thread(webSocketHandler).start();
     }
 }
@@ -1,14 +1,35 @@
 package info.michaelmogessie.pubsubdemo.controllers;
 
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.excpetions.RateLimitExceededException;
 import info.michaelmogessie.pubsubdemo.excpetions.TopicNotFoundException;
 import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
-import info.michaelmogessie.pubsubdemo.pojos.Message;
+import info.michaelmogessie.pubsubdemo.controllers.PublishRequestReader.PublishRequest;
+import info.michaelmogessie.pubsubdemo.limits.LoadShedder;
+import info.michaelmogessie.pubsubdemo.limits.RateLimiter;
+import info.michaelmogessie.pubsubdemo.receipts.AsyncPublisher;
+import info.michaelmogessie.pubsubdemo.receipts.DeliveryReceipt;
+import info.michaelmogessie.pubsubdemo.receipts.ReceiptStore;
+import info.michaelmogessie.pubsubdemo.scheduling.ScheduledPublisher;
 
 /**
  * Controller class with resources that manage message publishing.
@@ -17,24 +38,108 @@ import info.michaelmogessie.pubsubdemo.pojos.Message;
 @CrossOrigin()
 public class MessageController {
 
+    private final RateLimiter rateLimiter;
+    private final LoadShedder loadShedder;
+    private final ScheduledPublisher scheduledPublisher;
+    private final AsyncPublisher asyncPublisher;
+    private final ReceiptStore receiptStore;
+    private final PublishRequestReader publishRequestReader;
+
+    public MessageController(RateLimiter rateLimiter, LoadShedder loadShedder,
+            ScheduledPublisher scheduledPublisher, AsyncPublisher asyncPublisher, ReceiptStore receiptStore,
+            ObjectMapper objectMapper) {
+        this.rateLimiter = rateLimiter;
+        this.loadShedder = loadShedder;
+        this.scheduledPublisher = scheduledPublisher;
+        this.asyncPublisher = asyncPublisher;
+        this.receiptStore = receiptStore;
+        this.publishRequestReader = new PublishRequestReader(objectMapper.getFactory());
+    }
+
     /**
      * This controller resource is used to post a message by the message publisher.
      * This controller resource receives a message posted by a publisher and relays
      * it to the websocket handler, which will send it to clients subscribed to the
-     * particular topic included inside the message.
+     * particular topic included inside the message. Publishers that exceed their
+     * own or the topic's rate limit are turned away with a 429 response that says
+     * when to retry. While subscribers cannot keep up, publishers are turned away
+     * with a 429 response if the topic is overloaded or a 503 response if the whole
+     * service is, again saying when to retry.
+     * A message with a deliverAt or delay in the future is held until then and
+     * answered with a 202 response. It is turned away with a 503 response if the
+     * messages already waiting take their whole budget.
+     * With async=true the message is published in the background and answered
+     * right away with a 202 response carrying its id, and a Location header
+     * pointing at its receipt. It is turned away with a 503 response if too many
+     * messages are already waiting to be published.
+     * The message is read from the raw bytes of the request rather than bound to a
+     * Message, so that its body is handed on without being decoded and encoded
+     * again.
      * 
-     * @param message The message that is published.
+     * @param body    The JSON of the message that is published.
+     * @param async   Whether to publish the message in the background.
+     * @param request The HTTP request, used to identify the publisher.
      * @return An HTTP response.
      */
     @PostMapping("/topics")
-    ResponseEntity<?> publishMesssage(@RequestBody Message message) {
+    ResponseEntity<?> publishMesssage(@RequestBody byte[] body,
+            @RequestParam(name = "async", defaultValue = "false") boolean async, HttpServletRequest request) {
 
         try {
-            WebSocketHandler.publish(message);
+            PublishRequest message = publishRequestReader.read(body);
+            String publisher = request.getHeader(rateLimiter.getPublisherHeader());
+            rateLimiter.acquire(message.getTopic(), publisher != null ? publisher : request.getRemoteAddr());
+            if (message.getDeliverAt() > System.currentTimeMillis()) {
+                try {
+                    scheduledPublisher.schedule(message.getTopic(), message.getPayload(),
+                            message.getIdempotencyKey(), message.getDeliverAt());
+                } catch (IllegalArgumentException e) {
+                    return ResponseEntity.badRequest().body("Unable to schedule message. " + e.getMessage() + ".");
+                }
+                return ResponseEntity.accepted().build();
+            }
+            loadShedder.check(message.getTopic());
+            if (async) {
+                DeliveryReceipt receipt = asyncPublisher.publish(message.getTopic(), message.getPayload(),
+                        message.getIdempotencyKey());
+                return ResponseEntity.accepted().location(URI.create("/receipts/" + receipt.getId()))
+                        .body(Collections.singletonMap("id", receipt.getId()));
+            }
+            WebSocketHandler.publish(message.getTopic(), message.getPayload(), message.getIdempotencyKey());
             return ResponseEntity.ok().build();
+        } catch (IOException e) {
+            return ResponseEntity.badRequest().body("Unable to publish message, payload is invalid.");
         } catch (TopicNotFoundException e) {
             return ResponseEntity.badRequest().body("Unable to publish message, topic not found.");
+        } catch (RateLimitExceededException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body("Unable to publish message, rate limit exceeded.");
+        } catch (OverloadedException e) {
+            return ResponseEntity
+                    .status(e.isServiceWide() ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body("Unable to publish message, service overloaded.");
+        }
+    }
+
+    /**
+     * This controller resource is used by a publisher to look up what became of a
+     * message it published asynchronously: whether it has been published yet, and
+     * to how many subscribers it was handed, sent, failed to be sent and kept
+     * while they were offline. Receipts are only kept for a while.
+     * 
+     * @param id The id of the message, as returned when it was published.
+     * @return An HTTP response with the receipt, or a 404 response if there is
+     *         none.
+     */
+    @GetMapping("/receipts/{id}")
+    ResponseEntity<?> getReceipt(@PathVariable long id) {
+        DeliveryReceipt receipt = receiptStore.get(id);
+        if (receipt == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No receipt found for message " + id + ".");
         }
+        return ResponseEntity.ok(receipt);
     }
 
 }
@@ -0,0 +1,154 @@
+package info.michaelmogessie.pubsubdemo.controllers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads the JSON of a publish request straight from the bytes of the request
+ * body, without binding it to a {@link info.michaelmogessie.pubsubdemo.pojos.Message}.
+ *
+ * The request is stream-parsed only for its topic, idempotency key and the
+ * time to publish it at, given either as deliverAt (milliseconds since the
+ * epoch) or as delay (milliseconds from now). The body
+ * of the message is not decoded: when it is a JSON string without escape
+ * sequences, which is the common case, its bytes in the request already are
+ * its UTF-8 encoding and are copied out as they are. Only bodies with escape
+ * sequences, bodies that are not strings and requests that are not UTF-8
+ * encoded are decoded by the parser and encoded again.
+ */
+public class PublishRequestReader {
+    private static final String FIELD_TOPIC = "topic";
+    private static final String FIELD_BODY = "body";
+    private static final String FIELD_IDEMPOTENCY_KEY = "idempotencyKey";
+    private static final String FIELD_DELIVER_AT = "deliverAt";
+    private static final String FIELD_DELAY = "delay";
+
+    private final JsonFactory jsonFactory;
+
+    public PublishRequestReader(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Reads a publish request.
+     *
+     * @param request The bytes of the request body.
+     * @return The request.
+     * @throws IOException This exception is thrown if the request is not a JSON
+     *                     object with a body, or has both a deliverAt and a
+     *                     delay.
+     */
+    public PublishRequest read(byte[] request) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(request)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a JSON object");
+            }
+            String topic = null;
+            String idempotencyKey = null;
+            byte[] payload = null;
+            Long deliverAt = null;
+            Long delay = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                if (FIELD_BODY.equals(field) && value.isScalarValue()) {
+                    payload = readPayload(parser, request, value);
+                } else if (FIELD_TOPIC.equals(field) && value.isScalarValue()) {
+                    topic = parser.getText();
+                } else if (FIELD_IDEMPOTENCY_KEY.equals(field) && value.isScalarValue()) {
+                    idempotencyKey = parser.getText();
+                } else if (FIELD_DELIVER_AT.equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    deliverAt = parser.getLongValue();
+                } else if (FIELD_DELAY.equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    delay = parser.getLongValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                throw new JsonParseException(parser, "Unexpected end of the JSON object");
+            }
+            if (payload == null) {
+                throw new JsonParseException(parser, "The message has no body");
+            }
+            if (deliverAt != null && delay != null) {
+                throw new JsonParseException(parser, "The message has both a deliverAt and a delay");
+            }
+            if (delay != null && delay < 0) {
+                throw new JsonParseException(parser, "The delay is negative");
+            }
+            long publishAt = delay != null ? System.currentTimeMillis() + delay : deliverAt != null ? deliverAt : 0;
+            return new PublishRequest(topic, payload, idempotencyKey, publishAt);
+        }
+    }
+
+    /**
+     * Returns the UTF-8 encoded text of the body, taken from the request as it is
+     * when possible. The parser must be at the body's value.
+     */
+    private static byte[] readPayload(JsonParser parser, byte[] request, JsonToken value) throws IOException {
+        long quote = parser.getTokenLocation().getByteOffset();
+        if (value != JsonToken.VALUE_STRING || quote < 0 || quote >= request.length || request[(int) quote] != '"') {
+            return parser.getText().getBytes(StandardCharsets.UTF_8);
+        }
+        int start = (int) quote + 1;
+        for (int i = start; i < request.length; i++) {
+            if (request[i] == '"') {
+                return Arrays.copyOfRange(request, start, i);
+            }
+            if (request[i] == '\\') {
+                return parser.getText().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        throw new JsonParseException(parser, "Unterminated string");
+    }
+
+    /**
+     * A publish request as read from its JSON.
+     */
+    public static class PublishRequest {
+        private final String topic;
+        private final byte[] payload;
+        private final String idempotencyKey;
+        private final long deliverAt;
+
+        public PublishRequest(String topic, byte[] payload, String idempotencyKey, long deliverAt) {
+            this.topic = topic;
+            this.payload = payload;
+            this.idempotencyKey = idempotencyKey;
+            this.deliverAt = deliverAt;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        /**
+         * @return The UTF-8 encoded body of the message.
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
+
+        /**
+         * @return When to publish the message, in milliseconds since the epoch, or 0
+         *         to publish it right away.
+         */
+        public long getDeliverAt() {
+            return deliverAt;
+        }
+    }
+}
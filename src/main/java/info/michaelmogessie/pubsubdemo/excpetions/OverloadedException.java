@@ -0,0 +1,26 @@
+package info.michaelmogessie.pubsubdemo.excpetions;
+
+public class OverloadedException extends Exception {
+    private static final String MESSAGE = "SERVICE OVERLOADED";
+    private final long retryAfterSeconds;
+    // Whether the whole service is overloaded rather than just the topic.
+    private final boolean serviceWide;
+
+    public OverloadedException(long retryAfterSeconds, boolean serviceWide) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.serviceWide = serviceWide;
+    }
+
+    @Override
+    public String getMessage() {
+        return MESSAGE;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public boolean isServiceWide() {
+        return serviceWide;
+    }
+}
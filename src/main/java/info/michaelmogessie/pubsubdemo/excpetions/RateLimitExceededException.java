@@ -0,0 +1,19 @@
+package info.michaelmogessie.pubsubdemo.excpetions;
+
+public class RateLimitExceededException extends Exception {
+    private static final String MESSAGE = "RATE LIMIT EXCEEDED";
+    private final long retryAfterSeconds;
+
+    public RateLimitExceededException(long retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    public String getMessage() {
+        return MESSAGE;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,173 @@
+package info.michaelmogessie.pubsubdemo.flightrecorder;
+
+/**
+ * Records what the service does in Java Flight Recorder events, so a latency
+ * spike can be traced back to the publishes, failed sends, redeliveries and
+ * housekeeping runs around it. Each event type is turned on and off on its own
+ * in the recording settings, as in the bundled pubsub.jfc, and costs next to
+ * nothing while it is off or no recording is running.
+ *
+ * The events are only used when the runtime has Flight Recorder: Java 8
+ * runtimes before 8u262 and native images built without it do not, and every
+ * method here then does nothing. Callers hold the events that span some work
+ * as plain objects, so that they never load the event classes themselves; the
+ * objects are null when nothing is recorded.
+ */
+public final class FlightRecorderEvents {
+    static final String PREFIX = "info.michaelmogessie.pubsubdemo.";
+    static final String CATEGORY = "Pubsub";
+
+    private static final boolean AVAILABLE = isAvailable();
+
+    private FlightRecorderEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts the event of a publish.
+     *
+     * @return The event to pass to {@link #publishFinished}, or null if it is not
+     *         recorded.
+     */
+    public static Object publishStarted() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        PublishEvent event = new PublishEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event of a publish and records it.
+     *
+     * @param event        The event returned by {@link #publishStarted}.
+     * @param topic        The topic the message was published to.
+     * @param subscribers  How many subscribers and groups it was handed to.
+     * @param payloadBytes The size of the message.
+     */
+    public static void publishFinished(Object event, String topic, int subscribers, int payloadBytes) {
+        if (event == null) {
+            return;
+        }
+        PublishEvent publishEvent = (PublishEvent) event;
+        publishEvent.end();
+        if (publishEvent.shouldCommit()) {
+            publishEvent.topic = topic;
+            publishEvent.subscribers = subscribers;
+            publishEvent.payloadBytes = payloadBytes;
+            publishEvent.commit();
+        }
+    }
+
+    /**
+     * Records that a message could not be sent to a client.
+     *
+     * @param clientId     The ID of the client.
+     * @param payloadBytes The size of the message.
+     */
+    public static void sendFailed(String clientId, int payloadBytes) {
+        if (!AVAILABLE) {
+            return;
+        }
+        SendFailedEvent event = new SendFailedEvent();
+        if (event.shouldCommit()) {
+            event.clientId = clientId;
+            event.payloadBytes = payloadBytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts the event of a pass over the unreceived messages for a client.
+     *
+     * @return The event to pass to {@link #redeliveryFinished}, or null if it is
+     *         not recorded.
+     */
+    public static Object redeliveryStarted() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        RedeliveryEvent event = new RedeliveryEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event of a pass over the unreceived messages and records it.
+     *
+     * @param event         The event returned by {@link #redeliveryStarted}.
+     * @param clientId      The ID of the client.
+     * @param messages      How many messages were sent to the client.
+     * @param lockWaitNanos How long the pass waited for the lock on the
+     *                      unreceived messages (nanoseconds).
+     */
+    public static void redeliveryFinished(Object event, String clientId, int messages, long lockWaitNanos) {
+        if (event == null) {
+            return;
+        }
+        RedeliveryEvent redeliveryEvent = (RedeliveryEvent) event;
+        redeliveryEvent.end();
+        if (redeliveryEvent.shouldCommit()) {
+            redeliveryEvent.clientId = clientId;
+            redeliveryEvent.messages = messages;
+            redeliveryEvent.lockWaitNanos = lockWaitNanos;
+            redeliveryEvent.commit();
+        }
+    }
+
+    /**
+     * Starts the event of a housekeeping run.
+     *
+     * @return The event to pass to {@link #housekeepingFinished}, or null if it is
+     *         not recorded.
+     */
+    public static Object housekeepingStarted() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        HousekeepingEvent event = new HousekeepingEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event of a housekeeping run and records it.
+     *
+     * @param event                   The event returned by
+     *                                {@link #housekeepingStarted}.
+     * @param scanned                 How many unreceived messages were looked at.
+     * @param removed                 How many of them were removed.
+     * @param dormantClientsForgotten How many dormant clients were forgotten.
+     */
+    public static void housekeepingFinished(Object event, int scanned, int removed, int dormantClientsForgotten) {
+        if (event == null) {
+            return;
+        }
+        HousekeepingEvent housekeepingEvent = (HousekeepingEvent) event;
+        housekeepingEvent.end();
+        if (housekeepingEvent.shouldCommit()) {
+            housekeepingEvent.scanned = scanned;
+            housekeepingEvent.removed = removed;
+            housekeepingEvent.dormantClientsForgotten = dormantClientsForgotten;
+            housekeepingEvent.commit();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package info.michaelmogessie.pubsubdemo.flightrecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded for every run of the housekeeping thread.
+ */
+@Name(FlightRecorderEvents.PREFIX + "Housekeeping")
+@Label("Housekeeping")
+@Category(FlightRecorderEvents.CATEGORY)
+@Description("A pass removing expired and received unreceived messages and expired dormant clients")
+@StackTrace(false)
+class HousekeepingEvent extends jdk.jfr.Event {
+    @Label("Messages Scanned")
+    int scanned;
+
+    @Label("Messages Removed")
+    int removed;
+
+    @Label("Dormant Clients Forgotten")
+    int dormantClientsForgotten;
+}
@@ -0,0 +1,30 @@
+package info.michaelmogessie.pubsubdemo.flightrecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded for every message published to a topic, lasting from the moment the
+ * message is accepted until it has been handed to all subscribers.
+ */
+@Name(FlightRecorderEvents.PREFIX + "Publish")
+@Label("Publish")
+@Category(FlightRecorderEvents.CATEGORY)
+@Description("A message sent to the subscribers of a topic")
+@StackTrace(false)
+class PublishEvent extends jdk.jfr.Event {
+    @Label("Topic")
+    String topic;
+
+    @Label("Subscribers")
+    @Description("Subscribers and subscriber groups the message was handed to")
+    int subscribers;
+
+    @Label("Payload Size")
+    @DataAmount
+    int payloadBytes;
+}
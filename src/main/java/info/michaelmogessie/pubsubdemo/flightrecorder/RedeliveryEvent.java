@@ -0,0 +1,29 @@
+package info.michaelmogessie.pubsubdemo.flightrecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded for every pass over the unreceived messages made for a client that
+ * has reconnected, lasting from the moment it waits for the lock on them.
+ */
+@Name(FlightRecorderEvents.PREFIX + "Redelivery")
+@Label("Redelivery")
+@Category(FlightRecorderEvents.CATEGORY)
+@Description("Unreceived messages sent to a client that has reconnected")
+@StackTrace(false)
+class RedeliveryEvent extends jdk.jfr.Event {
+    @Label("Client")
+    String clientId;
+
+    @Label("Messages")
+    int messages;
+
+    @Label("Lock Wait Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long lockWaitNanos;
+}
@@ -0,0 +1,26 @@
+package info.michaelmogessie.pubsubdemo.flightrecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded when a message could not be sent to a subscriber and is kept as an
+ * unreceived message instead.
+ */
+@Name(FlightRecorderEvents.PREFIX + "SendFailed")
+@Label("Send Failed")
+@Category(FlightRecorderEvents.CATEGORY)
+@Description("A message that could not be sent to a subscriber")
+@StackTrace(false)
+class SendFailedEvent extends jdk.jfr.Event {
+    @Label("Client")
+    String clientId;
+
+    @Label("Payload Size")
+    @DataAmount
+    int payloadBytes;
+}
@@ -0,0 +1,156 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Keeps track of how much memory the unreceived messages take, in total and
+ * for each client, against two budgets. A message counts towards the total
+ * once and towards each client that has not received it. Either budget is
+ * turned off by setting it to 0.
+ *
+ * The websocket handler evicts the oldest unreceived messages when a budget is
+ * exceeded. Evictions are counted in the pubsub.backlog.evicted metric, tagged
+ * with the budget that caused them, and the total is published as the
+ * pubsub.backlog.bytes gauge. The bytes of each client are kept in an array
+ * indexed by the client's int ID.
+ *
+ * This class is not thread-safe; the handler only uses it while holding the
+ * lock on its unreceived messages.
+ */
+public class BacklogBudget {
+    private static final String METRIC_EVICTED = "pubsub.backlog.evicted";
+    private static final String METRIC_BYTES = "pubsub.backlog.bytes";
+    private static final String SCOPE_GLOBAL = "global";
+    private static final String SCOPE_CLIENT = "client";
+    // The memory a kept message takes besides its text: the message object, its
+    // map entry and the list of clients.
+    private static final long MESSAGE_OVERHEAD_BYTES = 128;
+    // The memory each client adds to a kept message's list of clients.
+    private static final long CLIENT_OVERHEAD_BYTES = 8;
+
+    // The gauge reads the budget that was created last, since the handler
+    // replaces its budget when it is constructed again.
+    private static final AtomicLong currentBytes = new AtomicLong();
+
+    static {
+        Gauge.builder(METRIC_BYTES, currentBytes, AtomicLong::get).baseUnit("bytes").register(Metrics.globalRegistry);
+    }
+
+    private final long globalBudgetBytes;
+    private final long clientBudgetBytes;
+    private final ClientIds clientIds;
+    private long[] clientBytes = new long[64];
+    private final Counter globalEvictions = Metrics.counter(METRIC_EVICTED, "budget", SCOPE_GLOBAL);
+    private final Counter clientEvictions = Metrics.counter(METRIC_EVICTED, "budget", SCOPE_CLIENT);
+    private long totalBytes;
+    private long evictedMessages;
+
+    /**
+     * @param globalBudgetBytes How many bytes all unreceived messages may take
+     *                          together, or 0 for no limit.
+     * @param clientBudgetBytes How many bytes the messages one client has not
+     *                          received may take, or 0 for no limit.
+     * @param clientIds         The IDs of the clients.
+     */
+    BacklogBudget(long globalBudgetBytes, long clientBudgetBytes, ClientIds clientIds) {
+        this.globalBudgetBytes = globalBudgetBytes;
+        this.clientBudgetBytes = clientBudgetBytes;
+        this.clientIds = clientIds;
+        currentBytes.set(0);
+    }
+
+    /**
+     * Estimates the memory a kept message takes, on and off the heap. The text is
+     * counted at its UTF-8 encoded length.
+     *
+     * @param publishedMessage The message.
+     * @return The estimated size in bytes.
+     */
+    public static long sizeOf(PublishedMessage publishedMessage) {
+        return MESSAGE_OVERHEAD_BYTES + publishedMessage.getPayloadLength();
+    }
+
+    void messageAdded(PublishedMessage publishedMessage) {
+        addTotal(sizeOf(publishedMessage));
+    }
+
+    void messageRemoved(PublishedMessage publishedMessage, ClientIdSet ids) {
+        addTotal(-sizeOf(publishedMessage));
+        ids.forEach(id -> clientRemoved(publishedMessage, id));
+    }
+
+    void clientAdded(PublishedMessage publishedMessage, int id) {
+        if (id >= clientBytes.length) {
+            clientBytes = Arrays.copyOf(clientBytes, Math.max(id + 1, clientBytes.length * 2));
+        }
+        clientBytes[id] += sizeOf(publishedMessage);
+        addTotal(CLIENT_OVERHEAD_BYTES);
+    }
+
+    void clientRemoved(PublishedMessage publishedMessage, int id) {
+        clientBytes[id] = Math.max(0, clientBytes[id] - sizeOf(publishedMessage));
+        addTotal(-CLIENT_OVERHEAD_BYTES);
+    }
+
+    private void addTotal(long bytes) {
+        totalBytes += bytes;
+        currentBytes.set(totalBytes);
+    }
+
+    /**
+     * Tells whether a client's unreceived messages would fit its budget if a
+     * message of the given size were added.
+     */
+    boolean fitsClient(int id, long bytes) {
+        return clientBudgetBytes <= 0 || getClientBytes(id) + bytes <= clientBudgetBytes;
+    }
+
+    boolean isOverGlobal() {
+        return globalBudgetBytes > 0 && totalBytes > globalBudgetBytes;
+    }
+
+    void evictedForGlobal() {
+        evictedMessages++;
+        globalEvictions.increment();
+    }
+
+    void evictedForClient() {
+        evictedMessages++;
+        clientEvictions.increment();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return How many bytes the unreceived messages take in total, as last
+     *         published to the gauge. Unlike {@link #getTotalBytes} it can be read
+     *         without holding the lock on the unreceived messages.
+     */
+    public static long getCurrentBytes() {
+        return currentBytes.get();
+    }
+
+    public long getClientBytes(String clientId) {
+        return getClientBytes(clientIds.get(clientId));
+    }
+
+    private long getClientBytes(int id) {
+        return id >= 0 && id < clientBytes.length ? clientBytes[id] : 0;
+    }
+
+    /**
+     * @return How many times a message has been evicted, counting an eviction for
+     *         one client as one.
+     */
+    public long getEvictedMessages() {
+        return evictedMessages;
+    }
+}
@@ -0,0 +1,120 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of client IDs from {@link ClientIds}, kept as plain ints in an open
+ * addressing hash table. Checking, adding and removing an ID takes constant
+ * time without boxing it, and an empty or small set takes a few dozen bytes.
+ *
+ * The table uses linear probing and shifts entries back when one is removed,
+ * so it never fills up with deleted markers. It is not thread-safe.
+ */
+class ClientIdSet {
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] table;
+    private int size;
+
+    ClientIdSet() {
+        table = new int[INITIAL_CAPACITY];
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * @return Whether the ID was added, false if it was in the set already.
+     */
+    boolean add(int id) {
+        int slot = find(id);
+        if (table[slot] == id) {
+            return false;
+        }
+        table[slot] = id;
+        // Kept at most three quarters full so probes stay short.
+        if (++size * 4 > table.length * 3) {
+            resize(table.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the ID was removed, false if it was not in the set.
+     */
+    boolean remove(int id) {
+        int mask = table.length - 1;
+        int slot = find(id);
+        if (table[slot] != id) {
+            return false;
+        }
+        // Moves the entries after the removed one back, where they would have been
+        // if it had never been added.
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            int moved = table[next];
+            if (moved == EMPTY) {
+                break;
+            }
+            int home = hash(moved) & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                table[slot] = moved;
+                slot = next;
+            }
+        }
+        table[slot] = EMPTY;
+        size--;
+        return true;
+    }
+
+    boolean contains(int id) {
+        return id >= 0 && table[find(id)] == id;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void forEach(IntConsumer consumer) {
+        for (int id : table) {
+            if (id != EMPTY) {
+                consumer.accept(id);
+            }
+        }
+    }
+
+    /**
+     * @return The slot holding the ID, or the empty slot it would go in.
+     */
+    private int find(int id) {
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (table[slot] != EMPTY && table[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        for (int id : old) {
+            if (id != EMPTY) {
+                table[find(id)] = id;
+            }
+        }
+    }
+
+    // Dense IDs are consecutive, so they are spread over the table by a
+    // multiplicative hash rather than used as they are.
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
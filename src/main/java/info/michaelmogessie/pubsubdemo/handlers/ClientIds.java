@@ -0,0 +1,115 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every client a small int ID, so that the sets of clients kept for
+ * subscriptions and unreceived messages can hold plain ints instead of
+ * references to the clients' string IDs. The IDs are dense: a released ID is
+ * handed out again before a new one is taken, so they stay below the largest
+ * number of clients known at once and can index arrays.
+ *
+ * An ID is taken with {@link #acquire} by everything that refers to the client
+ * by it, and given back with {@link #release}. The ID is freed once nothing
+ * refers to it any more, so an ID must not be used after it has been released.
+ *
+ * Looking up a client's ID with {@link #get} and counting the clients take no
+ * lock, since they are done for every subscription check. The other methods
+ * are synchronized; the lock is never held while calling out.
+ */
+class ClientIds {
+    /**
+     * The ID returned for a client that has none.
+     */
+    static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private String[] clientIds = new String[INITIAL_CAPACITY];
+    // The boxed form of every ID handed out so far, so that an ID that is handed
+    // out again is not boxed again.
+    private Integer[] boxedIds = new Integer[INITIAL_CAPACITY];
+    private int[] references = new int[INITIAL_CAPACITY];
+    // The IDs that have been freed, used as a stack.
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    // The lowest ID that has never been handed out.
+    private int nextId;
+
+    /**
+     * Returns the ID of a client, giving it one if it has none, and counts one
+     * more reference to it.
+     *
+     * @param clientId The string ID of the client.
+     * @return The client's int ID.
+     */
+    synchronized int acquire(String clientId) {
+        Integer known = ids.get(clientId);
+        int id;
+        if (known != null) {
+            id = known;
+        } else {
+            id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            if (id == clientIds.length) {
+                clientIds = Arrays.copyOf(clientIds, id * 2);
+                boxedIds = Arrays.copyOf(boxedIds, id * 2);
+                references = Arrays.copyOf(references, id * 2);
+            }
+            if (boxedIds[id] == null) {
+                boxedIds[id] = id;
+            }
+            ids.put(clientId, boxedIds[id]);
+            clientIds[id] = clientId;
+        }
+        references[id]++;
+        return id;
+    }
+
+    /**
+     * Counts one reference less to an ID, and frees it if there are none left.
+     *
+     * @param id The ID.
+     */
+    synchronized void release(int id) {
+        if (--references[id] > 0) {
+            return;
+        }
+        ids.remove(clientIds[id]);
+        clientIds[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * @return The int ID of a client, or {@link #NONE} if nothing refers to it.
+     */
+    int get(String clientId) {
+        Integer id = ids.get(clientId);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * @return The string ID of the client with the given int ID.
+     */
+    synchronized String getClientId(int id) {
+        return clientIds[id];
+    }
+
+    /**
+     * @return How many clients have an ID.
+     */
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return One more than the highest ID handed out so far.
+     */
+    synchronized int getCapacity() {
+        return nextId;
+    }
+}
@@ -0,0 +1,341 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.TextMessage;
+
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+
+/**
+ * Packs the messages published to a subscriber in quick succession into one
+ * frame, for the topics configured for it and for clients that connect with
+ * ?coalesce=true. Each frame holds the messages of one topic in the batch
+ * envelope {"topic":"{topic}","messages":["{message}",...]}, the messages being
+ * JSON strings in the order they were published.
+ *
+ * Every subscriber has its own flush window per topic, which adapts to the
+ * rate of messages: it starts at 0, so a message to a quiet topic is sent right
+ * away, doubles up to the maximum whenever messages follow each other faster
+ * than the maximum window, and halves when they are more than twice the
+ * maximum window apart. A message that arrives within the window of the last
+ * frame waits for the window to end, unless the waiting messages reach the
+ * byte threshold first.
+ */
+@Component
+public class Coalescer {
+    static final String QUERY_PARAMETER = "coalesce";
+    // The smallest window used once the window grows from 0.
+    private static final long MIN_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final int CLIENT_LOCK_STRIPES = 64;
+
+    private final Set<String> topics;
+    private final long maxWindowNanos;
+    private final int maxBytes;
+    // The sessions that asked for coalescing when they connected.
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    // The batch of each subscriber and topic, keyed by client id and then topic.
+    private final Map<String, Map<String, OutboundBatch>> batches = new ConcurrentHashMap<>();
+    // Guard adding and removing a client's batches, so that a message offered
+    // while the client disconnects does not leave batches behind for it. A
+    // client's lock is chosen by its id.
+    private final Object[] clientLocks = new Object[CLIENT_LOCK_STRIPES];
+    // How many messages are waiting to be sent for each topic, over all subscribers.
+    private final Map<String, AtomicInteger> pendingByTopic = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService executor;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(Coalescer.class);
+
+    /**
+     * Constructor for the coalescer. Spring will inject the settings from the
+     * appropriate application.properties file.
+     *
+     * @param topics                The topics whose messages are coalesced for
+     *                              every subscriber.
+     * @param maxWindowMilliseconds The longest a message may wait for others to
+     *                              be sent with it.
+     * @param maxBytes              How many bytes of messages make a batch be
+     *                              sent without waiting for its window to end.
+     */
+    @Autowired
+    public Coalescer(@Value("#{${coalescing.topics}}") Collection<String> topics,
+            @Value("${coalescing.window.max.milliseconds}") long maxWindowMilliseconds,
+            @Value("${coalescing.max.bytes}") int maxBytes) {
+        this.topics = new HashSet<>(topics);
+        this.maxWindowNanos = TimeUnit.MILLISECONDS.toNanos(maxWindowMilliseconds);
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < clientLocks.length; i++) {
+            clientLocks[i] = new Object();
+        }
+    }
+
+    boolean isCoalescing(String topic, String clientId) {
+        return topics.contains(topic) || sessions.contains(clientId);
+    }
+
+    /**
+     * @return How many messages are waiting to be sent to a client. The count is
+     *         read without locking and may be slightly out of date.
+     */
+    int getPendingMessages(String clientId) {
+        Map<String, OutboundBatch> clientBatches = batches.get(clientId);
+        if (clientBatches == null) {
+            return 0;
+        }
+        int pending = 0;
+        for (OutboundBatch batch : clientBatches.values()) {
+            pending += batch.messages.size();
+        }
+        return pending;
+    }
+
+    /**
+     * @return How many messages of a topic are waiting to be sent, over all
+     *         subscribers.
+     */
+    int getPendingMessagesForTopic(String topic) {
+        AtomicInteger pending = pendingByTopic.get(topic);
+        return pending == null ? 0 : pending.get();
+    }
+
+    void addSession(String clientId) {
+        sessions.add(clientId);
+    }
+
+    /**
+     * Forgets a session that has closed. Messages that were waiting to be sent
+     * to it, or are offered to it afterwards, are kept as unreceived messages.
+     */
+    void removeSession(String clientId) {
+        sessions.remove(clientId);
+        Map<String, OutboundBatch> clientBatches;
+        synchronized (clientLock(clientId)) {
+            clientBatches = batches.remove(clientId);
+        }
+        if (clientBatches != null) {
+            for (OutboundBatch batch : clientBatches.values()) {
+                synchronized (batch) {
+                    batch.removed = true;
+                    batch.messages.forEach(message -> WebSocketHandler.sendFailed(message, batch.clientInfo));
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the subscriber's batch for the topic, sending the batch
+     * right away if the topic has been quiet or the batch is full.
+     *
+     * @param clientInfo       The subscriber.
+     * @param topic            The topic the message was published to.
+     * @param frame            The message as a ready-to-send frame.
+     * @param publishedMessage The message, kept for the subscriber if it cannot
+     *                         be sent.
+     */
+    void offer(ClientInfo clientInfo, String topic, TextMessage frame, PublishedMessage publishedMessage) {
+        OutboundBatch batch;
+        synchronized (clientLock(clientInfo.getClientId())) {
+            // A session is closed before it is removed, so a batch created for an
+            // open session is always removed with it.
+            if (!clientInfo.getWebSocketSession().isOpen()) {
+                batch = null;
+            } else {
+                batch = batches.computeIfAbsent(clientInfo.getClientId(), id -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(topic, t -> new OutboundBatch(clientInfo, topic));
+            }
+        }
+        if (batch == null) {
+            WebSocketHandler.sendFailed(publishedMessage, clientInfo);
+            return;
+        }
+        synchronized (batch) {
+            if (batch.removed) {
+                WebSocketHandler.sendFailed(publishedMessage, clientInfo);
+                return;
+            }
+            batch.frames.add(frame);
+            batch.messages.add(publishedMessage);
+            publishedMessage.pin();
+            batch.topicPending.incrementAndGet();
+            batch.bytes += frame.getPayloadLength();
+            long now = System.nanoTime();
+            if (batch.bytes >= maxBytes) {
+                flush(batch, now);
+            } else if (!batch.flushScheduled) {
+                long sinceLastFlush = now - batch.lastFlushNanos;
+                if (sinceLastFlush >= batch.windowNanos) {
+                    flush(batch, now);
+                } else {
+                    batch.flushScheduled = true;
+                    getExecutor().schedule(() -> scheduledFlush(batch), batch.windowNanos - sinceLastFlush,
+                            TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+    }
+
+    private void scheduledFlush(OutboundBatch batch) {
+        synchronized (batch) {
+            batch.flushScheduled = false;
+            if (!batch.frames.isEmpty()) {
+                flush(batch, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Sends the batch as one frame and adapts its window to how long it has been
+     * since the last one. The caller must hold the lock on the batch, which keeps
+     * the frames of a subscriber's topic in order.
+     */
+    private void flush(OutboundBatch batch, long now) {
+        long sinceLastFlush = now - batch.lastFlushNanos;
+        if (sinceLastFlush < maxWindowNanos) {
+            batch.windowNanos = Math.min(maxWindowNanos, Math.max(MIN_WINDOW_NANOS, batch.windowNanos * 2));
+        } else if (sinceLastFlush > 2 * maxWindowNanos) {
+            batch.windowNanos = batch.windowNanos / 2 < MIN_WINDOW_NANOS ? 0 : batch.windowNanos / 2;
+        }
+        batch.lastFlushNanos = now;
+        try {
+            WebSocketHandler.send(batch.clientInfo.getWebSocketSession(), encode(batch.topic, batch.frames));
+            for (PublishedMessage message : batch.messages) {
+                if (message.getReceipt() != null) {
+                    message.getReceipt().sent();
+                }
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            batch.messages.forEach(message -> WebSocketHandler.sendFailed(message, batch.clientInfo));
+        }
+        batch.clear();
+    }
+
+    private Object clientLock(String clientId) {
+        return clientLocks[Math.floorMod(clientId.hashCode(), clientLocks.length)];
+    }
+
+    /**
+     * Encodes messages in the batch envelope.
+     *
+     * @param topic  The topic the messages were published to.
+     * @param frames The messages, oldest first.
+     * @return The envelope as one frame.
+     */
+    static TextMessage encode(String topic, List<TextMessage> frames) {
+        int length = 32 + topic.length();
+        for (TextMessage frame : frames) {
+            length += frame.getPayloadLength() + 3;
+        }
+        StringBuilder envelope = new StringBuilder(length);
+        envelope.append("{\"topic\":\"");
+        appendEscaped(envelope, topic);
+        envelope.append("\",\"messages\":[");
+        for (int i = 0; i < frames.size(); i++) {
+            envelope.append(i == 0 ? "\"" : ",\"");
+            appendEscaped(envelope, frames.get(i).getPayload());
+            envelope.append('"');
+        }
+        envelope.append("]}");
+        return new TextMessage(envelope);
+    }
+
+    private static void appendEscaped(StringBuilder envelope, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                envelope.append('\\').append(c);
+            } else if (c < 0x20) {
+                envelope.append(String.format("\\u%04x", (int) c));
+            } else {
+                envelope.append(c);
+            }
+        }
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "coalescer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Sends the waiting batches when the service shuts down.
+     */
+    @PreDestroy
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        for (Map<String, OutboundBatch> clientBatches : batches.values()) {
+            for (OutboundBatch batch : clientBatches.values()) {
+                synchronized (batch) {
+                    if (!batch.frames.isEmpty()) {
+                        flush(batch, System.nanoTime());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The messages waiting to be sent to a subscriber for a topic, and the state
+     * of the subscriber's flush window. Guarded by its own lock.
+     */
+    private class OutboundBatch {
+        private final ClientInfo clientInfo;
+        private final String topic;
+        private final List<TextMessage> frames = new ArrayList<>();
+        private final List<PublishedMessage> messages = new ArrayList<>();
+        private final AtomicInteger topicPending;
+        private int bytes;
+        private boolean flushScheduled;
+        // Set once the client's session has been removed, after which messages
+        // offered to the batch are kept as unreceived instead.
+        private boolean removed;
+        private long windowNanos;
+        // Starts far enough in the past for the first message to count as quiet.
+        private long lastFlushNanos = System.nanoTime() - 4 * maxWindowNanos;
+
+        public OutboundBatch(ClientInfo clientInfo, String topic) {
+            this.clientInfo = clientInfo;
+            this.topic = topic;
+            this.topicPending = pendingByTopic.computeIfAbsent(topic, t -> new AtomicInteger());
+        }
+
+        private void clear() {
+            topicPending.addAndGet(-messages.size());
+            frames.clear();
+            messages.forEach(PublishedMessage::unpin);
+            messages.clear();
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Arrays;
+
+import info.michaelmogessie.pubsubdemo.handlers.CommandParser.Action;
+import info.michaelmogessie.pubsubdemo.handlers.CommandParser.CommandError;
+
+/**
+ * The commands parsed from one frame, in the order they appeared. Each entry is
+ * either a valid command or the reason it was rejected. The arrays only grow,
+ * so a batch that is reused from frame to frame stops allocating once it has
+ * seen the largest frame.
+ */
+public class CommandBatch {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private String[] topics = new String[INITIAL_CAPACITY];
+    private Action[] actions = new Action[INITIAL_CAPACITY];
+    private CommandError[] errors = new CommandError[INITIAL_CAPACITY];
+    private boolean[] replays = new boolean[INITIAL_CAPACITY];
+    private int[] lasts = new int[INITIAL_CAPACITY];
+    private long[] sinces = new long[INITIAL_CAPACITY];
+    private String[] groups = new String[INITIAL_CAPACITY];
+    private int size;
+
+    void add(String topic, Action action, boolean replay, int last, long since) {
+        ensureCapacity();
+        topics[size] = topic;
+        actions[size] = action;
+        errors[size] = null;
+        replays[size] = replay;
+        lasts[size] = last;
+        sinces[size] = since;
+        groups[size] = null;
+        size++;
+    }
+
+    void addGroup(String topic, Action action, String group) {
+        add(topic, action, false, 0, 0);
+        groups[size - 1] = group;
+    }
+
+    void addError(CommandError error) {
+        ensureCapacity();
+        topics[size] = null;
+        actions[size] = null;
+        errors[size] = error;
+        size++;
+    }
+
+    /**
+     * Marks a parsed command as rejected, for commands that turn out to be invalid
+     * only once they are applied.
+     */
+    void reject(int index, CommandError error) {
+        errors[index] = error;
+    }
+
+    void clear() {
+        Arrays.fill(topics, 0, size, null);
+        Arrays.fill(groups, 0, size, null);
+        size = 0;
+    }
+
+    private void ensureCapacity() {
+        if (size < topics.length) {
+            return;
+        }
+        int capacity = topics.length * 2;
+        topics = Arrays.copyOf(topics, capacity);
+        actions = Arrays.copyOf(actions, capacity);
+        errors = Arrays.copyOf(errors, capacity);
+        replays = Arrays.copyOf(replays, capacity);
+        lasts = Arrays.copyOf(lasts, capacity);
+        sinces = Arrays.copyOf(sinces, capacity);
+        groups = Arrays.copyOf(groups, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getTopic(int index) {
+        return topics[index];
+    }
+
+    public Action getAction(int index) {
+        return actions[index];
+    }
+
+    public CommandError getError(int index) {
+        return errors[index];
+    }
+
+    public boolean isReplay(int index) {
+        return replays[index];
+    }
+
+    public int getLast(int index) {
+        return lasts[index];
+    }
+
+    public long getSince(int index) {
+        return sinces[index];
+    }
+
+    /**
+     * @return The name of the group of a shared subscription command, or null for
+     *         other commands.
+     */
+    public String getGroup(int index) {
+        return groups[index];
+    }
+}
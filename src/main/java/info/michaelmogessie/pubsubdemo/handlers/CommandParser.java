@@ -0,0 +1,238 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Collection;
+
+/**
+ * Parses the commands clients send over their websocket connection. A frame
+ * holds one or more commands separated by new lines or semicolons, each of the
+ * form {topic}/{action}[?{name}={value}&...], or {topic}/{action}/{group} for
+ * the shared subscription actions.
+ *
+ * The parser walks the payload character by character and does not create any
+ * objects besides the names of groups: topics are looked up in an
+ * open-addressing table of the known topic names by hashing the characters in
+ * place, actions are compared in place and numbers are accumulated digit by
+ * digit. The result is written into a {@link CommandBatch} that the caller
+ * reuses from frame to frame.
+ */
+public class CommandParser {
+
+    /**
+     * The actions a client can ask for.
+     */
+    public enum Action {
+        SUBSCRIBE, UNSUBSCRIBE, CLIENT_ID, SUBSCRIBE_GROUP, UNSUBSCRIBE_GROUP
+    }
+
+    /**
+     * The reasons a command can be rejected.
+     */
+    public enum CommandError {
+        MALFORMED, TOPIC_NOT_FOUND, NO_SUCH_ACTION, NOT_SUBSCRIBED
+    }
+
+    // Some string values, declared here to avoid repetition in use.
+    private static final String ACTION_SUBSCRIBE = "subscribe";
+    private static final String ACTION_UNSUBSCRIBE = "unsubscribe";
+    private static final String ACTION_CLIENT_ID = "clientId";
+    private static final String ACTION_SUBSCRIBE_GROUP = "subscribe-group";
+    private static final String ACTION_UNSUBSCRIBE_GROUP = "unsubscribe-group";
+    private static final String REPLAY_LAST = "last";
+    private static final String REPLAY_SINCE = "since";
+
+    // The known topics, placed by hash with linear probing. The length of the table
+    // is a power of two and at least twice the number of topics.
+    private final String[] topicTable;
+    private final int mask;
+
+    public CommandParser(Collection<String> topics) {
+        int tableSize = Integer.highestOneBit(Math.max(topics.size(), 1) * 2) * 2;
+        this.topicTable = new String[tableSize];
+        this.mask = tableSize - 1;
+        for (String topic : topics) {
+            int slot = spread(topic.hashCode()) & mask;
+            while (topicTable[slot] != null && !topicTable[slot].equals(topic)) {
+                slot = (slot + 1) & mask;
+            }
+            topicTable[slot] = topic;
+        }
+    }
+
+    /**
+     * Parses all the commands in a frame into the given batch, replacing what the
+     * batch held before. A frame without any command counts as one malformed
+     * command.
+     *
+     * @param payload The text of the frame.
+     * @param batch   The batch to write the commands to.
+     */
+    public void parse(String payload, CommandBatch batch) {
+        batch.clear();
+        int length = payload.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && !isSeparator(payload.charAt(end))) {
+                end++;
+            }
+            if (end > start) {
+                parseCommand(payload, start, end, batch);
+            }
+            start = end + 1;
+        }
+        if (batch.size() == 0) {
+            batch.addError(CommandError.MALFORMED);
+        }
+    }
+
+    private void parseCommand(String payload, int start, int end, CommandBatch batch) {
+        int slash = indexOf(payload, '/', start, end);
+        if (slash < 0 || slash == end - 1) {
+            batch.addError(CommandError.MALFORMED);
+            return;
+        }
+        int groupSlash = indexOf(payload, '/', slash + 1, end);
+        Action groupAction = groupSlash < 0 ? null : findGroupAction(payload, slash + 1, groupSlash);
+        if (groupSlash >= 0 && (groupAction == null || !isGroupName(payload, groupSlash + 1, end))) {
+            batch.addError(CommandError.MALFORMED);
+            return;
+        }
+        String topic = findTopic(payload, start, slash);
+        if (topic == null) {
+            batch.addError(CommandError.TOPIC_NOT_FOUND);
+            return;
+        }
+        if (groupAction != null) {
+            batch.addGroup(topic, groupAction, payload.substring(groupSlash + 1, end));
+            return;
+        }
+        if (findGroupAction(payload, slash + 1, end) != null) {
+            // A shared subscription action without the name of the group.
+            batch.addError(CommandError.MALFORMED);
+            return;
+        }
+        int queryStart = indexOf(payload, '?', slash + 1, end);
+        int actionEnd = queryStart < 0 ? end : queryStart;
+        if (regionEquals(payload, slash + 1, actionEnd, ACTION_UNSUBSCRIBE)) {
+            batch.add(topic, Action.UNSUBSCRIBE, false, 0, 0);
+        } else if (regionEquals(payload, slash + 1, actionEnd, ACTION_CLIENT_ID)) {
+            batch.add(topic, Action.CLIENT_ID, false, 0, 0);
+        } else if (!regionEquals(payload, slash + 1, actionEnd, ACTION_SUBSCRIBE)) {
+            batch.addError(CommandError.NO_SUCH_ACTION);
+        } else if (queryStart < 0) {
+            batch.add(topic, Action.SUBSCRIBE, false, 0, 0);
+        } else {
+            parseReplay(payload, topic, queryStart + 1, end, batch);
+        }
+    }
+
+    /**
+     * Parses the replay parameters of a subscribe command, "last" being the
+     * number of messages and "since" the earliest publish time in milliseconds.
+     */
+    private void parseReplay(String payload, String topic, int start, int end, CommandBatch batch) {
+        long last = Integer.MAX_VALUE;
+        long since = 0;
+        while (start < end) {
+            int parameterEnd = indexOf(payload, '&', start, end);
+            if (parameterEnd < 0) {
+                parameterEnd = end;
+            }
+            int equals = indexOf(payload, '=', start, parameterEnd);
+            long value = equals < 0 ? -1 : parseNumber(payload, equals + 1, parameterEnd);
+            if (value < 0) {
+                batch.addError(CommandError.MALFORMED);
+                return;
+            }
+            if (regionEquals(payload, start, equals, REPLAY_LAST)) {
+                last = Math.min(value, Integer.MAX_VALUE);
+            } else if (regionEquals(payload, start, equals, REPLAY_SINCE)) {
+                since = value;
+            } else {
+                batch.addError(CommandError.MALFORMED);
+                return;
+            }
+            start = parameterEnd + 1;
+        }
+        batch.add(topic, Action.SUBSCRIBE, true, (int) last, since);
+    }
+
+    private static Action findGroupAction(String payload, int start, int end) {
+        if (regionEquals(payload, start, end, ACTION_SUBSCRIBE_GROUP)) {
+            return Action.SUBSCRIBE_GROUP;
+        } else if (regionEquals(payload, start, end, ACTION_UNSUBSCRIBE_GROUP)) {
+            return Action.UNSUBSCRIBE_GROUP;
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether the characters between start and end are a valid group name:
+     * not empty and without slashes or query parameters.
+     */
+    private static boolean isGroupName(String payload, int start, int end) {
+        return start < end && indexOf(payload, '/', start, end) < 0 && indexOf(payload, '?', start, end) < 0;
+    }
+
+    /**
+     * Looks up the known topic spelled by the characters between start and end.
+     *
+     * @return The topic, or null if there is no such topic.
+     */
+    private String findTopic(String payload, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + payload.charAt(i);
+        }
+        int length = end - start;
+        for (int slot = spread(hash) & mask; topicTable[slot] != null; slot = (slot + 1) & mask) {
+            String topic = topicTable[slot];
+            if (topic.length() == length && payload.regionMatches(start, topic, 0, length)) {
+                return topic;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the non-negative decimal number between start and end.
+     *
+     * @return The number, or -1 if the characters are not a number or it does not
+     *         fit in a long.
+     */
+    private static long parseNumber(String payload, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = payload.charAt(i);
+            if (c < '0' || c > '9' || value > (Long.MAX_VALUE - (c - '0')) / 10) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean regionEquals(String payload, int start, int end, String expected) {
+        return end - start == expected.length() && payload.regionMatches(start, expected, 0, expected.length());
+    }
+
+    private static int indexOf(String payload, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (payload.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '\n' || c == '\r' || c == ';';
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,260 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.PropertyResolver;
+import org.springframework.stereotype.Component;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Isolates the topics of different tenants from each other. Topics are
+ * assigned to named pools in the configuration, and the messages published to
+ * a pool's topics are sent to subscribers by the pool's own threads, so a
+ * tenant whose topics are busy or slow only holds up its own publishes. Topics
+ * that are not assigned to a pool are sent to by the publishing thread, as
+ * before.
+ *
+ * Each pool has a number of lanes, each a single thread with a bounded queue. A
+ * topic always falls in the same lane, chosen by its name, so its messages are
+ * sent in the order they were published. A publish is turned away when its
+ * lane's queue is full or when the messages waiting in the pool would take more
+ * than the pool's budget of bytes. The lanes, queue capacity and budget of a
+ * pool may be set for it alone with dispatch.pools.{pool}.lanes,
+ * dispatch.pools.{pool}.queue.capacity and dispatch.pools.{pool}.budget.bytes,
+ * and are otherwise the ones set for all pools.
+ *
+ * The time from accepting a publish until it has been sent to all subscribers
+ * is recorded per pool in the pubsub.dispatch.latency timer, tagged with the
+ * pool, publishes sent by the publishing thread being tagged with the pool
+ * "synchronous". Turned away publishes are counted in pubsub.dispatch.rejected,
+ * publishes that failed while a pool's thread sent them are logged and counted
+ * in pubsub.dispatch.failed, and the bytes waiting in each pool are published
+ * as the pubsub.dispatch.queued.bytes gauge.
+ */
+@Component
+public class DispatchPools {
+    static final String SYNCHRONOUS = "synchronous";
+    private static final String METRIC_LATENCY = "pubsub.dispatch.latency";
+    private static final String METRIC_REJECTED = "pubsub.dispatch.rejected";
+    private static final String METRIC_FAILED = "pubsub.dispatch.failed";
+    private static final String METRIC_QUEUED_BYTES = "pubsub.dispatch.queued.bytes";
+    private static final String TAG_POOL = "pool";
+    private static final long RETRY_AFTER_SECONDS = 1;
+    private static final String POOL_SETTINGS_PREFIX = "dispatch.pools.";
+
+    // The pool of each assigned topic.
+    private final Map<String, DispatchPool> topicPools = new HashMap<>();
+    private final Map<String, DispatchPool> pools = new HashMap<>();
+    private final Timer synchronousLatency;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(DispatchPools.class);
+
+    /**
+     * Constructor for dispatch pools that all use the same settings.
+     *
+     * @param poolTopics     The topics of each pool, by pool name.
+     * @param lanes          How many threads each pool sends with.
+     * @param queueCapacity  How many publishes may wait in each lane.
+     * @param maxQueuedBytes How many bytes the messages waiting in a pool may
+     *                       take, or 0 for no limit.
+     */
+    public DispatchPools(Map<String, List<String>> poolTopics, int lanes, int queueCapacity, long maxQueuedBytes) {
+        this(poolTopics, lanes, queueCapacity, maxQueuedBytes, null);
+    }
+
+    /**
+     * Constructor for the dispatch pools. Spring will inject the settings from the
+     * appropriate application.properties file.
+     *
+     * @param poolTopics     The topics of each pool, by pool name.
+     * @param lanes          How many threads each pool sends with, unless set
+     *                       for the pool.
+     * @param queueCapacity  How many publishes may wait in each lane, unless set
+     *                       for the pool.
+     * @param maxQueuedBytes How many bytes the messages waiting in a pool may
+     *                       take, or 0 for no limit, unless set for the pool.
+     * @param poolSettings   The properties that hold the settings of single
+     *                       pools, or null if there are none.
+     */
+    @Autowired
+    public DispatchPools(@Value("#{${dispatch.pools}}") Map<String, List<String>> poolTopics,
+            @Value("${dispatch.pool.lanes}") int lanes,
+            @Value("${dispatch.pool.queue.capacity}") int queueCapacity,
+            @Value("${dispatch.pool.budget.bytes}") long maxQueuedBytes, PropertyResolver poolSettings) {
+        for (Map.Entry<String, ? extends Collection<String>> pool : poolTopics.entrySet()) {
+            String name = pool.getKey();
+            DispatchPool dispatchPool = new DispatchPool(name,
+                    Math.max(1, poolSetting(poolSettings, name, "lanes", Integer.class, lanes)),
+                    Math.max(1, poolSetting(poolSettings, name, "queue.capacity", Integer.class, queueCapacity)),
+                    poolSetting(poolSettings, name, "budget.bytes", Long.class, maxQueuedBytes));
+            pools.put(pool.getKey(), dispatchPool);
+            for (String topic : pool.getValue()) {
+                if (topicPools.put(topic, dispatchPool) != null) {
+                    throw new IllegalArgumentException("Topic " + topic + " is assigned to more than one pool");
+                }
+            }
+        }
+        synchronousLatency = latencyTimer(SYNCHRONOUS);
+    }
+
+    /**
+     * @return The pool of a topic, or null if the topic is sent to by the
+     *         publishing thread.
+     */
+    DispatchPool getPool(String topic) {
+        return topicPools.isEmpty() ? null : topicPools.get(topic);
+    }
+
+    /**
+     * Records how long a publish sent by the publishing thread took.
+     *
+     * @param acceptedNanos When the publish was accepted, from System.nanoTime().
+     */
+    void recordSynchronous(long acceptedNanos) {
+        synchronousLatency.record(System.nanoTime() - acceptedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The names of the pools.
+     */
+    public Collection<String> getPoolNames() {
+        return pools.keySet();
+    }
+
+    /**
+     * Stops the pools' threads when the service shuts down, after they have sent
+     * the publishes that are waiting.
+     */
+    @PreDestroy
+    public void close() {
+        for (DispatchPool pool : pools.values()) {
+            pool.close();
+        }
+    }
+
+    private static <T> T poolSetting(PropertyResolver poolSettings, String pool, String key, Class<T> type,
+            T defaultValue) {
+        return poolSettings == null ? defaultValue
+                : poolSettings.getProperty(POOL_SETTINGS_PREFIX + pool + "." + key, type, defaultValue);
+    }
+
+    private static Timer latencyTimer(String pool) {
+        return Timer.builder(METRIC_LATENCY).tag(TAG_POOL, pool).publishPercentiles(0.5, 0.99, 0.999)
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * The threads and limits of one pool.
+     */
+    static class DispatchPool {
+        private final String name;
+        private final ExecutorService[] lanes;
+        private final long maxQueuedBytes;
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final Timer latency;
+        private final Counter rejected;
+        private final Counter failed;
+
+        private DispatchPool(String name, int laneCount, int queueCapacity, long maxQueuedBytes) {
+            this.name = name;
+            this.maxQueuedBytes = maxQueuedBytes;
+            this.lanes = new ExecutorService[laneCount];
+            for (int i = 0; i < laneCount; i++) {
+                String threadName = "dispatch-" + name + "-" + i;
+                lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                            Thread thread = new Thread(runnable, threadName);
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+            }
+            this.latency = latencyTimer(name);
+            this.rejected = Metrics.counter(METRIC_REJECTED, TAG_POOL, name);
+            this.failed = Metrics.counter(METRIC_FAILED, TAG_POOL, name);
+            Gauge.builder(METRIC_QUEUED_BYTES, queuedBytes, AtomicLong::get).tag(TAG_POOL, name).baseUnit("bytes")
+                    .register(Metrics.globalRegistry);
+        }
+
+        /**
+         * Hands a publish to the lane of its topic.
+         *
+         * @param topic         The topic the message is published to.
+         * @param bytes         The size of the message.
+         * @param acceptedNanos When the publish was accepted, from
+         *                      System.nanoTime().
+         * @param task          Sends the message to the topic's subscribers.
+         * @throws OverloadedException This exception is thrown if the lane's queue or
+         *                             the pool's budget is full.
+         */
+        void dispatch(String topic, long bytes, long acceptedNanos, Runnable task) throws OverloadedException {
+            if (queuedBytes.addAndGet(bytes) > maxQueuedBytes && maxQueuedBytes > 0) {
+                queuedBytes.addAndGet(-bytes);
+                rejected.increment();
+                throw new OverloadedException(RETRY_AFTER_SECONDS, false);
+            }
+            try {
+                lanes[Math.floorMod(topic.hashCode(), lanes.length)].execute(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        failed.increment();
+                        logger.error("Dispatching a message to " + topic + " in pool " + name + " failed", e);
+                    } finally {
+                        queuedBytes.addAndGet(-bytes);
+                        latency.record(System.nanoTime() - acceptedNanos, TimeUnit.NANOSECONDS);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                queuedBytes.addAndGet(-bytes);
+                rejected.increment();
+                throw new OverloadedException(RETRY_AFTER_SECONDS, false);
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        int getLaneCount() {
+            return lanes.length;
+        }
+
+        long getQueuedBytes() {
+            return queuedBytes.get();
+        }
+
+        private void close() {
+            for (ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+            try {
+                for (ExecutorService lane : lanes) {
+                    lane.awaitTermination(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import info.michaelmogessie.pubsubdemo.timers.HashedWheelTimer;
+
+/**
+ * Pings every connected subscriber at a fixed interval and reaps the sessions
+ * that stop answering, so that half-open connections do not stay among the
+ * subscribers until a send to them fails. A session that has not answered with
+ * a pong for the configured number of pings in a row is taken for dead: its
+ * subscriptions are kept for its client ID like those restored after a
+ * restart, so messages published to it from then on are kept as unreceived
+ * without trying to send them, and it is closed. The client gets its
+ * subscriptions and messages back if it reconnects with ?clientId={its previous
+ * session id} within the dormant time.
+ *
+ * The pings of all sessions are scheduled on one shared hashed wheel timer.
+ * Pings are sent and dead sessions closed on a separate thread, since either
+ * may block on a bad connection.
+ *
+ * Heartbeats are turned off by setting the interval to 0.
+ */
+@Component
+public class Heartbeat {
+    private static final ByteBuffer PING_PAYLOAD = ByteBuffer.allocate(0);
+    private static final int TICKS_PER_WHEEL = 512;
+    private static final long MAX_TICK_MILLISECONDS = 100;
+
+    private final long intervalMilliseconds;
+    private final int maxMissedPongs;
+    private final long dormantMilliseconds;
+    private final HashedWheelTimer timer;
+    // The heartbeat of each connected session, keyed by session id.
+    private final Map<String, Beat> beats = new ConcurrentHashMap<>();
+    private volatile ExecutorService executor;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(Heartbeat.class);
+
+    /**
+     * Constructor for the heartbeat. Spring will inject the settings from the
+     * appropriate application.properties file.
+     *
+     * @param intervalMilliseconds How often to ping each session, or 0 to not
+     *                             ping at all.
+     * @param maxMissedPongs       After how many pings in a row without a pong a
+     *                             session is taken for dead.
+     * @param dormantMilliseconds  How long the subscriptions of a dead session are
+     *                             kept for its client to reconnect.
+     */
+    @Autowired
+    public Heartbeat(@Value("${heartbeat.interval.milliseconds}") long intervalMilliseconds,
+            @Value("${heartbeat.missed.pongs}") int maxMissedPongs,
+            @Value("${heartbeat.dormant.ttl.milliseconds}") long dormantMilliseconds) {
+        this.intervalMilliseconds = intervalMilliseconds;
+        this.maxMissedPongs = Math.max(1, maxMissedPongs);
+        this.dormantMilliseconds = dormantMilliseconds;
+        this.timer = new HashedWheelTimer("heartbeat-timer",
+                Math.max(1, Math.min(MAX_TICK_MILLISECONDS, intervalMilliseconds / 10)), TimeUnit.MILLISECONDS,
+                TICKS_PER_WHEEL);
+    }
+
+    /**
+     * Starts pinging a session that has connected.
+     *
+     * @param session The session.
+     */
+    void addSession(WebSocketSession session) {
+        if (intervalMilliseconds <= 0) {
+            return;
+        }
+        Beat beat = new Beat(session);
+        beats.put(session.getId(), beat);
+        schedule(beat);
+    }
+
+    /**
+     * Stops pinging a session that has closed.
+     *
+     * @param sessionId The ID of the session.
+     */
+    void removeSession(String sessionId) {
+        Beat beat = beats.remove(sessionId);
+        if (beat != null && beat.timeout != null) {
+            beat.timeout.cancel();
+        }
+    }
+
+    /**
+     * Records that a session has answered a ping.
+     *
+     * @param sessionId The ID of the session.
+     */
+    void pongReceived(String sessionId) {
+        Beat beat = beats.get(sessionId);
+        if (beat != null) {
+            beat.ponged = true;
+        }
+    }
+
+    /**
+     * @return How many sessions are being pinged.
+     */
+    int getSessions() {
+        return beats.size();
+    }
+
+    private void schedule(Beat beat) {
+        beat.timeout = timer.schedule(() -> getExecutor().execute(() -> beat(beat)), intervalMilliseconds,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pings a session, or reaps it if it has missed too many pongs.
+     */
+    private void beat(Beat beat) {
+        if (beats.get(beat.session.getId()) != beat) {
+            return;
+        }
+        if (beat.ponged) {
+            beat.missedPongs = 0;
+        } else if (++beat.missedPongs >= maxMissedPongs) {
+            reap(beat);
+            return;
+        }
+        beat.ponged = false;
+        try {
+            WebSocketHandler.send(beat.session, new PingMessage(PING_PAYLOAD.duplicate()));
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+        }
+        schedule(beat);
+    }
+
+    private void reap(Beat beat) {
+        WebSocketSession session = beat.session;
+        logger.warn("Session " + session.getId() + " missed " + beat.missedPongs + " pongs, closing it");
+        beats.remove(session.getId(), beat);
+        WebSocketHandler.sessionDead(session, System.currentTimeMillis() + dormantMilliseconds);
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = Executors.newSingleThreadExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "heartbeat");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Stops pinging when the service shuts down.
+     */
+    @PreDestroy
+    public void close() {
+        timer.stop();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The heartbeat of a session. Only the heartbeat thread updates the missed
+     * pongs, while the pong flag is set by the thread handling the session's
+     * messages.
+     */
+    private static class Beat {
+        private final WebSocketSession session;
+        private volatile boolean ponged = true;
+        private int missedPongs;
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        private Beat(WebSocketSession session) {
+            this.session = session;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Remembers the idempotency keys of recently published messages, so that a
+ * message that is published again with the same key, for example because the
+ * publisher retried after a timeout, is recognized before it is sent to any
+ * subscriber.
+ *
+ * A key is remembered for a fixed window after it was first seen. Keys are not
+ * stored as strings: the topic and key are hashed to 64 bits and kept in
+ * primitive open-addressing tables, next to the time each entry expires, so an
+ * entry takes 16 bytes. Two different keys are taken for the same one only if
+ * their hashes collide, which is negligible at 64 bits. The keys are spread
+ * over a number of stripes, each a table with its own lock. A stripe that fills
+ * up first drops its expired entries and then, if it is still full, the quarter
+ * of its entries that would expire soonest, so the cache never holds more than
+ * its capacity. Duplicates are counted in the pubsub.publish.duplicates metric.
+ */
+@Component
+public class IdempotencyCache {
+    private static final String METRIC_DUPLICATES = "pubsub.publish.duplicates";
+    private static final int STRIPES = 16;
+    // Marks an empty slot. Hashes that come out as 0 are stored as 1 instead.
+    private static final long EMPTY = 0;
+
+    private final long windowNanos;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Counter duplicates = Metrics.counter(METRIC_DUPLICATES);
+
+    /**
+     * Constructor for the idempotency cache. Spring will inject the settings from
+     * the appropriate application.properties file.
+     *
+     * @param capacity           How many keys to remember at most.
+     * @param windowMilliseconds How long a key is remembered, or 0 to not
+     *                           recognize duplicates at all.
+     */
+    @Autowired
+    public IdempotencyCache(@Value("${idempotency.capacity}") int capacity,
+            @Value("${idempotency.window.milliseconds}") long windowMilliseconds) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMilliseconds);
+        int stripeCapacity = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    /**
+     * Records a message's idempotency key unless it has been seen within the
+     * window.
+     *
+     * @param topic The topic the message is published to.
+     * @param key   The idempotency key of the message.
+     * @return True if the key is new and the message should be published, false
+     *         if the message is a duplicate.
+     */
+    boolean firstSeen(String topic, String key) {
+        if (windowNanos <= 0) {
+            return true;
+        }
+        long hash = hash(topic, key);
+        boolean firstSeen = stripes[(int) (hash >>> 60) & (STRIPES - 1)].add(hash, System.nanoTime(), windowNanos);
+        if (!firstSeen) {
+            duplicates.increment();
+        }
+        return firstSeen;
+    }
+
+    /**
+     * Forgets a message's idempotency key, so that the message is published if it
+     * is sent again, for example after it was turned away because the service was
+     * overloaded.
+     *
+     * @param topic The topic the message is published to.
+     * @param key   The idempotency key of the message.
+     */
+    void forget(String topic, String key) {
+        if (windowNanos <= 0) {
+            return;
+        }
+        long hash = hash(topic, key);
+        stripes[(int) (hash >>> 60) & (STRIPES - 1)].expire(hash, System.nanoTime());
+    }
+
+    /**
+     * Hashes the topic and the key with FNV-1a over their characters, separated
+     * so that ("ab", "c") and ("a", "bc") differ, and mixes the result so that its
+     * high bits can pick the stripe and its low bits the slot.
+     */
+    private static long hash(String topic, String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < topic.length(); i++) {
+            hash = (hash ^ topic.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    /**
+     * @return How many keys are remembered, including expired ones that have not
+     *         been dropped yet.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * One open-addressing table of hashed keys with linear probing. Its length is
+     * a power of two and at least twice its capacity. Guarded by its own lock.
+     */
+    private static class Stripe {
+        private final int capacity;
+        private final int mask;
+        private long[] hashes;
+        private long[] expiries;
+        private int size;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            int length = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            this.mask = length - 1;
+            this.hashes = new long[length];
+            this.expiries = new long[length];
+        }
+
+        synchronized boolean add(long hash, long now, long windowNanos) {
+            int slot = (int) hash & mask;
+            while (hashes[slot] != EMPTY) {
+                if (hashes[slot] == hash) {
+                    if (expiries[slot] - now > 0) {
+                        return false;
+                    }
+                    // Seen before the window, so it counts as new again.
+                    expiries[slot] = now + windowNanos;
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size >= capacity) {
+                evict(now);
+                slot = (int) hash & mask;
+                while (hashes[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            hashes[slot] = hash;
+            expiries[slot] = now + windowNanos;
+            size++;
+            return true;
+        }
+
+        /**
+         * Marks an entry as expired. The entry stays in its slot, so the probe
+         * sequences of the entries after it are not broken, and is dropped by the
+         * next eviction.
+         */
+        synchronized void expire(long hash, long now) {
+            int slot = (int) hash & mask;
+            while (hashes[slot] != EMPTY) {
+                if (hashes[slot] == hash) {
+                    expiries[slot] = now;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Drops the expired entries and, if that does not free any room, the
+         * quarter of the entries that expire soonest. The remaining entries are
+         * placed again, since removing entries would otherwise break the probe
+         * sequences of the entries after them.
+         */
+        private void evict(long now) {
+            long cutoff = now;
+            int live = 0;
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != EMPTY && expiries[i] - now > 0) {
+                    live++;
+                }
+            }
+            if (live >= capacity) {
+                long[] liveExpiries = new long[live];
+                int next = 0;
+                for (int i = 0; i < hashes.length; i++) {
+                    if (hashes[i] != EMPTY && expiries[i] - now > 0) {
+                        liveExpiries[next++] = expiries[i] - now;
+                    }
+                }
+                Arrays.sort(liveExpiries);
+                cutoff = now + liveExpiries[live / 4];
+            }
+            long[] oldHashes = hashes;
+            long[] oldExpiries = expiries;
+            hashes = new long[oldHashes.length];
+            expiries = new long[oldExpiries.length];
+            size = 0;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldHashes[i] != EMPTY && oldExpiries[i] - cutoff > 0) {
+                    int slot = (int) oldHashes[i] & mask;
+                    while (hashes[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    hashes[slot] = oldHashes[i];
+                    expiries[slot] = oldExpiries[i];
+                    size++;
+                }
+            }
+        }
+    }
+}
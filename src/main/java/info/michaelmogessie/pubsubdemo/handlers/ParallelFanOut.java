@@ -0,0 +1,163 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.TextMessage;
+
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+
+/**
+ * Sends a published message to the subscribers of a topic in parallel once the
+ * topic has at least a threshold number of subscribers. Topics with fewer
+ * subscribers are sent to sequentially by the publishing thread.
+ *
+ * The subscribers are split into chunks, one per lane, each lane being a single
+ * thread. A subscriber always falls in the same lane, chosen by its client id,
+ * and the handler hands the chunks of a message to the lanes while holding the
+ * topic's lock, so every subscriber is sent the messages of a topic in the
+ * order they were published.
+ */
+@Component
+public class ParallelFanOut {
+    private final int threshold;
+    private final int laneCount;
+    private volatile ExecutorService[] lanes;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(ParallelFanOut.class);
+
+    /**
+     * Constructor for the parallel fan-out. Spring will inject the settings from
+     * the appropriate application.properties file.
+     *
+     * @param threshold How many subscribers a topic must have for its messages to
+     *                  be sent in parallel, or 0 to always send sequentially.
+     * @param laneCount How many threads to send with, or 0 for one per available
+     *                  processor.
+     */
+    @Autowired
+    public ParallelFanOut(@Value("${fanout.parallel.threshold}") int threshold,
+            @Value("${fanout.parallel.lanes}") int laneCount) {
+        this.threshold = threshold;
+        this.laneCount = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+    }
+
+    boolean isParallel(int subscriberCount) {
+        return threshold > 0 && subscriberCount >= threshold && laneCount > 1;
+    }
+
+    /**
+     * Splits the subscribers into chunks and hands each chunk to its lane. The
+     * caller must hold the topic's lock.
+     *
+     * @param subscribers      The subscribers of the topic.
+     * @param topic            The topic the message was published to.
+     * @param textMessage      The message as a ready-to-send frame.
+     * @param publishedMessage The message, kept for the subscribers it cannot be
+     *                         sent to.
+     * @return The chunks being sent, to be passed to {@link #await}.
+     */
+    List<Future<?>> submit(ClientInfo[] subscribers, String topic, TextMessage textMessage,
+            PublishedMessage publishedMessage) {
+        List<List<ClientInfo>> chunks = new ArrayList<>(laneCount);
+        int chunkCapacity = subscribers.length / laneCount + 1;
+        for (int i = 0; i < laneCount; i++) {
+            chunks.add(new ArrayList<>(chunkCapacity));
+        }
+        for (ClientInfo clientInfo : subscribers) {
+            chunks.get(laneOf(clientInfo.getClientId())).add(clientInfo);
+        }
+        ExecutorService[] executors = getLanes();
+        List<Future<?>> pending = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            List<ClientInfo> chunk = chunks.get(i);
+            if (!chunk.isEmpty()) {
+                pending.add(executors[i].submit(() -> {
+                    for (ClientInfo clientInfo : chunk) {
+                        WebSocketHandler.deliver(clientInfo, topic, textMessage, publishedMessage);
+                    }
+                }));
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Waits until every chunk of a message has been sent, so that publishing
+     * returns only once the message has been handed to all subscribers, as with
+     * the sequential path. An interrupt does not cut the wait short, since the
+     * publisher's next message must not be sent before this one; the thread's
+     * interrupt flag is set again once all chunks are done.
+     *
+     * @param pending The chunks returned by {@link #submit}.
+     */
+    void await(List<Future<?>> pending) {
+        boolean interrupted = false;
+        for (Future<?> chunk : pending) {
+            while (true) {
+                try {
+                    chunk.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    logger.error(e.getCause().getMessage());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int laneOf(String clientId) {
+        return (clientId.hashCode() & Integer.MAX_VALUE) % laneCount;
+    }
+
+    private ExecutorService[] getLanes() {
+        if (lanes == null) {
+            synchronized (this) {
+                if (lanes == null) {
+                    ExecutorService[] executors = new ExecutorService[laneCount];
+                    for (int i = 0; i < laneCount; i++) {
+                        String name = "fanout-" + i;
+                        executors[i] = Executors.newSingleThreadExecutor(runnable -> {
+                            Thread thread = new Thread(runnable, name);
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                    }
+                    lanes = executors;
+                }
+            }
+        }
+        return lanes;
+    }
+
+    /**
+     * Stops the lanes when the service shuts down, after they have sent what was
+     * handed to them.
+     */
+    @PreDestroy
+    public void close() {
+        if (lanes != null) {
+            for (ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+        }
+    }
+}
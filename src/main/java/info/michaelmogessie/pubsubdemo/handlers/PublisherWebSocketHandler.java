@@ -0,0 +1,243 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.excpetions.RateLimitExceededException;
+import info.michaelmogessie.pubsubdemo.excpetions.TopicNotFoundException;
+import info.michaelmogessie.pubsubdemo.limits.LoadShedder;
+import info.michaelmogessie.pubsubdemo.limits.RateLimiter;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+import info.michaelmogessie.pubsubdemo.scheduling.ScheduledPublisher;
+
+/**
+ * This is the websocket handler for publishers. A publisher keeps one
+ * connection open and sends each message as a text frame holding the same JSON
+ * that would be posted to the /topics resource, or a JSON array of such
+ * messages. Every message is handed to {@link WebSocketHandler#publish} as soon
+ * as it is read.
+ *
+ * Messages are numbered per connection, starting at 1. If a message cannot be
+ * published the publisher is sent "ERROR {number} {reason}", for example when
+ * it has no topic or body. Acknowledgements
+ * are optional: connecting with ?ack=N makes the handler send "ACK {number}"
+ * after every N messages, meaning all messages up to and including that number
+ * have been handled.
+ *
+ * A message with a deliverAt or delay in the future is handed to the
+ * {@link ScheduledPublisher} instead, like on the /topics resource, and counts
+ * as handled once it has been scheduled.
+ *
+ * Publishers are rate limited like on the /topics resource, identified by the
+ * same header sent with the handshake or by their remote address. A message
+ * over the limit is answered with "ERROR {number} RATE LIMIT EXCEEDED
+ * {seconds}", the number of seconds being how long to wait before retrying.
+ * Likewise, while subscribers cannot keep up a message is answered with "ERROR
+ * {number} SERVICE OVERLOADED {seconds}".
+ */
+@Component
+public class PublisherWebSocketHandler extends TextWebSocketHandler {
+
+    // The state of each connected publisher, keyed by session id.
+    private final Map<String, PublisherState> publishers = new ConcurrentHashMap<>();
+    private final ObjectReader messageReader;
+    private final ObjectReader messageArrayReader;
+    private final RateLimiter rateLimiter;
+    private final LoadShedder loadShedder;
+    private final ScheduledPublisher scheduledPublisher;
+    // Some string values, declared here to avoid repetition in use.
+    private static final String ACK = "ack";
+    private static final String ACK_PREFIX = "ACK ";
+    private static final String ERROR_PREFIX = "ERROR ";
+    private static final String MESSAGE_MALFORMED_PAYLOAD = "MESSAGE PAYLOAD IS INVALID.";
+    private static final String MESSAGE_TOO_FAR_AHEAD = "MESSAGE IS SCHEDULED TOO FAR AHEAD.";
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(PublisherWebSocketHandler.class);
+
+    public PublisherWebSocketHandler(ObjectMapper objectMapper, RateLimiter rateLimiter, LoadShedder loadShedder,
+            ScheduledPublisher scheduledPublisher) {
+        this.messageReader = objectMapper.readerFor(Message.class);
+        this.messageArrayReader = objectMapper.readerFor(Message[].class);
+        this.rateLimiter = rateLimiter;
+        this.loadShedder = loadShedder;
+        this.scheduledPublisher = scheduledPublisher;
+    }
+
+    /**
+     * This method is called after a publisher has connected. It reads how often
+     * the publisher wants to be sent acknowledgements.
+     *
+     * @param session The publisher's websocket session.
+     */
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        int ackEvery = 0;
+        try {
+            MultiValueMap<String, String> queryParams = UriComponentsBuilder.fromUriString(session.getUri().toString())
+                    .build().getQueryParams();
+            if (queryParams.containsKey(ACK)) {
+                ackEvery = Integer.parseInt(queryParams.getFirst(ACK));
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            session.close(CloseStatus.BAD_DATA);
+            return;
+        }
+        publishers.put(session.getId(), new PublisherState(ackEvery, getPublisherIdentity(session)));
+    }
+
+    /**
+     * This method publishes the message or messages in a frame sent by a
+     * publisher.
+     *
+     * @param session     The publisher's websocket session.
+     * @param textMessage The frame that has been received from the publisher.
+     */
+    @Override
+    public void handleTextMessage(WebSocketSession session, TextMessage textMessage) {
+        PublisherState publisherState = publishers.computeIfAbsent(session.getId(),
+                id -> new PublisherState(0, getPublisherIdentity(session)));
+        String payload = textMessage.getPayload();
+        Message[] messages;
+        try {
+            if (payload.trim().startsWith("[")) {
+                messages = messageArrayReader.readValue(payload);
+            } else {
+                messages = new Message[] { messageReader.readValue(payload) };
+            }
+        } catch (JsonProcessingException e) {
+            publisherState.received++;
+            send(session, ERROR_PREFIX + publisherState.received + " " + MESSAGE_MALFORMED_PAYLOAD);
+            acknowledgeIfDue(session, publisherState);
+            return;
+        }
+        for (Message message : messages) {
+            publisherState.received++;
+            if (message == null || message.getTopic() == null || message.getBody() == null
+                    || (message.getDeliverAt() != null && message.getDelay() != null)
+                    || (message.getDelay() != null && message.getDelay() < 0)) {
+                send(session, ERROR_PREFIX + publisherState.received + " " + MESSAGE_MALFORMED_PAYLOAD);
+                acknowledgeIfDue(session, publisherState);
+                continue;
+            }
+            try {
+                rateLimiter.acquire(message.getTopic(), publisherState.identity);
+                long deliverAt = getDeliverAt(message);
+                if (deliverAt > System.currentTimeMillis()) {
+                    try {
+                        scheduledPublisher.schedule(message.getTopic(),
+                                message.getBody().getBytes(StandardCharsets.UTF_8), message.getIdempotencyKey(),
+                                deliverAt);
+                    } catch (IllegalArgumentException e) {
+                        send(session, ERROR_PREFIX + publisherState.received + " " + MESSAGE_TOO_FAR_AHEAD);
+                    }
+                } else {
+                    loadShedder.check(message.getTopic());
+                    WebSocketHandler.publish(message);
+                }
+            } catch (TopicNotFoundException e) {
+                send(session, ERROR_PREFIX + publisherState.received + " " + e.getMessage());
+            } catch (RateLimitExceededException e) {
+                send(session, ERROR_PREFIX + publisherState.received + " " + e.getMessage() + " "
+                        + e.getRetryAfterSeconds());
+            } catch (OverloadedException e) {
+                send(session, ERROR_PREFIX + publisherState.received + " " + e.getMessage() + " "
+                        + e.getRetryAfterSeconds());
+            }
+            acknowledgeIfDue(session, publisherState);
+        }
+    }
+
+    /**
+     * @return When to publish the message, in milliseconds since the epoch, or 0
+     *         to publish it right away.
+     */
+    private static long getDeliverAt(Message message) {
+        if (message.getDelay() != null) {
+            return System.currentTimeMillis() + message.getDelay();
+        }
+        return message.getDeliverAt() != null ? message.getDeliverAt() : 0;
+    }
+
+    /**
+     * Identifies a publisher by the rate limiter's header, if it was sent with the
+     * handshake, or else by its remote address.
+     *
+     * @param session The publisher's websocket session.
+     * @return The publisher's identity, or null if it has none.
+     */
+    private String getPublisherIdentity(WebSocketSession session) {
+        if (session.getHandshakeHeaders() != null) {
+            String publisher = session.getHandshakeHeaders().getFirst(rateLimiter.getPublisherHeader());
+            if (publisher != null) {
+                return publisher;
+            }
+        }
+        return session.getRemoteAddress() != null ? session.getRemoteAddress().getAddress().getHostAddress() : null;
+    }
+
+    /**
+     * Sends an acknowledgement to the publisher if it has asked for one after this
+     * many messages.
+     *
+     * @param session        The publisher's websocket session.
+     * @param publisherState The publisher's state.
+     */
+    private void acknowledgeIfDue(WebSocketSession session, PublisherState publisherState) {
+        if (publisherState.ackEvery > 0 && publisherState.received % publisherState.ackEvery == 0) {
+            send(session, ACK_PREFIX + publisherState.received);
+        }
+    }
+
+    private void send(WebSocketSession session, String text) {
+        try {
+            WebSocketHandler.send(session, new TextMessage(text));
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * This method forgets a publisher's state when its connection closes.
+     *
+     * @param session The publisher's websocket session that is closed.
+     * @param status  The reason the connection was closed.
+     */
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        publishers.remove(session.getId());
+    }
+
+    /**
+     * The state of a connected publisher. Frames from one session are handled one
+     * at a time, so the fields need no synchronization.
+     */
+    private static class PublisherState {
+        private final int ackEvery;
+        private final String identity;
+        private long received;
+
+        public PublisherState(int ackEvery, String identity) {
+            this.ackEvery = ackEvery;
+            this.identity = identity;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.ToIntFunction;
+
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+
+/**
+ * The members of a shared subscription to a topic. Each message published to
+ * the topic is sent to only one member of the group, so a fleet of consumers
+ * can split the messages between them.
+ *
+ * Members are picked either in turn (round-robin) or by how many messages are
+ * waiting to be sent to them (least-loaded): the messages being sent to them
+ * right now plus those held back by the coalescer. Ties between equally loaded
+ * members are broken in turn.
+ *
+ * The number of messages being sent to a member is kept next to the member
+ * itself, so picking a member reads it without looking the member up.
+ */
+public class SubscriberGroup {
+
+    /**
+     * How a group picks the member to send a message to.
+     */
+    public enum Balancing {
+        ROUND_ROBIN, LEAST_LOADED;
+
+        /**
+         * Reads a balancing setting such as "round-robin" or "least-loaded".
+         */
+        public static Balancing parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // Replaced, never modified, when a member joins or leaves, so messages can be
+    // sent to the members without taking the lock.
+    private volatile Member[] members = new Member[0];
+    private final AtomicInteger turn = new AtomicInteger();
+
+    /**
+     * @return Whether the client joined the group, false if it was a member
+     *         already.
+     */
+    synchronized boolean add(ClientInfo clientInfo) {
+        if (indexOf(members, clientInfo) >= 0) {
+            return false;
+        }
+        Member[] joined = Arrays.copyOf(members, members.length + 1);
+        joined[members.length] = new Member(clientInfo);
+        members = joined;
+        return true;
+    }
+
+    /**
+     * @return Whether the client left the group, false if it was not a member.
+     */
+    synchronized boolean remove(ClientInfo clientInfo) {
+        int index = indexOf(members, clientInfo);
+        if (index < 0) {
+            return false;
+        }
+        Member[] left = new Member[members.length - 1];
+        System.arraycopy(members, 0, left, 0, index);
+        System.arraycopy(members, index + 1, left, index, left.length - index);
+        members = left;
+        return true;
+    }
+
+    boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    /**
+     * Picks the member to send a message to.
+     *
+     * @param balancing The way to pick the member.
+     * @param queued    The number of messages held back for a client, by its id.
+     * @return The member, or null if the group has no members.
+     */
+    ClientInfo pick(Balancing balancing, ToIntFunction<String> queued) {
+        return pick(balancing, queued, Collections.emptySet());
+    }
+
+    /**
+     * Picks the member to send a message to, passing over the members it could
+     * not be sent to already.
+     *
+     * @param balancing The way to pick the member.
+     * @param queued    The number of messages held back for a client, by its id.
+     * @param tried     The members the message could not be sent to.
+     * @return The member, or null if the group has no other members.
+     */
+    ClientInfo pick(Balancing balancing, ToIntFunction<String> queued, Set<ClientInfo> tried) {
+        Member[] current = members;
+        if (current.length == 0) {
+            return null;
+        }
+        int start = Math.floorMod(turn.getAndIncrement(), current.length);
+        Member picked = null;
+        int leastLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < current.length && leastLoad > 0; i++) {
+            Member member = current[(start + i) % current.length];
+            if (tried.contains(member.clientInfo)) {
+                continue;
+            }
+            if (balancing == Balancing.ROUND_ROBIN) {
+                return member.clientInfo;
+            }
+            int load = member.inFlight + queued.applyAsInt(member.clientInfo.getClientId());
+            if (load < leastLoad) {
+                picked = member;
+                leastLoad = load;
+            }
+        }
+        return picked == null ? null : picked.clientInfo;
+    }
+
+    /**
+     * Records that a message is being sent to a member, until {@link #sent} is
+     * called.
+     */
+    void sending(ClientInfo clientInfo) {
+        Member[] current = members;
+        int index = indexOf(current, clientInfo);
+        if (index >= 0) {
+            Member.IN_FLIGHT.incrementAndGet(current[index]);
+        }
+    }
+
+    void sent(ClientInfo clientInfo) {
+        Member[] current = members;
+        int index = indexOf(current, clientInfo);
+        if (index >= 0) {
+            Member.IN_FLIGHT.decrementAndGet(current[index]);
+        }
+    }
+
+    public ClientInfo[] getMembers() {
+        Member[] current = members;
+        ClientInfo[] clientInfos = new ClientInfo[current.length];
+        for (int i = 0; i < current.length; i++) {
+            clientInfos[i] = current[i].clientInfo;
+        }
+        return clientInfos;
+    }
+
+    /**
+     * Finds a member, first by identity, which is how the member picked for a
+     * message is found again, then by client ID.
+     */
+    private static int indexOf(Member[] members, ClientInfo clientInfo) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i].clientInfo == clientInfo) {
+                return i;
+            }
+        }
+        for (int i = 0; i < members.length; i++) {
+            if (members[i].clientInfo.equals(clientInfo)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A member of the group and the number of messages being sent to it right
+     * now.
+     */
+    private static class Member {
+        private static final AtomicIntegerFieldUpdater<Member> IN_FLIGHT = AtomicIntegerFieldUpdater
+                .newUpdater(Member.class, "inFlight");
+
+        private final ClientInfo clientInfo;
+        private volatile int inFlight;
+
+        private Member(ClientInfo clientInfo) {
+            this.clientInfo = clientInfo;
+        }
+    }
+}
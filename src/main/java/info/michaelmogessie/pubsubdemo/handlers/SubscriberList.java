@@ -0,0 +1,122 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.Arrays;
+
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+
+/**
+ * The subscribers of a topic. Publishing sends to an immutable snapshot of the
+ * subscribers, taken without locking, while checking whether a client is
+ * subscribed looks its int client ID up instead of comparing it with every
+ * subscriber.
+ *
+ * A client is in the list at most once, and holds a reference to its ID in
+ * {@link ClientIds} for as long as it is. The subscribers are kept in an array
+ * together with the slot of every subscribed ID, so that adding and removing a
+ * subscriber take constant time: a removed subscriber's slot is filled with
+ * the last one. Changes are synchronized on the list and only mark the
+ * snapshot as out of date; the next snapshot copies the array once, however
+ * many clients subscribed and unsubscribed in between.
+ */
+public class SubscriberList {
+    private static final ClientInfo[] EMPTY = new ClientInfo[0];
+    private static final int INITIAL_CAPACITY = 4;
+    // The slot of an ID that is not subscribed.
+    private static final int NO_SLOT = -1;
+
+    private final ClientIds clientIds;
+    // The subscribers in their first count slots, and the ID of each.
+    private ClientInfo[] subscribers = new ClientInfo[INITIAL_CAPACITY];
+    private int[] subscriberIds = new int[INITIAL_CAPACITY];
+    private int count;
+    // The slot of every subscribed ID, indexed by the ID.
+    private int[] slots = new int[0];
+    // The subscribers as of the last change, or null if they have changed since
+    // the last snapshot was taken.
+    private volatile ClientInfo[] snapshot = EMPTY;
+
+    SubscriberList(ClientIds clientIds) {
+        this.clientIds = clientIds;
+    }
+
+    /**
+     * Adds a subscriber. A client that is subscribed already keeps its place and
+     * ID, but its entry is replaced, for example with one for a new session.
+     *
+     * @param clientInfo The subscriber.
+     * @return True if the client was not subscribed before.
+     */
+    public synchronized boolean add(ClientInfo clientInfo) {
+        int id = clientIds.acquire(clientInfo.getClientId());
+        snapshot = null;
+        int slot = slotOf(id);
+        if (slot != NO_SLOT) {
+            clientIds.release(id);
+            subscribers[slot] = clientInfo;
+            return false;
+        }
+        if (count == subscribers.length) {
+            subscribers = Arrays.copyOf(subscribers, count * 2);
+            subscriberIds = Arrays.copyOf(subscriberIds, count * 2);
+        }
+        if (id >= slots.length) {
+            int length = slots.length;
+            slots = Arrays.copyOf(slots, Math.max(id + 1, length * 2));
+            Arrays.fill(slots, length, slots.length, NO_SLOT);
+        }
+        subscribers[count] = clientInfo;
+        subscriberIds[count] = id;
+        slots[id] = count++;
+        return true;
+    }
+
+    /**
+     * Removes a subscriber.
+     *
+     * @param clientInfo The subscriber, or any client info with its client ID.
+     * @return True if the client was subscribed.
+     */
+    public synchronized boolean remove(ClientInfo clientInfo) {
+        int id = clientIds.get(clientInfo.getClientId());
+        int slot = slotOf(id);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        snapshot = null;
+        int last = --count;
+        subscribers[slot] = subscribers[last];
+        subscriberIds[slot] = subscriberIds[last];
+        slots[subscriberIds[slot]] = slot;
+        subscribers[last] = null;
+        slots[id] = NO_SLOT;
+        clientIds.release(id);
+        return true;
+    }
+
+    /**
+     * @param clientInfo Any client info with the client ID to look for.
+     * @return True if the client is subscribed.
+     */
+    public synchronized boolean contains(ClientInfo clientInfo) {
+        return slotOf(clientIds.get(clientInfo.getClientId())) != NO_SLOT;
+    }
+
+    /**
+     * @return The subscribers at this moment, which must not be modified.
+     */
+    public ClientInfo[] snapshot() {
+        ClientInfo[] current = snapshot;
+        return current != null ? current : takeSnapshot();
+    }
+
+    private synchronized ClientInfo[] takeSnapshot() {
+        if (snapshot == null) {
+            snapshot = count == 0 ? EMPTY : Arrays.copyOf(subscribers, count);
+        }
+        return snapshot;
+    }
+
+    private int slotOf(int id) {
+        return id == ClientIds.NONE || id >= slots.length ? NO_SLOT : slots[id];
+    }
+}
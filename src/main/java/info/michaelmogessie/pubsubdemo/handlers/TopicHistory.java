@@ -0,0 +1,135 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.springframework.web.socket.TextMessage;
+
+import info.michaelmogessie.pubsubdemo.offheap.PayloadArena;
+
+/**
+ * A fixed-capacity ring buffer holding the most recent messages published to a
+ * topic. All slots are allocated up front, so appending a message only
+ * overwrites the oldest slot. The text of the messages is kept in a payload
+ * arena, off the heap, unless the arena cannot take it.
+ *
+ * Appends must be made by one thread at a time (the websocket handler appends
+ * while holding the topic's lock). Reads do not take any lock: every slot
+ * records the sequence number of the message it holds, and a reader only
+ * accepts a slot if that sequence number is the same before and after it has
+ * read the slot. A slot's chunk of the arena is only freed after its sequence
+ * number has changed, so a reader also discards text read from a freed chunk.
+ */
+public class TopicHistory {
+    // Written to a slot's sequence while the slot is being overwritten.
+    private static final long WRITING = -1;
+
+    private final int capacity;
+    private final PayloadArena arena;
+    // The arena handle of each slot's text, and the text itself if the arena could
+    // not take it.
+    private final AtomicLongArray handles;
+    private final AtomicReferenceArray<byte[]> heapPayloads;
+    private final AtomicIntegerArray lengths;
+    private final AtomicLongArray timestamps;
+    private final AtomicLongArray sequences;
+    // The sequence number the next appended message will get.
+    private volatile long nextSequence;
+
+    public TopicHistory(int capacity, PayloadArena arena) {
+        this.capacity = capacity;
+        this.arena = arena;
+        this.handles = new AtomicLongArray(capacity);
+        this.heapPayloads = new AtomicReferenceArray<>(capacity);
+        this.lengths = new AtomicIntegerArray(capacity);
+        this.timestamps = new AtomicLongArray(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, WRITING);
+            handles.set(i, PayloadArena.NONE);
+        }
+    }
+
+    /**
+     * Appends a message to the history, overwriting the oldest message if the
+     * buffer is full. Callers must not append concurrently.
+     *
+     * @param frame     The frame that was sent to the topic's subscribers.
+     * @param timestamp The time the message was published (milliseconds).
+     */
+    public void append(TextMessage frame, long timestamp) {
+        if (capacity == 0) {
+            return;
+        }
+        long sequence = nextSequence;
+        int slot = (int) (sequence % capacity);
+        sequences.set(slot, WRITING);
+        if (handles.get(slot) != PayloadArena.NONE) {
+            arena.free(handles.get(slot), lengths.get(slot));
+        }
+        byte[] payload = frame.asBytes();
+        long handle = arena.store(payload);
+        handles.set(slot, handle);
+        heapPayloads.set(slot, handle == PayloadArena.NONE ? payload : null);
+        lengths.set(slot, payload.length);
+        timestamps.set(slot, timestamp);
+        sequences.set(slot, sequence);
+        nextSequence = sequence + 1;
+    }
+
+    /**
+     * Returns the sequence number that the next appended message will get. All
+     * messages appended so far have a lower sequence number.
+     *
+     * @return The next sequence number.
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Reads the messages with a sequence number lower than {@code upTo}, oldest
+     * first, keeping at most the last {@code last} of them and only those
+     * published at or after {@code since}. Messages that have already been
+     * overwritten are skipped.
+     *
+     * @param upTo  The sequence number to stop at (exclusive).
+     * @param last  The maximum number of messages to return.
+     * @param since The earliest publish time to include (milliseconds).
+     * @return The matching messages as new frames, oldest first.
+     */
+    public List<TextMessage> read(long upTo, int last, long since) {
+        long from = Math.max(0, upTo - Math.min(last, capacity));
+        List<TextMessage> result = new ArrayList<>((int) (upTo - from));
+        for (long sequence = from; sequence < upTo; sequence++) {
+            int slot = (int) (sequence % capacity);
+            if (sequences.get(slot) != sequence) {
+                continue;
+            }
+            long handle = handles.get(slot);
+            byte[] payload = heapPayloads.get(slot);
+            int length = lengths.get(slot);
+            long timestamp = timestamps.get(slot);
+            if (sequences.get(slot) != sequence || timestamp < since) {
+                continue;
+            }
+            if (payload == null) {
+                // The handle and length are known to belong together now, but the chunk
+                // may still be freed while it is copied.
+                payload = arena.read(handle, length);
+                if (sequences.get(slot) != sequence) {
+                    continue;
+                }
+            }
+            result.add(new TextMessage(payload));
+        }
+        return result;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,78 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of how busy the delivery of a topic's messages is: how many
+ * publishes to the topic are waiting in a dispatch pool, how many are being
+ * sent to subscribers right now, and how long
+ * sending a message to all subscribers has taken lately, as an exponentially
+ * weighted moving average.
+ *
+ * The average is updated without locking, so a sample may occasionally be lost
+ * when publishes finish at the same time, which does not matter for a load
+ * signal.
+ */
+public class TopicLoad {
+    // The weight of the newest sample in the moving average, as a shift: 1/8.
+    private static final int SAMPLE_WEIGHT_SHIFT = 3;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long averageDispatchNanos;
+
+    /**
+     * Records that a publish has been accepted by a dispatch pool and waits for
+     * one of its threads.
+     */
+    void queued() {
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Records that a publish no longer waits in a dispatch pool, because a thread
+     * has taken it or the pool has turned it away.
+     */
+    void dequeued() {
+        queued.decrementAndGet();
+    }
+
+    /**
+     * Records that a publish has started sending a message to subscribers.
+     *
+     * @return The time it started, to pass to {@link #publishFinished}.
+     */
+    long publishStarted() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void publishFinished(long startedNanos) {
+        long sample = System.nanoTime() - startedNanos;
+        long average = averageDispatchNanos;
+        averageDispatchNanos = average + ((sample - average) >> SAMPLE_WEIGHT_SHIFT);
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return How many publishes to the topic are waiting in a dispatch pool.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return How many publishes to the topic are being sent to subscribers.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return How long sending a message to all the topic's subscribers has taken
+     *         lately (nanoseconds).
+     */
+    public long getAverageDispatchNanos() {
+        return averageDispatchNanos;
+    }
+}
@@ -1,28 +1,47 @@
 package info.michaelmogessie.pubsubdemo.handlers;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
 import info.michaelmogessie.pubsubdemo.excpetions.TopicNotFoundException;
+import info.michaelmogessie.pubsubdemo.flightrecorder.FlightRecorderEvents;
+import info.michaelmogessie.pubsubdemo.handlers.CommandParser.Action;
+import info.michaelmogessie.pubsubdemo.handlers.CommandParser.CommandError;
+import info.michaelmogessie.pubsubdemo.offheap.PayloadArena;
+import info.michaelmogessie.pubsubdemo.persistence.Journal;
 import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
 import info.michaelmogessie.pubsubdemo.pojos.Message;
 import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+import info.michaelmogessie.pubsubdemo.receipts.DeliveryReceipt;
 
 /**
  * This is the websocket handler class for the pubsub implementaton. It handles
@@ -33,13 +52,57 @@ import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
 @Component
 public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
 
-    // A map containing a list of clients subscribed to topics.
-    private static Map<String, List<ClientInfo>> topicSubscriberMap = new HashMap<>();
+    // Gives each client an int ID for the sets of clients below. Replaced along
+    // with the subscribers and unreceived messages that refer to it.
+    private static ClientIds clientIds = new ClientIds();
+    // A map containing a list of clients subscribed to topics. Publishing sends
+    // to a snapshot of each list while clients subscribe and unsubscribe, and the
+    // lists index the subscribers by their int IDs.
+    private static Map<String, SubscriberList> topicSubscriberMap = new HashMap<>();
+    // A map containing the shared subscriptions to each topic by group name. Each
+    // message is sent to one member of each group. Groups are created and removed
+    // while holding the lock on the topic subscriber map.
+    private static Map<String, Map<String, SubscriberGroup>> topicGroups = new ConcurrentHashMap<>();
+    // How groups pick the member to send a message to.
+    private static SubscriberGroup.Balancing groupBalancing = SubscriberGroup.Balancing.ROUND_ROBIN;
     // A map containing published messages that have not been received yet and the
-    // clients that have not received them.
+    // clients that have not received them, oldest first.
     // Any message that has either been received by all clients or whose ttl has
-    // expired will be eventually removed from this map.
-    private static Map<PublishedMessage, List<String>> unreceivedMessages = new HashMap<>();
+    // expired will be eventually removed from this map, and the oldest messages are
+    // evicted early when the backlog budget is exceeded. Each message holds a
+    // reference to the int IDs of its clients.
+    private static Map<PublishedMessage, ClientIdSet> unreceivedMessages = new LinkedHashMap<>();
+    // Accounts for the memory taken by the unreceived messages. Guarded by the
+    // unreceived messages map.
+    private static BacklogBudget backlogBudget = new BacklogBudget(0, 0, clientIds);
+    // Holds the text of the unreceived messages and of the topic histories off the
+    // heap. The retained messages stay on the heap as ready-to-send frames, since
+    // there is only one per topic and it is sent as-is to every new subscriber.
+    private static PayloadArena payloadArena = new PayloadArena(0, PayloadArena.MIN_CHUNK_SIZE);
+    // A map containing the last message published to each topic. The message is
+    // kept as a ready-to-send frame so that it can be handed to new subscribers
+    // as-is, without encoding it again for each of them.
+    private static Map<String, TextMessage> retainedMessages = new ConcurrentHashMap<>();
+    // A map containing the recent message history of each topic. Each history also
+    // serves as the topic's lock, which is held while a message is recorded or a
+    // client starts catching up, so no message is missed or sent twice when a
+    // client switches from replayed to live messages.
+    private static Map<String, TopicHistory> topicHistories = new ConcurrentHashMap<>();
+    // A map containing, for each topic, the clients that are still being sent
+    // retained or replayed messages. Messages published in the meantime are queued
+    // for them until they have caught up. Guarded by the topic's history.
+    private static Map<String, List<ReplayingSubscriber>> replayingSubscribers = new ConcurrentHashMap<>();
+    // A map containing how busy the delivery of each topic's messages is, which the
+    // load shedder reads to turn publishers away when subscribers fall behind.
+    private static Map<String, TopicLoad> topicLoads = new ConcurrentHashMap<>();
+    // A map containing the clients whose subscriptions were restored after a
+    // restart but who have not reconnected yet, and the time (milliseconds) until
+    // which their subscriptions are kept. Messages published to them in the
+    // meantime are kept as unreceived messages.
+    private static Map<String, Long> dormantClients = new ConcurrentHashMap<>();
+    // Receives every change to the subscriptions and unreceived messages, so they
+    // can be persisted.
+    private static Journal journal = Journal.NONE;
     // How often to run the housekeeping thread that discards unreceived messages.
     private int houseKeepingThreadSleepDurationMilliseconds;
     // Some string values, decalred here to avoid repitition in use.
@@ -47,13 +110,58 @@ public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
     private static final String MESSAGE_TOPIC_NOT_FOUND = "COULD NOT UNSUBSCRIBE. TOPIC NOT FOUND.";
     public static final String MESSAGE_NOT_SUBSCRIBED = "YOU ARE NOT SUBSCRIBED TO THIS TOPIC";
     private static final String MESSAGE_MALFORMED_PAYLOAD = "MESSAGE PAYLOAD IS INVALID.";
-    private static final String TOPIC_ACTION_SUBSCRIBE = "subscribe";
-    private static final String TOPIC_ACTION_UNSUBSCRIBE = "unsubscribe";
-    private static final String MESSAGE_NO_SUCH_ACTION = "The only allowed actions are subscribe and unsubscribe";
+    private static final int DEFAULT_HISTORY_CAPACITY = 256;
+    private static final long DEFAULT_BACKLOG_GLOBAL_BUDGET_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_BACKLOG_CLIENT_BUDGET_BYTES = 1024L * 1024;
+    private static final long DEFAULT_PAYLOAD_ARENA_CAPACITY_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_PAYLOAD_ARENA_SLAB_BYTES = 1024 * 1024;
+    private static final long DEFAULT_COALESCING_WINDOW_MAX_MILLISECONDS = 5;
+    private static final int DEFAULT_COALESCING_MAX_BYTES = 64 * 1024;
+    private static final int DEFAULT_IDEMPOTENCY_CAPACITY = 64 * 1024;
+    private static final long DEFAULT_IDEMPOTENCY_WINDOW_MILLISECONDS = 60000;
+    // Packs messages sent in quick succession into batch frames, for the topics and
+    // clients that use it.
+    private static Coalescer coalescer = new Coalescer(Collections.emptyList(),
+            DEFAULT_COALESCING_WINDOW_MAX_MILLISECONDS, DEFAULT_COALESCING_MAX_BYTES);
+    // Sends messages to topics with many subscribers in parallel. Until one is set
+    // every topic is sent to sequentially.
+    private static ParallelFanOut parallelFanOut = new ParallelFanOut(0, 1);
+    // Recognizes messages that are published again with the same idempotency key.
+    private static IdempotencyCache idempotencyCache = new IdempotencyCache(DEFAULT_IDEMPOTENCY_CAPACITY,
+            DEFAULT_IDEMPOTENCY_WINDOW_MILLISECONDS);
+    // Pings the subscribers and reaps those that stop answering. Until one is set
+    // nobody is pinged.
+    private static Heartbeat heartbeat = new Heartbeat(0, 1, 0);
+    // Sends the messages published to the topics of isolated pools on the pools'
+    // own threads. Until one is set every topic is sent to by the publisher.
+    private static DispatchPools dispatchPools = new DispatchPools(Collections.emptyMap(), 1, 1, 0);
+    // Parses the commands sent by clients. It is rebuilt whenever the topics are
+    // initialized, since it only recognizes known topics.
+    private static CommandParser commandParser;
+    // Each thread that handles client messages reuses its own command batch.
+    private static final ThreadLocal<CommandBatch> commandBatches = ThreadLocal.withInitial(CommandBatch::new);
+    private static final String MESSAGE_NO_SUCH_ACTION = "The only allowed actions are subscribe, unsubscribe, "
+            + "subscribe-group and unsubscribe-group";
 
     // Initialize SLF4J logger.
     private static Logger logger = LoggerFactory.getLogger(WebSocketHandler.class);
 
+    /**
+     * Constructor for the websocket hander that keeps the default number of
+     * messages in each topic's history and uses the default backlog budgets and
+     * payload arena size.
+     * 
+     * @param topics                                      The list of topics.
+     * @param houseKeepingThreadSleepDurationMilliseconds How often to run the
+     *                                                    housekeeping thread
+     *                                                    (milliseconds).
+     */
+    public WebSocketHandler(List<String> topics, int houseKeepingThreadSleepDurationMilliseconds) {
+        this(topics, houseKeepingThreadSleepDurationMilliseconds, DEFAULT_HISTORY_CAPACITY,
+                DEFAULT_BACKLOG_GLOBAL_BUDGET_BYTES, DEFAULT_BACKLOG_CLIENT_BUDGET_BYTES,
+                DEFAULT_PAYLOAD_ARENA_CAPACITY_BYTES, DEFAULT_PAYLOAD_ARENA_SLAB_BYTES);
+    }
+
     /**
      * Constructor for the websocket hander. Spring will inject the list of topics
      * from the appropriate application.properties file (dev, prod) and a setting
@@ -66,14 +174,59 @@ public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
      * @param houseKeepingThreadSleepDurationMilliseconds How often to run the
      *                                                    housekeeping thread
      *                                                    (milliseconds).
+     * @param historyCapacity                             How many recent messages
+     *                                                    to keep per topic for
+     *                                                    replay.
+     * @param backlogGlobalBudgetBytes                    How many bytes all
+     *                                                    unreceived messages may
+     *                                                    take, or 0 for no limit.
+     * @param backlogClientBudgetBytes                    How many bytes the
+     *                                                    messages a single client
+     *                                                    has not received may take,
+     *                                                    or 0 for no limit.
+     * @param payloadArenaCapacityBytes                   How many bytes of memory
+     *                                                    off the heap may hold the
+     *                                                    text of unreceived and
+     *                                                    historical messages.
+     * @param payloadArenaSlabBytes                       How many bytes to take
+     *                                                    off the heap at a time.
      */
+    @Autowired
     public WebSocketHandler(@Value("#{${message.topics}}") List<String> topics,
-            @Value("${housekeepingthread.sleepduration.milliseconds}") int houseKeepingThreadSleepDurationMilliseconds) {
+            @Value("${housekeepingthread.sleepduration.milliseconds}") int houseKeepingThreadSleepDurationMilliseconds,
+            @Value("${message.history.capacity}") int historyCapacity,
+            @Value("${backlog.budget.global.bytes}") long backlogGlobalBudgetBytes,
+            @Value("${backlog.budget.client.bytes}") long backlogClientBudgetBytes,
+            @Value("${payload.arena.capacity.bytes}") long payloadArenaCapacityBytes,
+            @Value("${payload.arena.slab.bytes}") int payloadArenaSlabBytes) {
         this.houseKeepingThreadSleepDurationMilliseconds = houseKeepingThreadSleepDurationMilliseconds;
+        retainedMessages.clear();
+        dormantClients.clear();
+        synchronized (unreceivedMessages) {
+            unreceivedMessages.clear();
+            clientIds = new ClientIds();
+            payloadArena = new PayloadArena(payloadArenaCapacityBytes, payloadArenaSlabBytes);
+            backlogBudget = new BacklogBudget(backlogGlobalBudgetBytes, backlogClientBudgetBytes, clientIds);
+        }
         topics.stream().forEach(topic -> {
-            topicSubscriberMap.put(topic, new ArrayList<>());
+            initializeTopic(topic, historyCapacity);
         });
-        topicSubscriberMap.put("temperature", new ArrayList<>());
+        initializeTopic("temperature", historyCapacity);
+        commandParser = new CommandParser(topicSubscriberMap.keySet());
+    }
+
+    /**
+     * Sets up an empty subscriber list, history and replay queue for a topic.
+     * 
+     * @param topic           The topic.
+     * @param historyCapacity How many recent messages to keep for the topic.
+     */
+    private static void initializeTopic(String topic, int historyCapacity) {
+        topicSubscriberMap.put(topic, new SubscriberList(clientIds));
+        topicGroups.put(topic, new ConcurrentHashMap<>());
+        topicHistories.put(topic, new TopicHistory(historyCapacity, payloadArena));
+        replayingSubscribers.put(topic, new ArrayList<>());
+        topicLoads.put(topic, new TopicLoad());
     }
 
     /**
@@ -81,16 +234,23 @@ public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
      * and a client.
      * If the client had been disconnected earlier and has some unreceived messages,
      * the pubsub service will attempt to send it all the active messages that it
-     * has not received yet.
+     * has not received yet. A client that connects with ?coalesce=true is sent
+     * its messages in batch frames. From now on the client is pinged by the
+     * heartbeat.
      * 
      * @param session The websocket session.
      */
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        heartbeat.addSession(session);
         try {
             MultiValueMap<String, String> queryParams = UriComponentsBuilder.fromUriString(session.getUri().toString())
                     .build().getQueryParams();
+            if (Boolean.parseBoolean(queryParams.getFirst(Coalescer.QUERY_PARAMETER))) {
+                coalescer.addSession(session.getId());
+            }
             if (queryParams.containsKey(CLIENT_ID)) {
+                reclaimSubscriptions(queryParams.getFirst(CLIENT_ID), session);
                 deliverUnreceivedMessages(queryParams.getFirst(CLIENT_ID), session);
             }
         } catch (Exception e) {
@@ -101,85 +261,215 @@ public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
     }
 
     /**
-     * This method handles messages that are sent by clients. The messages are one
-     * of:
-     * subscribe - subscribe to a topic
-     * unsubscribe - unsubscribe from a topic or
+     * This method handles messages that are sent by clients. A message holds one or
+     * more commands, separated by new lines or semicolons, each being one of:
+     * subscribe - subscribe to a topic (the last message published to the topic,
+     * if any, is sent to the client right away). subscribe?last=N and
+     * subscribe?since=T (milliseconds since the epoch) instead replay the topic's
+     * recent history before switching to live messages
+     * unsubscribe - unsubscribe from a topic
+     * subscribe-group/{name} and unsubscribe-group/{name} - join or leave a shared
+     * subscription, where each message is sent to only one member of the group
      * clientId - to allow a client to get it's connection Id so it can use it to
      * establish a new connection and obtain unreceived messages in the event of the
      * socket closing due to an error.
+     * All the subscriptions and unsubscriptions in a message are applied to the
+     * topic subscriber map together, in order. A client that is still catching up
+     * with a topic it subscribed to earlier in the message counts as subscribed, so
+     * unsubscribing stops it from being added to the subscribers once it has been
+     * sent its retained or replayed messages.
      * 
      * @param session     The websocket session.
      * @param textMessage The message that has been received from the client.
      */
     @Override
     public void handleTextMessage(WebSocketSession session, TextMessage textMessage) {
-        String message = textMessage.getPayload();
-        String[] topicAndAction = message.split("/");
-        if (topicAndAction.length != 2) {
-            try {
-                session.sendMessage(new TextMessage(MESSAGE_MALFORMED_PAYLOAD));
-            } catch (IOException e) {
-                logger.error(e.getMessage());
+        CommandBatch commandBatch = commandBatches.get();
+        commandParser.parse(textMessage.getPayload(), commandBatch);
+        ClientInfo clientInfo = new ClientInfo.Builder().clientId(session.getId()).webSocketSession(session).build();
+        List<ReplayingSubscriber> catchingUp = null;
+        // We must modify the map in a synchronized manner due to multiple clients.
+        synchronized (topicSubscriberMap) {
+            for (int i = 0; i < commandBatch.size(); i++) {
+                if (commandBatch.getError(i) != null) {
+                    continue;
+                }
+                String topic = commandBatch.getTopic(i);
+                if (commandBatch.getAction(i) == Action.SUBSCRIBE) {
+                    ReplayingSubscriber replayingSubscriber = startSubscription(clientInfo, topic,
+                            commandBatch.isReplay(i), commandBatch.getLast(i), commandBatch.getSince(i));
+                    if (replayingSubscriber != null) {
+                        if (catchingUp == null) {
+                            catchingUp = new ArrayList<>();
+                        }
+                        catchingUp.add(replayingSubscriber);
+                    }
+                } else if (commandBatch.getAction(i) == Action.UNSUBSCRIBE) {
+                    if (topicSubscriberMap.get(topic).remove(clientInfo) || stopCatchingUp(clientInfo, topic)) {
+                        journal.unsubscribed(session.getId(), topic);
+                    } else {
+                        commandBatch.reject(i, CommandError.NOT_SUBSCRIBED);
+                    }
+                } else if (commandBatch.getAction(i) == Action.SUBSCRIBE_GROUP) {
+                    topicGroups.get(topic).computeIfAbsent(commandBatch.getGroup(i), name -> new SubscriberGroup())
+                            .add(clientInfo);
+                } else if (commandBatch.getAction(i) == Action.UNSUBSCRIBE_GROUP) {
+                    SubscriberGroup group = topicGroups.get(topic).get(commandBatch.getGroup(i));
+                    if (group != null && group.remove(clientInfo)) {
+                        if (group.isEmpty()) {
+                            topicGroups.get(topic).remove(commandBatch.getGroup(i));
+                        }
+                    } else {
+                        commandBatch.reject(i, CommandError.NOT_SUBSCRIBED);
+                    }
+                }
             }
-            return;
         }
-        if (!topicSubscriberMap.containsKey(topicAndAction[0])) {
-            try {
-                session.sendMessage(new TextMessage(MESSAGE_TOPIC_NOT_FOUND));
-            } catch (IOException e) {
-                logger.error(e.getMessage());
+        for (int i = 0; i < commandBatch.size(); i++) {
+            if (commandBatch.getError(i) != null) {
+                reply(session, getErrorMessage(commandBatch.getError(i)));
+            } else if (commandBatch.getAction(i) == Action.CLIENT_ID) {
+                reply(session, session.getId());
             }
-            return;
         }
-        if (topicAndAction[1].equals(TOPIC_ACTION_UNSUBSCRIBE)) {
-            Optional<ClientInfo> clientInfo = getClientInfo(session, topicAndAction[0]);
-            if (!clientInfo.isPresent()) {
-                try {
-                    session.sendMessage(new TextMessage(MESSAGE_NOT_SUBSCRIBED));
-                } catch (IOException e) {
-                    logger.error(e.getMessage());
-                }
-                return;
+        if (catchingUp != null) {
+            for (ReplayingSubscriber replayingSubscriber : catchingUp) {
+                catchUp(replayingSubscriber);
             }
-            // We must modify the map in a synchronized manner due to multiple clients.
-            synchronized (topicSubscriberMap) {
-                topicSubscriberMap.get(topicAndAction[0]).remove(clientInfo.get());
-            }
-        } else if (topicAndAction[1].equals(TOPIC_ACTION_SUBSCRIBE)) {
-            ClientInfo clientInfo = new ClientInfo.Builder().clientId(session.getId()).webSocketSession(session)
-                    .build();
-            // We must modify the map in a synchronized manner due to multiple clients.
-            synchronized (topicSubscriberMap) {
-                topicSubscriberMap.get(topicAndAction[0]).add(clientInfo);
-            }
-        } else if (topicAndAction[1].equals(CLIENT_ID)) {
-            try {
-                session.sendMessage(new TextMessage(session.getId()));
-            } catch (IOException e) {
-                logger.error(e.getMessage());
-            }
-        } else {
-            try {
-                session.sendMessage(new TextMessage(MESSAGE_NO_SUCH_ACTION));
-            } catch (IOException e) {
-                logger.error(e.getMessage());
+        }
+    }
+
+    private static String getErrorMessage(CommandError error) {
+        switch (error) {
+            case TOPIC_NOT_FOUND:
+                return MESSAGE_TOPIC_NOT_FOUND;
+            case NO_SUCH_ACTION:
+                return MESSAGE_NO_SUCH_ACTION;
+            case NOT_SUBSCRIBED:
+                return MESSAGE_NOT_SUBSCRIBED;
+            default:
+                return MESSAGE_MALFORMED_PAYLOAD;
+        }
+    }
+
+    private static void reply(WebSocketSession session, String text) {
+        try {
+            send(session, new TextMessage(text));
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+
+    /**
+     * This method subscribes a client to a topic. Before the client starts
+     * receiving live messages it has to be sent either the last message published
+     * to the topic or, if a replay was requested, the matching messages from the
+     * topic's history. In that case the client is registered as catching up and
+     * returned, and the caller must then call {@link #catchUp}. Messages published
+     * in between are queued and sent right after, so the client sees every message
+     * exactly once and in order. The caller must hold the lock on the topic
+     * subscriber map.
+     * 
+     * @param clientInfo The client that is subscribing.
+     * @param topic      The topic the client is subscribing to.
+     * @param replay     Whether to replay the topic's history instead of sending
+     *                   the last published message.
+     * @param last       The maximum number of messages to replay.
+     * @param since      The earliest publish time of replayed messages
+     *                   (milliseconds).
+     * @return The client if it has to catch up, or null if it has been added to
+     *         the subscribers directly.
+     */
+    private static ReplayingSubscriber startSubscription(ClientInfo clientInfo, String topic, boolean replay,
+            int last, long since) {
+        TopicHistory history = topicHistories.get(topic);
+        journal.subscribed(clientInfo.getClientId(), topic);
+        synchronized (history) {
+            TextMessage retainedMessage = retainedMessages.get(topic);
+            if (!replay && retainedMessage == null) {
+                topicSubscriberMap.get(topic).add(clientInfo);
+                return null;
             }
+            ReplayingSubscriber replayingSubscriber = new ReplayingSubscriber(clientInfo, topic);
+            replayingSubscriber.replayUpTo = history.getNextSequence();
+            replayingSubscriber.replayLast = last;
+            replayingSubscriber.replaySince = since;
+            replayingSubscriber.retainedMessage = replay ? null : retainedMessage;
+            replayingSubscribers.get(topic).add(replayingSubscriber);
+            return replayingSubscriber;
         }
+    }
 
+    /**
+     * This method unsubscribes a client that is still catching up with a topic, so
+     * that it is not added to the topic's subscribers once it has caught up. The
+     * messages it is being sent to catch up are still sent.
+     * 
+     * @param clientInfo The client that is unsubscribing.
+     * @param topic      The topic the client is unsubscribing from.
+     * @return True if the client was catching up with the topic.
+     */
+    private static boolean stopCatchingUp(ClientInfo clientInfo, String topic) {
+        synchronized (topicHistories.get(topic)) {
+            return replayingSubscribers.get(topic)
+                    .removeIf(replayingSubscriber -> replayingSubscriber.clientInfo.equals(clientInfo));
+        }
     }
 
     /**
-     * A method that attempts to extract a ClientInfo from the topicSubscriberMap.
+     * This method sends a client that is catching up with a topic its retained or
+     * replayed messages, then the messages queued for it since it subscribed, and
+     * finally adds it to the topic's subscribers.
      * 
-     * @param session The client's websocket session.
-     * @param topic   The topic the client is subscribed to.
-     * @return An optional ClientInfo. Must be resolved by the caller to determine
-     *         if the client exists or not.
+     * @param replayingSubscriber The client that is catching up.
      */
-    private Optional<ClientInfo> getClientInfo(WebSocketSession session, String topic) {
-        return topicSubscriberMap.get(topic).stream()
-                .filter(ci -> ci.getWebSocketSession().getId().equals(session.getId())).findFirst();
+    private static void catchUp(ReplayingSubscriber replayingSubscriber) {
+        String topic = replayingSubscriber.topic;
+        TopicHistory history = topicHistories.get(topic);
+        ClientInfo clientInfo = replayingSubscriber.clientInfo;
+        // The history is read outside the topic's lock so that publishing to the topic
+        // is not held up while the messages are collected and sent.
+        List<TextMessage> backlog = replayingSubscriber.retainedMessage != null
+                ? Collections.singletonList(replayingSubscriber.retainedMessage)
+                : history.read(replayingSubscriber.replayUpTo, replayingSubscriber.replayLast,
+                        replayingSubscriber.replaySince);
+        for (TextMessage frame : backlog) {
+            sendCatchUpMessage(clientInfo, frame);
+        }
+        while (true) {
+            TextMessage frame;
+            synchronized (history) {
+                frame = replayingSubscriber.pendingMessages.poll();
+                if (frame == null) {
+                    // The client has caught up. It is only added to the subscribers if it did not
+                    // disconnect in the meantime.
+                    if (replayingSubscribers.get(topic).remove(replayingSubscriber)) {
+                        topicSubscriberMap.get(topic).add(clientInfo);
+                    }
+                    return;
+                }
+            }
+            sendCatchUpMessage(clientInfo, frame);
+        }
+    }
+
+    /**
+     * Sends a retained, replayed or queued message to a client that is catching up
+     * with a topic. If the message cannot be sent it is kept for the client like any
+     * other unreceived message.
+     * 
+     * @param clientInfo The client that is catching up.
+     * @param frame      The message to send.
+     */
+    private static void sendCatchUpMessage(ClientInfo clientInfo, TextMessage frame) {
+        try {
+            send(clientInfo.getWebSocketSession(), frame);
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            PublishedMessage publishedMessage = new PublishedMessage.Builder().payload(frame.asBytes()).build();
+            new WebSocketHandler.UnreceivedMessagesUpdater(publishedMessage, clientInfo).start();
+        }
     }
 
     /**
@@ -192,51 +482,398 @@ public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
      *                     bad.
      */
     private void deliverUnreceivedMessages(String clientId, WebSocketSession session) throws IOException {
-        // We must modify the map in a synchronized manner due to multiple clients.
-        synchronized (unreceivedMessages) {
-            for (PublishedMessage message : unreceivedMessages.keySet()) {
-                if (unreceivedMessages.get(message).contains(clientId)) {
-                    session.sendMessage(new TextMessage(message.getMessage()));
-                    unreceivedMessages.get(message).remove(clientId);
+        Object redeliveryEvent = FlightRecorderEvents.redeliveryStarted();
+        long lockRequested = redeliveryEvent != null ? System.nanoTime() : 0;
+        long lockWaitNanos = 0;
+        int delivered = 0;
+        try {
+            // We must modify the map in a synchronized manner due to multiple clients.
+            synchronized (unreceivedMessages) {
+                if (redeliveryEvent != null) {
+                    lockWaitNanos = System.nanoTime() - lockRequested;
+                }
+                // The client's ID cannot change while the lock is held if it has unreceived
+                // messages, since each of them holds a reference to it.
+                int id = clientIds.get(clientId);
+                if (id != ClientIds.NONE) {
+                    for (Map.Entry<PublishedMessage, ClientIdSet> entry : unreceivedMessages.entrySet()) {
+                        if (entry.getValue().contains(id)) {
+                            PublishedMessage message = entry.getKey();
+                            send(session, new TextMessage(message.getPayload()));
+                            entry.getValue().remove(id);
+                            backlogBudget.clientRemoved(message, id);
+                            journal.messageDelivered(message, clientId);
+                            clientIds.release(id);
+                            delivered++;
+                        }
+                    }
                 }
             }
+        } finally {
+            FlightRecorderEvents.redeliveryFinished(redeliveryEvent, clientId, delivered, lockWaitNanos);
         }
     }
 
     /**
-     * This method is called by the REST controller to relay messages from a
-     * publisher to all subscribers.
+     * This method is called by the publisher websocket handler to relay messages
+     * from a publisher to all subscribers. A message with an idempotency key that
+     * was published to the topic within the idempotency window is ignored.
      * 
      * @param message The message that is being relayed.
      * @throws TopicNotFoundException This exception is thrown if a publisher
      *                                attempts to publish a message to a topic that
      *                                does not exist.
+     * @throws OverloadedException    This exception is thrown if the topic belongs
+     *                                to a dispatch pool that cannot take any more
+     *                                messages.
      */
-    public static void publish(Message message) throws TopicNotFoundException {
-        if (!topicSubscriberMap.containsKey(message.getTopic())) {
+    public static void publish(Message message) throws TopicNotFoundException, OverloadedException {
+        publish(message.getTopic(), message.getBody().getBytes(StandardCharsets.UTF_8), message.getIdempotencyKey());
+    }
+
+    /**
+     * This method is called by the REST controller to relay messages from a
+     * publisher to all subscribers, with the text of the message already UTF-8
+     * encoded, so it is sent without decoding and encoding it again. If the topic
+     * belongs to a dispatch pool the message is sent by the pool's threads after
+     * this method returns.
+     * 
+     * @param topic          The topic the message is published to.
+     * @param payload        The UTF-8 encoded text of the message, which must not
+     *                       be modified afterwards.
+     * @param idempotencyKey The idempotency key of the message, or null.
+     * @throws TopicNotFoundException This exception is thrown if a publisher
+     *                                attempts to publish a message to a topic that
+     *                                does not exist.
+     * @throws OverloadedException    This exception is thrown if the topic belongs
+     *                                to a dispatch pool that cannot take any more
+     *                                messages.
+     */
+    public static void publish(String topic, byte[] payload, String idempotencyKey)
+            throws TopicNotFoundException, OverloadedException {
+        publish(topic, payload, idempotencyKey, null);
+    }
+
+    /**
+     * This method relays a message like {@link #publish(String, byte[], String)}
+     * and records in a receipt what becomes of it.
+     * 
+     * @param topic          The topic the message is published to.
+     * @param payload        The UTF-8 encoded text of the message, which must not
+     *                       be modified afterwards.
+     * @param idempotencyKey The idempotency key of the message, or null.
+     * @param receipt        The receipt of the message, or null.
+     * @throws TopicNotFoundException This exception is thrown if a publisher
+     *                                attempts to publish a message to a topic that
+     *                                does not exist.
+     * @throws OverloadedException    This exception is thrown if the topic belongs
+     *                                to a dispatch pool that cannot take any more
+     *                                messages.
+     */
+    public static void publish(String topic, byte[] payload, String idempotencyKey, DeliveryReceipt receipt)
+            throws TopicNotFoundException, OverloadedException {
+        if (topic == null || !topicSubscriberMap.containsKey(topic)) {
             throw new TopicNotFoundException();
         }
-        TextMessage textMessage = new TextMessage(message.getBody());
-        PublishedMessage publishedMessage = new PublishedMessage.Builder().message(message.getBody()).build();
-        for (ClientInfo clientInfo : topicSubscriberMap.get(message.getTopic())) {
+        if (idempotencyKey != null && !idempotencyCache.firstSeen(topic, idempotencyKey)) {
+            if (receipt != null) {
+                receipt.setStatus(DeliveryReceipt.Status.DUPLICATE);
+            }
+            return;
+        }
+        long accepted = System.nanoTime();
+        DispatchPools.DispatchPool pool = dispatchPools.getPool(topic);
+        if (pool == null) {
+            publishAccepted(topic, payload, idempotencyKey, receipt);
+            dispatchPools.recordSynchronous(accepted);
+            return;
+        }
+        // Counted as soon as it is accepted, so the load shedder sees the publishes that
+        // are waiting for the pool's threads.
+        TopicLoad topicLoad = topicLoads.get(topic);
+        topicLoad.queued();
+        try {
+            pool.dispatch(topic, payload.length, accepted, () -> {
+                topicLoad.dequeued();
+                publishAccepted(topic, payload, idempotencyKey, receipt);
+            });
+        } catch (OverloadedException e) {
+            topicLoad.dequeued();
+            // The publish was not sent, so it may be retried with the same key.
+            if (idempotencyKey != null) {
+                idempotencyCache.forget(topic, idempotencyKey);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This method relays an accepted publish, recording it in the topic's load and
+     * in the Flight Recorder. If relaying it fails, its idempotency key is
+     * forgotten so that it may be retried, and its receipt is marked as failed.
+     * 
+     * @param topic          The topic the message is published to.
+     * @param payload        The UTF-8 encoded text of the message.
+     * @param idempotencyKey The idempotency key of the message, or null.
+     * @param receipt        The receipt of the message, or null.
+     */
+    private static void publishAccepted(String topic, byte[] payload, String idempotencyKey,
+            DeliveryReceipt receipt) {
+        TopicLoad topicLoad = topicLoads.get(topic);
+        Object publishEvent = FlightRecorderEvents.publishStarted();
+        long started = topicLoad.publishStarted();
+        int subscribers = 0;
+        try {
+            subscribers = relay(topic, payload, receipt);
+            if (receipt != null) {
+                receipt.setStatus(DeliveryReceipt.Status.PUBLISHED);
+            }
+        } catch (RuntimeException e) {
+            if (idempotencyKey != null) {
+                idempotencyCache.forget(topic, idempotencyKey);
+            }
+            if (receipt != null) {
+                receipt.setStatus(DeliveryReceipt.Status.FAILED);
+            }
+            throw e;
+        } finally {
+            topicLoad.publishFinished(started);
+            FlightRecorderEvents.publishFinished(publishEvent, topic, subscribers, payload.length);
+        }
+    }
+
+    /**
+     * This method records a published message in the topic's history and sends it
+     * to the topic's subscribers and groups.
+     * 
+     * @param topic   The topic the message is published to.
+     * @param payload The UTF-8 encoded text of the message.
+     * @param receipt The receipt of the message, or null.
+     * @return How many subscribers and groups the message was handed to.
+     */
+    private static int relay(String topic, byte[] payload, DeliveryReceipt receipt) {
+        // The frame is built from the encoded bytes so it can be retained and sent to
+        // later subscribers without encoding it again.
+        TextMessage textMessage = new TextMessage(payload);
+        PublishedMessage publishedMessage = new PublishedMessage.Builder().payload(textMessage.asBytes()).receipt(receipt)
+                .build();
+        // Pinned while it is being sent, so that it is not discarded after the clients
+        // it could not be sent to so far have received it, before it is known whether
+        // it can be sent to the rest.
+        publishedMessage.pin();
+        try {
+            return fanOut(topic, textMessage, publishedMessage);
+        } finally {
+            publishedMessage.unpin();
+        }
+    }
+
+    /**
+     * This method sends a published message to the topic's subscribers and groups.
+     * Publishers of a topic do not wait for each other, so a slow subscriber only
+     * holds up the sends to its own session. A publisher's messages still reach
+     * every subscriber in the order it published them, since publishing returns
+     * only once the message has been handed to all of them.
+     * 
+     * @param topic            The topic the message is published to.
+     * @param textMessage      The message as a ready-to-send frame.
+     * @param publishedMessage The message, kept for the subscribers it cannot be
+     *                         sent to.
+     * @return How many subscribers and groups the message was handed to.
+     */
+    private static int fanOut(String topic, TextMessage textMessage, PublishedMessage publishedMessage) {
+        TopicHistory history = topicHistories.get(topic);
+        ClientInfo[] subscribers;
+        List<Future<?>> chunks = null;
+        int handedTo;
+        synchronized (history) {
+            retainedMessages.put(topic, textMessage);
+            history.append(textMessage, publishedMessage.getCreatedTimestamp());
+            for (ReplayingSubscriber replayingSubscriber : replayingSubscribers.get(topic)) {
+                replayingSubscriber.pendingMessages.add(textMessage);
+            }
+            // The snapshot of the subscribers is taken while the topic is locked, so
+            // clients that catch up after this point get the message from their queue
+            // instead. Large topics are split into chunks that are sent in parallel.
+            subscribers = topicSubscriberMap.get(topic).snapshot();
+            handedTo = subscribers.length;
+            if (publishedMessage.getReceipt() != null) {
+                publishedMessage.getReceipt().targeted(handedTo);
+            }
+            if (parallelFanOut.isParallel(subscribers.length)) {
+                chunks = parallelFanOut.submit(subscribers, topic, textMessage, publishedMessage);
+            }
+        }
+        if (chunks != null) {
+            parallelFanOut.await(chunks);
+        } else {
+            for (ClientInfo clientInfo : subscribers) {
+                deliver(clientInfo, topic, textMessage, publishedMessage);
+            }
+        }
+        for (SubscriberGroup group : topicGroups.get(topic).values()) {
+            if (deliverToGroup(group, topic, textMessage, publishedMessage)) {
+                handedTo++;
+            }
+        }
+        return handedTo;
+    }
+
+    /**
+     * This method sends a published message to one member of a group. If it cannot
+     * be sent to the member picked, another member is picked, and the message is
+     * only kept for the last member tried once it could not be sent to any of
+     * them.
+     * 
+     * @param group            The group.
+     * @param topic            The topic the message is published to.
+     * @param textMessage      The message as a ready-to-send frame.
+     * @param publishedMessage The message.
+     * @return Whether the group had a member to hand the message to.
+     */
+    private static boolean deliverToGroup(SubscriberGroup group, String topic, TextMessage textMessage,
+            PublishedMessage publishedMessage) {
+        ClientInfo member = group.pick(groupBalancing, coalescer::getPendingMessages);
+        if (member == null) {
+            return false;
+        }
+        if (publishedMessage.getReceipt() != null) {
+            publishedMessage.getReceipt().targeted(1);
+        }
+        Set<ClientInfo> tried = null;
+        while (true) {
+            boolean handed;
+            group.sending(member);
             try {
-                clientInfo.getWebSocketSession().sendMessage(textMessage);
-            } catch (Exception e) {
-                logger.error(e.getMessage());
-                // Here we spawn a short-lived thread that will add the message that could not
-                // be sent to the unreceived messages map. We do this so the controller method
-                // can return a response to the client without having to wait for this
-                // operation.
-                new WebSocketHandler.UnreceivedMessagesUpdater(publishedMessage, clientInfo).start();
+                handed = trySend(member, topic, textMessage, publishedMessage);
+            } finally {
+                group.sent(member);
+            }
+            if (handed) {
+                return true;
+            }
+            if (tried == null) {
+                tried = new HashSet<>();
+            }
+            tried.add(member);
+            ClientInfo next = group.pick(groupBalancing, coalescer::getPendingMessages, tried);
+            if (next == null) {
+                sendFailed(publishedMessage, member);
+                return true;
+            }
+            member = next;
+        }
+    }
+
+    /**
+     * This method sends a published message to one subscriber, or keeps it for the
+     * subscriber if it cannot be sent.
+     * 
+     * @param clientInfo       The subscriber.
+     * @param topic            The topic the message was published to.
+     * @param textMessage      The message as a ready-to-send frame.
+     * @param publishedMessage The message.
+     */
+    static void deliver(ClientInfo clientInfo, String topic, TextMessage textMessage,
+            PublishedMessage publishedMessage) {
+        if (clientInfo.getWebSocketSession() == null) {
+            // The client's subscriptions were restored after a restart and it has not
+            // reconnected yet, so the message is kept for it right away.
+            addUnreceivedMessage(publishedMessage, clientInfo.getClientId());
+            if (publishedMessage.getReceipt() != null) {
+                publishedMessage.getReceipt().queuedOffline();
+            }
+            return;
+        }
+        if (!trySend(clientInfo, topic, textMessage, publishedMessage)) {
+            sendFailed(publishedMessage, clientInfo);
+        }
+    }
+
+    /**
+     * This method sends a published message to a connected subscriber, or hands it
+     * to the coalescer if the subscriber's messages to the topic are coalesced.
+     * 
+     * @param clientInfo       The subscriber.
+     * @param topic            The topic the message was published to.
+     * @param textMessage      The message as a ready-to-send frame.
+     * @param publishedMessage The message.
+     * @return False if the message could not be sent, in which case it has not
+     *         been kept for the subscriber.
+     */
+    private static boolean trySend(ClientInfo clientInfo, String topic, TextMessage textMessage,
+            PublishedMessage publishedMessage) {
+        if (coalescer.isCoalescing(topic, clientInfo.getClientId())) {
+            if (!clientInfo.getWebSocketSession().isOpen()) {
+                return false;
             }
+            coalescer.offer(clientInfo, topic, textMessage, publishedMessage);
+            return true;
         }
+        try {
+            send(clientInfo.getWebSocketSession(), textMessage);
+            if (publishedMessage.getReceipt() != null) {
+                publishedMessage.getReceipt().sent();
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            return false;
+        }
+    }
 
+    /**
+     * This method keeps a message that could not be sent to a client as an
+     * unreceived message.
+     * 
+     * @param publishedMessage The message that could not be sent.
+     * @param clientInfo       The client it could not be sent to.
+     */
+    static void sendFailed(PublishedMessage publishedMessage, ClientInfo clientInfo) {
+        // Here we spawn a short-lived thread that will add the message that could not
+        // be sent to the unreceived messages map. We do this so the controller method
+        // can return a response to the client without having to wait for this
+        // operation.
+        FlightRecorderEvents.sendFailed(clientInfo.getClientId(), publishedMessage.getPayloadLength());
+        if (publishedMessage.getReceipt() != null) {
+            publishedMessage.getReceipt().failed();
+        }
+        new WebSocketHandler.UnreceivedMessagesUpdater(publishedMessage, clientInfo).start();
+    }
+
+    /**
+     * This method sends a frame to a session. A session must not be sent to by two
+     * threads at once, and publishers, the coalescer and the heartbeat all send to
+     * subscribers from their own threads, so every send goes through here and is
+     * synchronized on the session.
+     * 
+     * @param session The session to send to.
+     * @param message The frame.
+     * @throws IOException This exception is thrown if the websocket connection is
+     *                     bad.
+     */
+    static void send(WebSocketSession session, WebSocketMessage<?> message) throws IOException {
+        synchronized (session) {
+            session.sendMessage(message);
+        }
+    }
+
+    /**
+     * This method records that a client has answered the heartbeat's ping.
+     * 
+     * @param session The client's websocket session.
+     * @param message The pong.
+     */
+    @Override
+    protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+        heartbeat.pongReceived(session.getId());
     }
 
     /**
      * This method handlers websocket connection closing. It removes a client from
      * the topic subscriber map when the connection between the client and the
-     * server closes.
+     * server closes, unless the heartbeat has taken the client for dead and kept
+     * its subscriptions for it.
      * 
      * @param session The client's websocket session that is closed.
      * @param status  The reason the connection was closed.
@@ -244,14 +881,306 @@ public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
      */
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        heartbeat.removeSession(session.getId());
         ClientInfo clientInfo = new ClientInfo.Builder().clientId(session.getId()).webSocketSession(session).build();
         synchronized (topicSubscriberMap) {
-            topicSubscriberMap.values().stream().filter(clientInfoList -> clientInfoList.contains(clientInfo))
-                    .collect(Collectors.toList())
-                    .forEach(list -> list.remove(clientInfo));
+            if (!dormantClients.containsKey(clientInfo.getClientId())) {
+                topicSubscriberMap.values().forEach(subscribers -> subscribers.remove(clientInfo));
+                journal.clientForgotten(clientInfo.getClientId());
+            }
+        }
+        forgetSession(clientInfo);
+    }
+
+    /**
+     * This method is called by the heartbeat for a client that has stopped
+     * answering pings, before its session is closed. The client's subscriptions
+     * are kept without the session, like those restored after a restart, so that
+     * messages published to it are kept as unreceived right away instead of being
+     * sent to a dead connection. The client gets them back if it reconnects with
+     * its client ID in time.
+     * 
+     * @param session      The client's websocket session.
+     * @param dormantUntil The time (milliseconds) after which the subscriptions
+     *                     are dropped if the client has not reconnected.
+     */
+    static void sessionDead(WebSocketSession session, long dormantUntil) {
+        ClientInfo dormantClientInfo = new ClientInfo.Builder().clientId(session.getId()).build();
+        synchronized (topicSubscriberMap) {
+            boolean subscribed = false;
+            for (SubscriberList subscribers : topicSubscriberMap.values()) {
+                // Replaces the client's entry, keeping its place and ID.
+                if (subscribers.contains(dormantClientInfo)) {
+                    subscribers.add(dormantClientInfo);
+                    subscribed = true;
+                }
+            }
+            if (subscribed) {
+                dormantClients.put(dormantClientInfo.getClientId(), dormantUntil);
+            }
+        }
+        forgetSession(new ClientInfo.Builder().clientId(session.getId()).webSocketSession(session).build());
+    }
+
+    /**
+     * This method removes a client whose session has closed or died from the
+     * groups and the clients catching up, and keeps the messages the coalescer
+     * still held for it as unreceived.
+     * 
+     * @param clientInfo The client.
+     */
+    private static void forgetSession(ClientInfo clientInfo) {
+        synchronized (topicSubscriberMap) {
+            for (Map<String, SubscriberGroup> groups : topicGroups.values()) {
+                groups.values().removeIf(group -> group.remove(clientInfo) && group.isEmpty());
+            }
+        }
+        for (Map.Entry<String, TopicHistory> topicHistory : topicHistories.entrySet()) {
+            synchronized (topicHistory.getValue()) {
+                replayingSubscribers.get(topicHistory.getKey())
+                        .removeIf(replayingSubscriber -> replayingSubscriber.clientInfo.equals(clientInfo));
+            }
+        }
+        coalescer.removeSession(clientInfo.getClientId());
+    }
+
+    /**
+     * This method keeps a published message for a client that has not received
+     * it. If that takes the client over its backlog budget, the client's oldest
+     * messages are dropped for it until the message fits, and the message itself
+     * is dropped if it does not fit on its own. If the unreceived messages then
+     * take more than the global budget, the oldest messages are dropped entirely.
+     * 
+     * @param publishedMessage The message that has not been received.
+     * @param clientId         The ID of the client that has not received it.
+     */
+    private static void addUnreceivedMessage(PublishedMessage publishedMessage, String clientId) {
+        long size = BacklogBudget.sizeOf(publishedMessage);
+        synchronized (unreceivedMessages) {
+            if (publishedMessage.isReleased()) {
+                // The message was kept for other clients but has been discarded since, and its
+                // text with it.
+                backlogBudget.evictedForClient();
+                return;
+            }
+            // The reference the message holds to the client's ID if it is kept.
+            int id = clientIds.acquire(clientId);
+            Iterator<Map.Entry<PublishedMessage, ClientIdSet>> oldest = unreceivedMessages.entrySet().iterator();
+            while (!backlogBudget.fitsClient(id, size) && oldest.hasNext()) {
+                Map.Entry<PublishedMessage, ClientIdSet> entry = oldest.next();
+                if (entry.getKey() != publishedMessage && entry.getValue().remove(id)) {
+                    backlogBudget.clientRemoved(entry.getKey(), id);
+                    backlogBudget.evictedForClient();
+                    journal.messageEvicted(entry.getKey(), clientId);
+                    clientIds.release(id);
+                    if (entry.getValue().isEmpty() && !entry.getKey().isPinned()) {
+                        oldest.remove();
+                        discardUnreceivedMessage(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            if (!backlogBudget.fitsClient(id, size)) {
+                backlogBudget.evictedForClient();
+                clientIds.release(id);
+                return;
+            }
+            if (!unreceivedMessages.containsKey(publishedMessage)) {
+                unreceivedMessages.put(publishedMessage, new ClientIdSet());
+                publishedMessage.moveOffHeap(payloadArena);
+                backlogBudget.messageAdded(publishedMessage);
+                journal.messageAdded(publishedMessage);
+            }
+            if (unreceivedMessages.get(publishedMessage).add(id)) {
+                backlogBudget.clientAdded(publishedMessage, id);
+                journal.messageQueued(publishedMessage, clientId);
+            } else {
+                clientIds.release(id);
+            }
+            oldest = unreceivedMessages.entrySet().iterator();
+            while (backlogBudget.isOverGlobal() && oldest.hasNext()) {
+                Map.Entry<PublishedMessage, ClientIdSet> entry = oldest.next();
+                oldest.remove();
+                backlogBudget.evictedForGlobal();
+                discardUnreceivedMessage(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * This method forgets an unreceived message that has been removed from the
+     * unreceived messages map, and frees its text. The caller must hold the lock on
+     * the map.
+     * 
+     * @param publishedMessage The message.
+     * @param ids              The IDs of the clients that had not received it.
+     */
+    private static void discardUnreceivedMessage(PublishedMessage publishedMessage, ClientIdSet ids) {
+        backlogBudget.messageRemoved(publishedMessage, ids);
+        ids.forEach(clientIds::release);
+        journal.messageDiscarded(publishedMessage);
+        publishedMessage.release();
+    }
+
+    /**
+     * This method hands the subscriptions a client had before a restart over to
+     * the client's new connection. It does nothing if the client has no restored
+     * subscriptions.
+     * 
+     * @param clientId The ID the client had before the restart.
+     * @param session  The client's new websocket session.
+     */
+    private static void reclaimSubscriptions(String clientId, WebSocketSession session) {
+        if (dormantClients.remove(clientId) == null) {
+            return;
+        }
+        ClientInfo dormantClientInfo = new ClientInfo.Builder().clientId(clientId).build();
+        ClientInfo clientInfo = new ClientInfo.Builder().clientId(session.getId()).webSocketSession(session).build();
+        synchronized (topicSubscriberMap) {
+            journal.clientForgotten(clientId);
+            for (Map.Entry<String, SubscriberList> subscribers : topicSubscriberMap.entrySet()) {
+                if (subscribers.getValue().remove(dormantClientInfo)) {
+                    subscribers.getValue().add(clientInfo);
+                    journal.subscribed(clientInfo.getClientId(), subscribers.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * This method removes the restored subscriptions of clients that have not
+     * reconnected in time.
+     * 
+     * @return How many clients were forgotten.
+     */
+    private static int forgetExpiredDormantClients() {
+        long now = System.currentTimeMillis();
+        int forgotten = 0;
+        for (Map.Entry<String, Long> dormantClient : dormantClients.entrySet()) {
+            if (now > dormantClient.getValue() && dormantClients.remove(dormantClient.getKey()) != null) {
+                ClientInfo clientInfo = new ClientInfo.Builder().clientId(dormantClient.getKey()).build();
+                synchronized (topicSubscriberMap) {
+                    topicSubscriberMap.values().forEach(list -> list.remove(clientInfo));
+                    journal.clientForgotten(clientInfo.getClientId());
+                }
+                forgotten++;
+            }
+        }
+        return forgotten;
+    }
+
+    /**
+     * This method restores a subscription after a restart. The client is
+     * subscribed without a websocket session until it reconnects with its previous
+     * client ID, and messages published in the meantime are kept for it.
+     * 
+     * @param clientId     The ID of the client.
+     * @param topic        The topic the client was subscribed to.
+     * @param dormantUntil The time (milliseconds) after which the subscription is
+     *                     dropped if the client has not reconnected.
+     */
+    public static void restoreSubscription(String clientId, String topic, long dormantUntil) {
+        synchronized (topicSubscriberMap) {
+            SubscriberList subscribers = topicSubscriberMap.get(topic);
+            if (subscribers == null) {
+                logger.warn("Not restoring subscription of " + clientId + " to unknown topic " + topic);
+                return;
+            }
+            ClientInfo clientInfo = new ClientInfo.Builder().clientId(clientId).build();
+            if (!subscribers.contains(clientInfo)) {
+                subscribers.add(clientInfo);
+            }
+            dormantClients.put(clientId, dormantUntil);
+        }
+    }
+
+    /**
+     * This method restores an unreceived message after a restart.
+     * 
+     * @param publishedMessage The message.
+     * @param pendingClientIds The IDs of the clients that have not received it.
+     */
+    public static void restoreUnreceivedMessage(PublishedMessage publishedMessage, Set<String> pendingClientIds) {
+        synchronized (unreceivedMessages) {
+            ClientIdSet ids = new ClientIdSet();
+            for (String clientId : pendingClientIds) {
+                int id = clientIds.acquire(clientId);
+                if (ids.add(id)) {
+                    backlogBudget.clientAdded(publishedMessage, id);
+                } else {
+                    clientIds.release(id);
+                }
+            }
+            unreceivedMessages.put(publishedMessage, ids);
+            publishedMessage.moveOffHeap(payloadArena);
+            backlogBudget.messageAdded(publishedMessage);
+        }
+    }
+
+    /**
+     * This method passes every subscription to the given consumer as a client ID
+     * and a topic, including those of clients that are still catching up.
+     * 
+     * @param consumer The consumer of the subscriptions.
+     */
+    public static void forEachSubscription(BiConsumer<String, String> consumer) {
+        synchronized (topicSubscriberMap) {
+            for (Map.Entry<String, SubscriberList> subscribers : topicSubscriberMap.entrySet()) {
+                for (ClientInfo clientInfo : subscribers.getValue().snapshot()) {
+                    consumer.accept(clientInfo.getClientId(), subscribers.getKey());
+                }
+                synchronized (topicHistories.get(subscribers.getKey())) {
+                    for (ReplayingSubscriber replayingSubscriber : replayingSubscribers.get(subscribers.getKey())) {
+                        consumer.accept(replayingSubscriber.clientInfo.getClientId(), subscribers.getKey());
+                    }
+                }
+            }
         }
     }
 
+    /**
+     * This method passes every unreceived message to the given consumer along with
+     * the IDs of the clients that have not received it.
+     * 
+     * @param consumer The consumer of the unreceived messages.
+     */
+    public static void forEachUnreceivedMessage(BiConsumer<PublishedMessage, List<String>> consumer) {
+        synchronized (unreceivedMessages) {
+            for (Map.Entry<PublishedMessage, ClientIdSet> entry : unreceivedMessages.entrySet()) {
+                List<String> pendingClientIds = new ArrayList<>(entry.getValue().size());
+                entry.getValue().forEach(id -> pendingClientIds.add(clientIds.getClientId(id)));
+                consumer.accept(entry.getKey(), pendingClientIds);
+            }
+        }
+    }
+
+    public static void setJournal(Journal journal) {
+        WebSocketHandler.journal = journal;
+    }
+
+    public static void setCoalescer(Coalescer coalescer) {
+        WebSocketHandler.coalescer = coalescer;
+    }
+
+    public static void setIdempotencyCache(IdempotencyCache idempotencyCache) {
+        WebSocketHandler.idempotencyCache = idempotencyCache;
+    }
+
+    public static void setGroupBalancing(SubscriberGroup.Balancing groupBalancing) {
+        WebSocketHandler.groupBalancing = groupBalancing;
+    }
+
+    public static void setHeartbeat(Heartbeat heartbeat) {
+        WebSocketHandler.heartbeat = heartbeat;
+    }
+
+    public static void setDispatchPools(DispatchPools dispatchPools) {
+        WebSocketHandler.dispatchPools = dispatchPools;
+    }
+
+    public static void setParallelFanOut(ParallelFanOut parallelFanOut) {
+        WebSocketHandler.parallelFanOut = parallelFanOut;
+    }
+
     /**
      * The run method of the Runnable interface is implemented here. This will wake
      * up every {{houseKeepingThreadSleepDurationMilliseconds}} milliseconds and
@@ -262,17 +1191,24 @@ public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
     public void run() {
         try {
             while (true) {
+                Object housekeepingEvent = FlightRecorderEvents.housekeepingStarted();
+                int scanned;
+                List<PublishedMessage> toRemove = new ArrayList<>();
                 synchronized (unreceivedMessages) {
-                    List<PublishedMessage> toRemove = new ArrayList<>();
+                    scanned = unreceivedMessages.size();
                     for (PublishedMessage pm : unreceivedMessages.keySet()) {
-                        if (isMessageExpired(pm) || unreceivedMessages.get(pm).isEmpty()) {
+                        // A message that every client waiting for it has received is kept while it is
+                        // pinned, since it may still have to be kept for another client.
+                        if (isMessageExpired(pm) || unreceivedMessages.get(pm).isEmpty() && !pm.isPinned()) {
                             toRemove.add(pm);
                         }
                     }
                     for (PublishedMessage pm : toRemove) {
-                        unreceivedMessages.remove(pm);
+                        discardUnreceivedMessage(pm, unreceivedMessages.remove(pm));
                     }
                 }
+                int forgotten = forgetExpiredDormantClients();
+                FlightRecorderEvents.housekeepingFinished(housekeepingEvent, scanned, toRemove.size(), forgotten);
                 Thread.sleep(houseKeepingThreadSleepDurationMilliseconds);
             }
         } catch (InterruptedException e) {
@@ -303,24 +1239,82 @@ public class WebSocketHandler extends TextWebSocketHandler implements Runnable {
         public UnreceivedMessagesUpdater(PublishedMessage publishedMessage, ClientInfo clientInfo) {
             this.publishedMessage = publishedMessage;
             this.clientInfo = clientInfo;
+            publishedMessage.pin();
         }
 
         @Override
         public void run() {
-            synchronized (unreceivedMessages) {
-                if (!unreceivedMessages.containsKey(publishedMessage)) {
-                    unreceivedMessages.put(publishedMessage, new ArrayList<>());
-                }
-                unreceivedMessages.get(publishedMessage).add(clientInfo.getClientId());
+            try {
+                addUnreceivedMessage(publishedMessage, clientInfo.getClientId());
+            } finally {
+                publishedMessage.unpin();
             }
         }
     }
 
-    public static Map<String, List<ClientInfo>> getTopicSubscriberMap() {
+    /**
+     * A client that has subscribed to a topic but is still being sent retained or
+     * replayed messages, along with the messages published to the topic since it
+     * subscribed.
+     */
+    private static class ReplayingSubscriber {
+        private final ClientInfo clientInfo;
+        private final String topic;
+        private final Deque<TextMessage> pendingMessages = new ArrayDeque<>();
+        // What to send the client before the queued messages: either the retained
+        // message or the history up to (excluding) replayUpTo, filtered by replayLast
+        // and replaySince.
+        private TextMessage retainedMessage;
+        private long replayUpTo;
+        private int replayLast;
+        private long replaySince;
+
+        public ReplayingSubscriber(ClientInfo clientInfo, String topic) {
+            this.clientInfo = clientInfo;
+            this.topic = topic;
+        }
+    }
+
+    public static Map<String, SubscriberList> getTopicSubscriberMap() {
         return topicSubscriberMap;
     }
 
-    public static Map<PublishedMessage, List<String>> getUnreceivedMessages() {
+    public static Map<String, Map<String, SubscriberGroup>> getTopicGroups() {
+        return topicGroups;
+    }
+
+    public static Map<PublishedMessage, ClientIdSet> getUnreceivedMessages() {
         return unreceivedMessages;
     }
+
+    public static PayloadArena getPayloadArena() {
+        return payloadArena;
+    }
+
+    public static BacklogBudget getBacklogBudget() {
+        return backlogBudget;
+    }
+
+    public static Map<String, TextMessage> getRetainedMessages() {
+        return retainedMessages;
+    }
+
+    public static Map<String, TopicHistory> getTopicHistories() {
+        return topicHistories;
+    }
+
+    public static TopicLoad getTopicLoad(String topic) {
+        return topicLoads.get(topic);
+    }
+
+    /**
+     * @return How many messages published to a topic are waiting to be sent to
+     *         subscribers: those waiting in a dispatch pool, those still being
+     *         sent and those held back by the coalescer.
+     */
+    public static int getOutboundQueueDepth(String topic) {
+        TopicLoad topicLoad = topicLoads.get(topic);
+        return (topicLoad == null ? 0 : topicLoad.getQueued() + topicLoad.getInFlight())
+                + coalescer.getPendingMessagesForTopic(topic);
+    }
 }
@@ -0,0 +1,117 @@
+package info.michaelmogessie.pubsubdemo.limits;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.handlers.BacklogBudget;
+import info.michaelmogessie.pubsubdemo.handlers.TopicLoad;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Turns publishers away while the service cannot keep up with delivering the
+ * messages it has already accepted, so that they slow down instead of piling up
+ * unreceived messages. Three signals are checked, each turned off by setting
+ * its limit to 0:
+ *
+ * - the outbound queue depth of the topic: the messages published to it that
+ * are waiting in a dispatch pool, are still being sent to subscribers or are
+ * held back by the coalescer,
+ * - the dispatch lag of the topic: how long sending a message to all its
+ * subscribers has taken lately, while messages to it are still being sent, and
+ * - the backlog: how many bytes the unreceived messages of all topics take.
+ *
+ * A full backlog overloads the whole service, while the other two only
+ * overload their topic. The wait suggested to the publisher grows with how far
+ * the signal is over its limit, starting at the configured number of seconds.
+ * Every publish that is turned away is counted in the pubsub.publish.shed
+ * metric, tagged with the signal and the topic. Publishes to topics that do not
+ * exist are not checked, so the tags only ever hold the configured topics.
+ */
+@Component
+public class LoadShedder {
+    private static final String METRIC_SHED = "pubsub.publish.shed";
+    private static final String SIGNAL_QUEUE_DEPTH = "queue-depth";
+    private static final String SIGNAL_DISPATCH_LAG = "dispatch-lag";
+    private static final String SIGNAL_BACKLOG = "backlog";
+    private static final long MAX_RETRY_AFTER_SECONDS = 60;
+
+    private final int maxQueueDepth;
+    private final long maxDispatchLagNanos;
+    private final long maxBacklogBytes;
+    private final long retryAfterSeconds;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Constructor for the load shedder. Spring will inject the limits from the
+     * appropriate application.properties file.
+     *
+     * @param maxQueueDepth              How many messages of a topic may wait to
+     *                                   be sent.
+     * @param maxDispatchLagMilliseconds How long sending a message to all of a
+     *                                   topic's subscribers may take.
+     * @param maxBacklogBytes            How many bytes the unreceived messages may
+     *                                   take.
+     * @param retryAfterSeconds          How long publishers are asked to wait at
+     *                                   least.
+     * @param meterRegistry              The registry the shedding metrics are
+     *                                   added to.
+     */
+    public LoadShedder(@Value("${backpressure.queue.depth}") int maxQueueDepth,
+            @Value("${backpressure.dispatch.lag.milliseconds}") long maxDispatchLagMilliseconds,
+            @Value("${backpressure.backlog.bytes}") long maxBacklogBytes,
+            @Value("${backpressure.retryafter.seconds}") long retryAfterSeconds, MeterRegistry meterRegistry) {
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxDispatchLagNanos = TimeUnit.MILLISECONDS.toNanos(maxDispatchLagMilliseconds);
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Checks whether a message may be published to a topic. Topics that do not
+     * exist are not checked, since publishing to them fails anyway.
+     *
+     * @param topic The topic the message is published to.
+     * @throws OverloadedException This exception is thrown if the service or the
+     *                             topic is overloaded.
+     */
+    public void check(String topic) throws OverloadedException {
+        TopicLoad topicLoad = topic != null ? WebSocketHandler.getTopicLoad(topic) : null;
+        if (topicLoad == null) {
+            return;
+        }
+        if (maxBacklogBytes > 0) {
+            long backlogBytes = BacklogBudget.getCurrentBytes();
+            if (backlogBytes > maxBacklogBytes) {
+                shed(SIGNAL_BACKLOG, topic, (double) backlogBytes / maxBacklogBytes, true);
+            }
+        }
+        if (maxQueueDepth > 0) {
+            int queueDepth = WebSocketHandler.getOutboundQueueDepth(topic);
+            if (queueDepth >= maxQueueDepth) {
+                shed(SIGNAL_QUEUE_DEPTH, topic, (double) queueDepth / maxQueueDepth, false);
+            }
+        }
+        // The average only moves when messages are sent, so it only counts while some
+        // are; otherwise a topic that was slow once would be turned away for good.
+        if (maxDispatchLagNanos > 0 && topicLoad.getInFlight() > 0) {
+            long dispatchLagNanos = topicLoad.getAverageDispatchNanos();
+            if (dispatchLagNanos > maxDispatchLagNanos) {
+                shed(SIGNAL_DISPATCH_LAG, topic, (double) dispatchLagNanos / maxDispatchLagNanos, false);
+            }
+        }
+    }
+
+    private void shed(String signal, String topic, double overload, boolean serviceWide)
+            throws OverloadedException {
+        Counter.builder(METRIC_SHED).tag("signal", signal).tag("topic", topic)
+                .register(meterRegistry).increment();
+        long retryAfter = Math.min(MAX_RETRY_AFTER_SECONDS, (long) Math.ceil(retryAfterSeconds * overload));
+        throw new OverloadedException(Math.max(retryAfterSeconds, retryAfter), serviceWide);
+    }
+}
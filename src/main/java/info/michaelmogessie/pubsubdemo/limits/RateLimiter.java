@@ -0,0 +1,151 @@
+package info.michaelmogessie.pubsubdemo.limits;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import info.michaelmogessie.pubsubdemo.excpetions.RateLimitExceededException;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Limits how fast messages may be published, with one token bucket per topic
+ * and one per publisher. Either limit is turned off by setting its rate to 0.
+ * Every publish that is turned away is counted in the
+ * pubsub.publish.throttled metric, tagged with the limit that was hit and the
+ * topic. Publishes to topics that do not exist are not limited and charge no
+ * bucket, so the tags only ever hold the configured topics.
+ */
+@Component
+public class RateLimiter {
+    private static final String METRIC_THROTTLED = "pubsub.publish.throttled";
+    private static final String SCOPE_TOPIC = "topic";
+    private static final String SCOPE_PUBLISHER = "publisher";
+    // Once this many publisher buckets exist, the full ones are discarded, at most
+    // once per cleanup interval.
+    private static final int PUBLISHER_BUCKETS_CLEANUP_THRESHOLD = 10000;
+    private static final long PUBLISHER_BUCKETS_CLEANUP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double topicPermitsPerSecond;
+    private final int topicBurst;
+    private final double publisherPermitsPerSecond;
+    private final int publisherBurst;
+    private final String publisherHeader;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, TokenBucket> topicBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> publisherBuckets = new ConcurrentHashMap<>();
+    // When the publisher buckets may next be cleaned up, from System.nanoTime().
+    private final AtomicLong nextCleanupNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructor for the rate limiter. Spring will inject the limits from the
+     * appropriate application.properties file. A burst of 0 allows one second's
+     * worth of messages at once.
+     *
+     * @param topicPermitsPerSecond     How many messages per second may be
+     *                                  published to each topic.
+     * @param topicBurst                How many messages may be published to a
+     *                                  topic at once.
+     * @param publisherPermitsPerSecond How many messages per second each publisher
+     *                                  may publish.
+     * @param publisherBurst            How many messages a publisher may publish
+     *                                  at once.
+     * @param publisherHeader           The request header that identifies a
+     *                                  publisher. Publishers that do not send it are
+     *                                  identified by their remote address.
+     * @param meterRegistry             The registry the throttling metrics are
+     *                                  added to.
+     */
+    public RateLimiter(@Value("${ratelimit.topic.permitspersecond}") double topicPermitsPerSecond,
+            @Value("${ratelimit.topic.burst}") int topicBurst,
+            @Value("${ratelimit.publisher.permitspersecond}") double publisherPermitsPerSecond,
+            @Value("${ratelimit.publisher.burst}") int publisherBurst,
+            @Value("${ratelimit.publisher.header}") String publisherHeader, MeterRegistry meterRegistry) {
+        this.topicPermitsPerSecond = topicPermitsPerSecond;
+        this.topicBurst = burstOrDefault(topicBurst, topicPermitsPerSecond);
+        this.publisherPermitsPerSecond = publisherPermitsPerSecond;
+        this.publisherBurst = burstOrDefault(publisherBurst, publisherPermitsPerSecond);
+        this.publisherHeader = publisherHeader;
+        this.meterRegistry = meterRegistry;
+    }
+
+    private static int burstOrDefault(int burst, double permitsPerSecond) {
+        return burst > 0 ? burst : (int) Math.max(1, Math.ceil(permitsPerSecond));
+    }
+
+    /**
+     * Takes a permit to publish one message to a topic from both the topic's and
+     * the publisher's bucket. A publish turned away by either limit charges
+     * neither bucket. Topics that do not exist are not limited and charge
+     * neither bucket, since publishing to them fails anyway.
+     *
+     * @param topic     The topic the message is published to.
+     * @param publisher The identity of the publisher.
+     * @throws RateLimitExceededException This exception is thrown if either limit
+     *                                    has been reached.
+     */
+    public void acquire(String topic, String publisher) throws RateLimitExceededException {
+        if (topic == null || !WebSocketHandler.getTopicSubscriberMap().containsKey(topic)) {
+            return;
+        }
+        long now = System.nanoTime();
+        TokenBucket publisherBucket = null;
+        if (publisherPermitsPerSecond > 0 && publisher != null) {
+            cleanUpPublisherBuckets(now);
+            publisherBucket = publisherBuckets.computeIfAbsent(publisher,
+                    key -> new TokenBucket(publisherPermitsPerSecond, publisherBurst, now));
+            check(publisherBucket, now, SCOPE_PUBLISHER, topic);
+        }
+        if (topicPermitsPerSecond > 0) {
+            TokenBucket bucket = topicBuckets.computeIfAbsent(topic,
+                    key -> new TokenBucket(topicPermitsPerSecond, topicBurst, now));
+            try {
+                check(bucket, now, SCOPE_TOPIC, topic);
+            } catch (RateLimitExceededException e) {
+                if (publisherBucket != null) {
+                    publisherBucket.release();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Discards the publisher buckets that have refilled completely once there are
+     * too many of them. The scan over all buckets is done by one caller at a time
+     * and at most once per cleanup interval, so publishing does not scan them
+     * again and again while most of them are in use.
+     */
+    private void cleanUpPublisherBuckets(long now) {
+        long nextCleanup = nextCleanupNanos.get();
+        if (publisherBuckets.size() > PUBLISHER_BUCKETS_CLEANUP_THRESHOLD && now - nextCleanup >= 0
+                && nextCleanupNanos.compareAndSet(nextCleanup, now + PUBLISHER_BUCKETS_CLEANUP_INTERVAL_NANOS)) {
+            publisherBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        }
+    }
+
+    private void check(TokenBucket bucket, long now, String scope, String topic) throws RateLimitExceededException {
+        long waitNanos = bucket.tryAcquire(now);
+        if (waitNanos > 0) {
+            Counter.builder(METRIC_THROTTLED).tag("scope", scope).tag("topic", topic)
+                    .register(meterRegistry).increment();
+            throw new RateLimitExceededException(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos - 1) + 1));
+        }
+    }
+
+    /**
+     * @return How many publisher buckets are kept.
+     */
+    int getPublisherBucketCount() {
+        return publisherBuckets.size();
+    }
+
+    public String getPublisherHeader() {
+        return publisherHeader;
+    }
+}
@@ -0,0 +1,72 @@
+package info.michaelmogessie.pubsubdemo.limits;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that refills at a fixed rate and holds at most a fixed number
+ * of tokens. The whole state of the bucket is kept in one atomic long, the
+ * time at which the bucket will next be full again (the theoretical arrival
+ * time of the generic cell rate algorithm). Taking a token pushes that time
+ * forward by one refill interval and is done with a compare-and-set, so
+ * callers never block each other.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    // How long it takes to refill one token (nanoseconds).
+    private final long refillIntervalNanos;
+    // How far into the future the full time may be pushed before tokens run out.
+    private final long burstNanos;
+    private final AtomicLong fullAtNanos;
+
+    /**
+     * @param tokensPerSecond How many tokens are added to the bucket every second.
+     * @param capacity        The maximum number of tokens the bucket holds.
+     * @param nowNanos        The current time, from {@link System#nanoTime()}.
+     */
+    public TokenBucket(double tokensPerSecond, int capacity, long nowNanos) {
+        this.refillIntervalNanos = Math.max(1, (long) (NANOS_PER_SECOND / tokensPerSecond));
+        this.burstNanos = refillIntervalNanos * capacity;
+        this.fullAtNanos = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Takes a token from the bucket if there is one.
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     * @return 0 if a token was taken, otherwise how long to wait until one is
+     *         available (nanoseconds).
+     */
+    public long tryAcquire(long nowNanos) {
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            long newFullAt = Math.max(fullAt, nowNanos) + refillIntervalNanos;
+            long wait = newFullAt - nowNanos - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAtNanos.compareAndSet(fullAt, newFullAt)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Puts back a token taken by {@link #tryAcquire}, for example when the
+     * publish it was taken for is turned away by another limit.
+     */
+    public void release() {
+        fullAtNanos.addAndGet(-refillIntervalNanos);
+    }
+
+    /**
+     * Checks whether the bucket has refilled completely, in which case it is no
+     * different from a new bucket and can be discarded.
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     * @return True if the bucket is full.
+     */
+    public boolean isFull(long nowNanos) {
+        return fullAtNanos.get() - nowNanos <= 0;
+    }
+}
@@ -0,0 +1,241 @@
+package info.michaelmogessie.pubsubdemo.offheap;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Stores message payloads outside the Java heap, so that large backlogs and
+ * histories do not add to the work of the garbage collector.
+ *
+ * Memory is taken from the operating system in slabs of direct byte buffers and
+ * cut into chunks whose size is a power of two, at least {@link #MIN_CHUNK_SIZE}
+ * bytes. A payload is stored in the smallest chunk it fits in, and freed chunks
+ * are kept in a free list per size and reused for payloads of the same size.
+ * A stored payload is identified by a handle, a long holding the slab and the
+ * offset of its chunk, so only the handle and the payload's length have to be
+ * kept on the heap.
+ *
+ * When a payload is larger than a slab, or the arena has reached its capacity
+ * and has no free chunk of the right size, {@link #store} returns {@link #NONE}
+ * and the caller keeps the payload on the heap instead.
+ *
+ * Allocating and freeing chunks is synchronized. Reading and writing a chunk is
+ * not: the owner of a handle must not free it while it is being read, or must
+ * detect that it was freed and discard what it read.
+ */
+public class PayloadArena {
+    /**
+     * The handle returned when a payload could not be stored.
+     */
+    public static final long NONE = -1;
+    public static final int MIN_CHUNK_SIZE = 64;
+    private static final int MIN_CHUNK_SHIFT = Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    private static final String METRIC_BYTES = "pubsub.payload.offheap.bytes";
+
+    // The gauge reads the arena that was created last, since the websocket handler
+    // replaces its arena when it is constructed again.
+    private static final AtomicLong currentBytes = new AtomicLong();
+
+    static {
+        Gauge.builder(METRIC_BYTES, currentBytes, AtomicLong::get).baseUnit("bytes").register(Metrics.globalRegistry);
+    }
+
+    private final int slabSize;
+    private final int maxSlabs;
+    // Replaced, never modified, when a slab is added, so readers can use it without
+    // taking the lock.
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    // A stack of free chunk handles for each chunk size.
+    private final long[][] freeChunks;
+    private final int[] freeChunkCounts;
+    // Where the next chunk is cut from the newest slab.
+    private int bumpOffset;
+    private long usedBytes;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(PayloadArena.class);
+
+    /**
+     * @param capacityBytes How many bytes the arena may take from the operating
+     *                      system in total. With 0 nothing is stored off the heap.
+     * @param slabSize      How many bytes to take at a time, rounded up to a power
+     *                      of two. Payloads larger than this stay on the heap.
+     */
+    public PayloadArena(long capacityBytes, int slabSize) {
+        this.slabSize = Math.max(MIN_CHUNK_SIZE, Integer.highestOneBit(Math.max(1, slabSize - 1)) << 1);
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, capacityBytes / this.slabSize);
+        int sizeClasses = Integer.numberOfTrailingZeros(this.slabSize) - MIN_CHUNK_SHIFT + 1;
+        this.freeChunks = new long[sizeClasses][];
+        this.freeChunkCounts = new int[sizeClasses];
+        for (int i = 0; i < sizeClasses; i++) {
+            freeChunks[i] = new long[8];
+        }
+        currentBytes.set(0);
+    }
+
+    /**
+     * Copies a payload into the arena.
+     *
+     * @param payload The payload.
+     * @return The handle of the payload, or {@link #NONE} if it is kept on the
+     *         heap instead.
+     */
+    public long store(byte[] payload) {
+        if (payload.length > slabSize) {
+            return NONE;
+        }
+        long handle = allocate(sizeClassOf(payload.length));
+        if (handle != NONE) {
+            ByteBuffer buffer = slabs[slabOf(handle)].duplicate();
+            position(buffer, offsetOf(handle));
+            buffer.put(payload);
+        }
+        return handle;
+    }
+
+    /**
+     * Copies a stored payload out of the arena.
+     *
+     * @param handle The handle of the payload.
+     * @param length The length of the payload.
+     * @return The payload.
+     */
+    public byte[] read(long handle, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer buffer = slabs[slabOf(handle)].duplicate();
+        position(buffer, offsetOf(handle));
+        buffer.get(payload);
+        return payload;
+    }
+
+    /**
+     * Returns the chunk of a stored payload to the arena.
+     *
+     * @param handle The handle of the payload.
+     * @param length The length of the payload.
+     */
+    public synchronized void free(long handle, int length) {
+        int sizeClass = sizeClassOf(length);
+        push(sizeClass, handle);
+        usedBytes -= chunkSize(sizeClass);
+        currentBytes.set(usedBytes);
+    }
+
+    private synchronized long allocate(int sizeClass) {
+        long handle;
+        if (freeChunkCounts[sizeClass] > 0) {
+            handle = freeChunks[sizeClass][--freeChunkCounts[sizeClass]];
+        } else {
+            handle = cut(chunkSize(sizeClass));
+            if (handle == NONE) {
+                return NONE;
+            }
+        }
+        usedBytes += chunkSize(sizeClass);
+        currentBytes.set(usedBytes);
+        return handle;
+    }
+
+    /**
+     * Cuts a new chunk from the newest slab, adding a slab if it has no room left.
+     */
+    private long cut(int chunkSize) {
+        ByteBuffer[] currentSlabs = slabs;
+        if (currentSlabs.length == 0 || bumpOffset + chunkSize > slabSize) {
+            if (currentSlabs.length >= maxSlabs) {
+                return NONE;
+            }
+            ByteBuffer slab;
+            try {
+                slab = ByteBuffer.allocateDirect(slabSize);
+            } catch (OutOfMemoryError e) {
+                logger.error("Could not allocate a payload slab: " + e.getMessage());
+                return NONE;
+            }
+            if (currentSlabs.length > 0) {
+                freeRemainder(currentSlabs.length - 1);
+            }
+            currentSlabs = Arrays.copyOf(currentSlabs, currentSlabs.length + 1);
+            currentSlabs[currentSlabs.length - 1] = slab;
+            slabs = currentSlabs;
+            bumpOffset = 0;
+        }
+        long handle = handleOf(currentSlabs.length - 1, bumpOffset);
+        bumpOffset += chunkSize;
+        return handle;
+    }
+
+    /**
+     * Cuts what is left of a full slab into the largest chunks that fit and adds
+     * them to the free lists, so the rest of the slab is not wasted.
+     */
+    private void freeRemainder(int slab) {
+        for (int sizeClass = freeChunks.length - 1; sizeClass >= 0; sizeClass--) {
+            while (bumpOffset + chunkSize(sizeClass) <= slabSize) {
+                push(sizeClass, handleOf(slab, bumpOffset));
+                bumpOffset += chunkSize(sizeClass);
+            }
+        }
+    }
+
+    private void push(int sizeClass, long handle) {
+        if (freeChunkCounts[sizeClass] == freeChunks[sizeClass].length) {
+            freeChunks[sizeClass] = Arrays.copyOf(freeChunks[sizeClass], freeChunks[sizeClass].length * 2);
+        }
+        freeChunks[sizeClass][freeChunkCounts[sizeClass]++] = handle;
+    }
+
+    /**
+     * Sets the position of a buffer through the Buffer type, so the compiled call
+     * also works on Java 8, where ByteBuffer does not override position(int).
+     */
+    private static void position(ByteBuffer buffer, int position) {
+        ((Buffer) buffer).position(position);
+    }
+
+    private static int sizeClassOf(int length) {
+        if (length <= MIN_CHUNK_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_CHUNK_SHIFT;
+    }
+
+    private static int chunkSize(int sizeClass) {
+        return MIN_CHUNK_SIZE << sizeClass;
+    }
+
+    private static long handleOf(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * @return How many bytes of the arena are taken by stored payloads, counting
+     *         whole chunks.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return How many bytes the arena has taken from the operating system.
+     */
+    public long getReservedBytes() {
+        return (long) slabs.length * slabSize;
+    }
+}
@@ -0,0 +1,73 @@
+package info.michaelmogessie.pubsubdemo.persistence;
+
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+import info.michaelmogessie.pubsubdemo.pojos.ScheduledMessage;
+
+/**
+ * Receives every change the websocket handler makes to its subscriptions and
+ * to its unreceived messages, and every message the scheduled publisher
+ * accepts or publishes, so the changes can be persisted. The handler
+ * calls these methods while it holds the lock that guards the change, so
+ * changes to the same subscription or message arrive in the order they were
+ * made. Implementations must therefore be quick and must not call back into
+ * the handler.
+ */
+public interface Journal {
+
+    /**
+     * A journal that discards every change, used when persistence is disabled.
+     */
+    Journal NONE = new Journal() {
+    };
+
+    default void subscribed(String clientId, String topic) {
+    }
+
+    default void unsubscribed(String clientId, String topic) {
+    }
+
+    /**
+     * A client has disconnected and is not expected back, so all its
+     * subscriptions are gone.
+     */
+    default void clientForgotten(String clientId) {
+    }
+
+    /**
+     * A message that could not be delivered to some clients has been kept.
+     */
+    default void messageAdded(PublishedMessage message) {
+    }
+
+    default void messageQueued(PublishedMessage message, String clientId) {
+    }
+
+    default void messageDelivered(PublishedMessage message, String clientId) {
+    }
+
+    /**
+     * A kept message has been dropped for a client to stay within the client's
+     * backlog budget.
+     */
+    default void messageEvicted(PublishedMessage message, String clientId) {
+        messageDelivered(message, clientId);
+    }
+
+    /**
+     * A kept message has expired or been received by all its clients.
+     */
+    default void messageDiscarded(PublishedMessage message) {
+    }
+
+    /**
+     * A message has been accepted for publishing at a later time.
+     */
+    default void messageScheduled(ScheduledMessage message) {
+    }
+
+    /**
+     * A scheduled message has been published.
+     */
+    default void scheduledMessagePublished(ScheduledMessage message) {
+    }
+}
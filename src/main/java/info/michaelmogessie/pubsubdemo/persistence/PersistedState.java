@@ -0,0 +1,95 @@
+package info.michaelmogessie.pubsubdemo.persistence;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+import info.michaelmogessie.pubsubdemo.pojos.ScheduledMessage;
+
+/**
+ * The persisted part of the handler's state: the topics each client is
+ * subscribed to, the unreceived messages with the clients still waiting for
+ * them, and the messages scheduled to be published later. It is what a snapshot holds, and write-ahead log records are applied to
+ * it during recovery. Every change is idempotent, so a record that is already
+ * reflected in the snapshot can be applied again safely.
+ */
+public class PersistedState {
+    // The topics each client is subscribed to, keyed by client id.
+    private final Map<String, Set<String>> subscriptions = new LinkedHashMap<>();
+    // The unreceived messages, keyed by message id, in the order they were kept.
+    private final Map<Long, PublishedMessage> messages = new LinkedHashMap<>();
+    // The clients that have not received each message, keyed by message id.
+    private final Map<Long, Set<String>> pendingClients = new LinkedHashMap<>();
+    // The messages scheduled to be published later, keyed by their id.
+    private final Map<Long, ScheduledMessage> scheduledMessages = new LinkedHashMap<>();
+
+    public void subscribe(String clientId, String topic) {
+        subscriptions.computeIfAbsent(clientId, id -> new LinkedHashSet<>()).add(topic);
+    }
+
+    public void unsubscribe(String clientId, String topic) {
+        Set<String> topics = subscriptions.get(clientId);
+        if (topics != null) {
+            topics.remove(topic);
+            if (topics.isEmpty()) {
+                subscriptions.remove(clientId);
+            }
+        }
+    }
+
+    public void forgetClient(String clientId) {
+        subscriptions.remove(clientId);
+    }
+
+    public void addMessage(PublishedMessage message) {
+        if (!messages.containsKey(message.getId())) {
+            messages.put(message.getId(), message);
+            pendingClients.put(message.getId(), new LinkedHashSet<>());
+        }
+    }
+
+    public void queueMessage(long messageId, String clientId) {
+        Set<String> clientIds = pendingClients.get(messageId);
+        if (clientIds != null) {
+            clientIds.add(clientId);
+        }
+    }
+
+    public void deliverMessage(long messageId, String clientId) {
+        Set<String> clientIds = pendingClients.get(messageId);
+        if (clientIds != null) {
+            clientIds.remove(clientId);
+        }
+    }
+
+    public void discardMessage(long messageId) {
+        messages.remove(messageId);
+        pendingClients.remove(messageId);
+    }
+
+    public void scheduleMessage(ScheduledMessage message) {
+        scheduledMessages.putIfAbsent(message.getId(), message);
+    }
+
+    public void scheduledMessagePublished(long messageId) {
+        scheduledMessages.remove(messageId);
+    }
+
+    public Map<String, Set<String>> getSubscriptions() {
+        return subscriptions;
+    }
+
+    public Map<Long, PublishedMessage> getMessages() {
+        return messages;
+    }
+
+    public Map<Long, Set<String>> getPendingClients() {
+        return pendingClients;
+    }
+
+    public Map<Long, ScheduledMessage> getScheduledMessages() {
+        return scheduledMessages;
+    }
+}
@@ -0,0 +1,319 @@
+package info.michaelmogessie.pubsubdemo.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+import info.michaelmogessie.pubsubdemo.pojos.ScheduledMessage;
+import info.michaelmogessie.pubsubdemo.scheduling.ScheduledPublisher;
+
+/**
+ * Persists the subscriptions and unreceived messages of the websocket handler,
+ * and the messages waiting in the scheduled publisher, so they survive a
+ * restart. Every change is appended to a write-ahead log that
+ * is flushed periodically, and a snapshot of the whole state is taken
+ * periodically so the log can be truncated.
+ *
+ * On startup the latest snapshot is loaded and the log written after it is
+ * replayed. Restored subscriptions are kept without a websocket session until
+ * their clients reconnect with their previous client ID, which then receive the
+ * messages published in the meantime. On shutdown a last snapshot is taken
+ * before the web server stops, clients disconnected by the shutdown are not
+ * forgotten, and the log is flushed once the web server has stopped.
+ */
+@Component
+public class PersistenceManager implements SmartLifecycle {
+    private final ScheduledPublisher scheduledPublisher;
+    private final boolean enabled;
+    private final Path directory;
+    private final long snapshotIntervalMilliseconds;
+    private final long flushIntervalMilliseconds;
+    private final boolean fsync;
+    private final long dormantTtlMilliseconds;
+    private WriteAheadLog writeAheadLog;
+    private ScheduledExecutorService executor;
+    private volatile boolean running;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(PersistenceManager.class);
+
+    /**
+     * Constructor for the persistence manager. Spring will inject the settings
+     * from the appropriate application.properties file. The websocket handler is
+     * injected so that it is created, and its topics initialized, before the
+     * state is restored into it.
+     *
+     * @param webSocketHandler             The websocket handler whose state is
+     *                                     persisted.
+     * @param scheduledPublisher           The scheduled publisher whose messages
+     *                                     are persisted.
+     * @param enabled                      Whether to persist the state at all.
+     * @param directory                    The directory holding the log and
+     *                                     snapshot files.
+     * @param snapshotIntervalMilliseconds How often to take a snapshot.
+     * @param flushIntervalMilliseconds    How often to write the log to disk,
+     *                                     which bounds what a crash can lose.
+     * @param fsync                        Whether each flush also forces the log
+     *                                     to the storage device.
+     * @param dormantTtlMilliseconds       How long restored subscriptions are kept
+     *                                     for clients that do not reconnect.
+     */
+    public PersistenceManager(WebSocketHandler webSocketHandler, ScheduledPublisher scheduledPublisher,
+            @Value("${persistence.enabled}") boolean enabled,
+            @Value("${persistence.directory}") String directory,
+            @Value("${persistence.snapshot.interval.milliseconds}") long snapshotIntervalMilliseconds,
+            @Value("${persistence.flush.interval.milliseconds}") long flushIntervalMilliseconds,
+            @Value("${persistence.fsync}") boolean fsync,
+            @Value("${persistence.dormant.ttl.milliseconds}") long dormantTtlMilliseconds) {
+        this.scheduledPublisher = scheduledPublisher;
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.snapshotIntervalMilliseconds = snapshotIntervalMilliseconds;
+        this.flushIntervalMilliseconds = flushIntervalMilliseconds;
+        this.fsync = fsync;
+        this.dormantTtlMilliseconds = dormantTtlMilliseconds;
+    }
+
+    /**
+     * Restores the persisted state into the websocket handler, compacts it into a
+     * fresh snapshot and starts logging changes.
+     *
+     * @throws IOException This exception is thrown if the persistence directory
+     *                     cannot be used.
+     */
+    @PostConstruct
+    public void recover() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        long started = System.currentTimeMillis();
+        PersistedState state = new PersistedState();
+        long generation = loadLatestSnapshot(state);
+        long lastGeneration = generation;
+        long records = 0;
+        for (Path walFile : listFiles(WriteAheadLog::getGeneration)) {
+            long walGeneration = WriteAheadLog.getGeneration(walFile);
+            if (walGeneration >= generation) {
+                records += WriteAheadLog.replay(walFile, state);
+                lastGeneration = Math.max(lastGeneration, walGeneration);
+            }
+        }
+        long dormantUntil = System.currentTimeMillis() + dormantTtlMilliseconds;
+        for (Map.Entry<String, Set<String>> subscription : state.getSubscriptions().entrySet()) {
+            for (String topic : subscription.getValue()) {
+                WebSocketHandler.restoreSubscription(subscription.getKey(), topic, dormantUntil);
+            }
+        }
+        for (PublishedMessage message : state.getMessages().values()) {
+            WebSocketHandler.restoreUnreceivedMessage(message, state.getPendingClients().get(message.getId()));
+        }
+        logger.info("Recovered " + state.getSubscriptions().size() + " clients, " + state.getMessages().size()
+                + " unreceived messages and " + state.getScheduledMessages().size()
+                + " scheduled messages from generation " + generation + " and " + records + " log records in "
+                + (System.currentTimeMillis() - started) + " ms");
+        // Starting from a fresh snapshot keeps the next recovery short, and lets the
+        // files read just now be deleted.
+        long nextGeneration = lastGeneration + 1;
+        SnapshotFile.write(directory, nextGeneration, captureState());
+        deleteFilesBefore(nextGeneration);
+        writeAheadLog = new WriteAheadLog(directory, nextGeneration, fsync);
+        WebSocketHandler.setJournal(writeAheadLog);
+        scheduledPublisher.setJournal(writeAheadLog);
+        // The scheduled messages are only restored now, so those published right away
+        // are journaled as published.
+        for (ScheduledMessage message : state.getScheduledMessages().values()) {
+            scheduledPublisher.restore(message);
+        }
+    }
+
+    /**
+     * Reads the snapshot with the highest generation that can be read, falling
+     * back to older ones if it is corrupt.
+     *
+     * @param state The state to read into.
+     * @return The generation of the snapshot, or 0 if there is none.
+     */
+    private long loadLatestSnapshot(PersistedState state) throws IOException {
+        List<Path> snapshotFiles = listFiles(SnapshotFile::getGeneration);
+        Collections.reverse(snapshotFiles);
+        for (Path snapshotFile : snapshotFiles) {
+            PersistedState snapshotState = new PersistedState();
+            try {
+                SnapshotFile.read(snapshotFile, snapshotState);
+            } catch (IOException e) {
+                logger.error("Skipping unreadable snapshot " + snapshotFile + ": " + e.getMessage());
+                continue;
+            }
+            state.getSubscriptions().putAll(snapshotState.getSubscriptions());
+            state.getMessages().putAll(snapshotState.getMessages());
+            state.getPendingClients().putAll(snapshotState.getPendingClients());
+            state.getScheduledMessages().putAll(snapshotState.getScheduledMessages());
+            return SnapshotFile.getGeneration(snapshotFile);
+        }
+        return 0;
+    }
+
+    /**
+     * Lists the files in the persistence directory that have a generation,
+     * ordered by generation.
+     *
+     * @param generationOf Reads the generation from a file name, or returns -1.
+     * @return The files, oldest generation first.
+     */
+    private List<Path> listFiles(ToLongFunction<Path> generationOf) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> generationOf.applyAsLong(file) >= 0)
+                    .sorted(Comparator.comparingLong(generationOf))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private void deleteFilesBefore(long generation) throws IOException {
+        for (Path file : listFiles(WriteAheadLog::getGeneration)) {
+            if (WriteAheadLog.getGeneration(file) < generation) {
+                Files.deleteIfExists(file);
+            }
+        }
+        for (Path file : listFiles(SnapshotFile::getGeneration)) {
+            if (SnapshotFile.getGeneration(file) < generation) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Copies the websocket handler's and the scheduled publisher's persisted
+     * state. The unreceived messages are copied too, since the handler frees
+     * their text once they are discarded.
+     */
+    private PersistedState captureState() {
+        PersistedState state = new PersistedState();
+        WebSocketHandler.forEachSubscription(state::subscribe);
+        WebSocketHandler.forEachUnreceivedMessage((message, clientIds) -> {
+            state.addMessage(new PublishedMessage.Builder().restore(message.getId(), message.getCreatedTimestamp())
+                    .ttl(message.getTtl()).payload(message.getPayload()).build());
+            clientIds.forEach(clientId -> state.queueMessage(message.getId(), clientId));
+        });
+        scheduledPublisher.forEachPending(state::scheduleMessage);
+        return state;
+    }
+
+    /**
+     * Takes a snapshot and deletes the files it makes obsolete. The log moves on
+     * to a new generation first, so every change is either in the snapshot or in
+     * the new log file, and possibly in both.
+     */
+    public synchronized void takeSnapshot() {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            long generation = writeAheadLog.rotate();
+            SnapshotFile.write(directory, generation, captureState());
+            deleteFilesBefore(generation);
+        } catch (IOException e) {
+            logger.error("Could not take a snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts flushing the log and taking snapshots in the background.
+     */
+    @Override
+    public void start() {
+        if (writeAheadLog != null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "persistence");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(writeAheadLog::flush, flushIntervalMilliseconds,
+                    flushIntervalMilliseconds, TimeUnit.MILLISECONDS);
+            executor.scheduleWithFixedDelay(this::takeSnapshot, snapshotIntervalMilliseconds,
+                    snapshotIntervalMilliseconds, TimeUnit.MILLISECONDS);
+        }
+        running = true;
+    }
+
+    /**
+     * Called at the start of shutdown, before the web server stops. From here on,
+     * clients whose connections close keep their subscriptions, since they were
+     * disconnected by the shutdown and are expected to reconnect after the
+     * restart. A snapshot is taken while their subscriptions are still in place.
+     */
+    @Override
+    public void stop() {
+        if (writeAheadLog != null) {
+            writeAheadLog.setDraining(true);
+            takeSnapshot();
+        }
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops before every other lifecycle bean, including the web server.
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Flushes and closes the log once the web server has stopped. No snapshot is
+     * taken here, since the handler has dropped the subscriptions of the clients
+     * disconnected by the shutdown; the log still has them.
+     */
+    @PreDestroy
+    public void close() {
+        if (writeAheadLog == null) {
+            return;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(flushIntervalMilliseconds + snapshotIntervalMilliseconds,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        WebSocketHandler.setJournal(Journal.NONE);
+        scheduledPublisher.setJournal(Journal.NONE);
+        try {
+            writeAheadLog.close();
+        } catch (IOException e) {
+            logger.error("Could not close the write-ahead log: " + e.getMessage());
+        }
+        writeAheadLog = null;
+    }
+}
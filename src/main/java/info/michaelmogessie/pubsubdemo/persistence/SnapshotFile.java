@@ -0,0 +1,183 @@
+package info.michaelmogessie.pubsubdemo.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+import info.michaelmogessie.pubsubdemo.pojos.ScheduledMessage;
+
+/**
+ * Reads and writes snapshots of the persisted state. A snapshot of generation N
+ * holds the state as it was when the write-ahead log moved on to generation N,
+ * so recovery starts from the latest snapshot and applies the log files of
+ * generation N and later.
+ *
+ * A snapshot is written to a temporary file that is renamed once it is
+ * complete and on disk, so a crash while writing leaves the previous snapshot
+ * in place. The file ends with the CRC32 of its content.
+ *
+ * The snapshot holds the subscriptions, then the unreceived messages with the
+ * clients waiting for each, then the scheduled messages.
+ */
+public class SnapshotFile {
+    // Snapshots written before scheduled messages were persisted start with
+    // MAGIC_V1 and end after the unreceived messages.
+    private static final int MAGIC_V1 = 0x50534e31;
+    private static final int MAGIC = 0x50534e32;
+    private static final String FILE_PREFIX = "snapshot-";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SnapshotFile() {
+    }
+
+    public static Path getFile(Path directory, long generation) {
+        return directory.resolve(String.format("%s%016d%s", FILE_PREFIX, generation, FILE_SUFFIX));
+    }
+
+    /**
+     * Reads the generation of a snapshot file from its name.
+     *
+     * @return The generation, or -1 if the file is not a snapshot file.
+     */
+    public static long getGeneration(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the state for a generation.
+     *
+     * @param directory  The directory holding the snapshots.
+     * @param generation The generation of the write-ahead log the snapshot is
+     *                   followed by.
+     * @param state      The state to write.
+     * @throws IOException This exception is thrown if the snapshot cannot be
+     *                     written.
+     */
+    public static void write(Path directory, long generation, PersistedState state) throws IOException {
+        Path file = getFile(directory, generation);
+        Path temporaryFile = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+        try (FileOutputStream fileStream = new FileOutputStream(temporaryFile.toFile())) {
+            CheckedOutputStream checkedStream = new CheckedOutputStream(
+                    new BufferedOutputStream(fileStream, BUFFER_SIZE), new CRC32());
+            DataOutputStream out = new DataOutputStream(checkedStream);
+            out.writeInt(MAGIC);
+            out.writeLong(generation);
+            out.writeInt(state.getSubscriptions().size());
+            for (Map.Entry<String, Set<String>> subscription : state.getSubscriptions().entrySet()) {
+                writeString(out, subscription.getKey());
+                out.writeInt(subscription.getValue().size());
+                for (String topic : subscription.getValue()) {
+                    writeString(out, topic);
+                }
+            }
+            out.writeInt(state.getMessages().size());
+            for (PublishedMessage message : state.getMessages().values()) {
+                out.writeLong(message.getId());
+                out.writeLong(message.getCreatedTimestamp());
+                out.writeLong(message.getTtl());
+                writeBytes(out, message.getPayload());
+                Set<String> clientIds = state.getPendingClients().get(message.getId());
+                out.writeInt(clientIds.size());
+                for (String clientId : clientIds) {
+                    writeString(out, clientId);
+                }
+            }
+            out.writeInt(state.getScheduledMessages().size());
+            for (ScheduledMessage message : state.getScheduledMessages().values()) {
+                WriteAheadLog.writeScheduledMessage(out, message);
+            }
+            out.flush();
+            // The checksum covers everything written before it.
+            long checksum = checkedStream.getChecksum().getValue();
+            out.writeInt((int) checksum);
+            out.flush();
+            fileStream.getChannel().force(true);
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a snapshot into a state.
+     *
+     * @param file  The snapshot file.
+     * @param state The state to read into, which should be empty.
+     * @throws IOException This exception is thrown if the snapshot cannot be read
+     *                     or is corrupt.
+     */
+    public static void read(Path file, PersistedState state) throws IOException {
+        try (InputStream fileStream = Files.newInputStream(file)) {
+            CheckedInputStream checkedStream = new CheckedInputStream(
+                    new BufferedInputStream(fileStream, BUFFER_SIZE), new CRC32());
+            DataInputStream in = new DataInputStream(checkedStream);
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException(file + " is not a snapshot.");
+            }
+            in.readLong();
+            int clients = in.readInt();
+            for (int i = 0; i < clients; i++) {
+                String clientId = WriteAheadLog.readString(in);
+                int topics = in.readInt();
+                for (int j = 0; j < topics; j++) {
+                    state.subscribe(clientId, WriteAheadLog.readString(in));
+                }
+            }
+            int messages = in.readInt();
+            for (int i = 0; i < messages; i++) {
+                long id = in.readLong();
+                long createdTimestamp = in.readLong();
+                long ttl = in.readLong();
+                PublishedMessage message = new PublishedMessage.Builder().restore(id, createdTimestamp).ttl(ttl)
+                        .payload(WriteAheadLog.readBytes(in)).build();
+                state.addMessage(message);
+                int clientIds = in.readInt();
+                for (int j = 0; j < clientIds; j++) {
+                    state.queueMessage(id, WriteAheadLog.readString(in));
+                }
+            }
+            if (magic == MAGIC) {
+                int scheduledMessages = in.readInt();
+                for (int i = 0; i < scheduledMessages; i++) {
+                    state.scheduleMessage(WriteAheadLog.readScheduledMessage(in));
+                }
+            }
+            long checksum = checkedStream.getChecksum().getValue();
+            if (in.readInt() != (int) checksum) {
+                throw new IOException(file + " is corrupt.");
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,415 @@
+package info.michaelmogessie.pubsubdemo.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+import info.michaelmogessie.pubsubdemo.pojos.ScheduledMessage;
+
+/**
+ * An append-only log of the changes made to the handler's persisted state. The
+ * log is split into generations, one file each, and a new generation is started
+ * whenever a snapshot is taken so the older ones can be deleted.
+ *
+ * Each record is written as its length, the CRC32 of its content and the
+ * content itself. Records are buffered and written out by {@link #flush()}, so
+ * a crash loses at most the records since the last flush, and a record that was
+ * only partly written is recognized by its length or checksum and ignored
+ * during recovery.
+ */
+public class WriteAheadLog implements Journal, Closeable {
+    private static final byte SUBSCRIBED = 1;
+    private static final byte UNSUBSCRIBED = 2;
+    private static final byte CLIENT_FORGOTTEN = 3;
+    private static final byte MESSAGE_ADDED = 4;
+    private static final byte MESSAGE_QUEUED = 5;
+    private static final byte MESSAGE_DELIVERED = 6;
+    private static final byte MESSAGE_DISCARDED = 7;
+    private static final byte MESSAGE_SCHEDULED = 8;
+    private static final byte SCHEDULED_MESSAGE_PUBLISHED = 9;
+    private static final String FILE_PREFIX = "wal-";
+    private static final String FILE_SUFFIX = ".log";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final boolean fsync;
+    // Records are encoded here first so their length and checksum can be written
+    // in front of them.
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBuffer);
+    private final CRC32 crc = new CRC32();
+    private FileOutputStream file;
+    private DataOutputStream out;
+    private long generation;
+    // Set while the service shuts down. Clients disconnected by the shutdown are
+    // then not forgotten, so their subscriptions survive the restart.
+    private volatile boolean draining;
+    private boolean failed;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    /**
+     * Opens the log file of a generation, appending to it if it exists.
+     *
+     * @param directory  The directory holding the log files.
+     * @param generation The generation to write to.
+     * @param fsync      Whether each flush should also force the file to disk.
+     * @throws IOException This exception is thrown if the file cannot be opened.
+     */
+    public WriteAheadLog(Path directory, long generation, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.fsync = fsync;
+        open(generation);
+    }
+
+    private void open(long generation) throws IOException {
+        this.generation = generation;
+        this.file = new FileOutputStream(getFile(directory, generation).toFile(), true);
+        this.out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+    }
+
+    public static Path getFile(Path directory, long generation) {
+        return directory.resolve(String.format("%s%016d%s", FILE_PREFIX, generation, FILE_SUFFIX));
+    }
+
+    /**
+     * Reads the generation of a log file from its name.
+     *
+     * @return The generation, or -1 if the file is not a log file.
+     */
+    public static long getGeneration(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized void subscribed(String clientId, String topic) {
+        try {
+            record.writeByte(SUBSCRIBED);
+            writeString(clientId);
+            writeString(topic);
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void unsubscribed(String clientId, String topic) {
+        try {
+            record.writeByte(UNSUBSCRIBED);
+            writeString(clientId);
+            writeString(topic);
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void clientForgotten(String clientId) {
+        if (draining) {
+            return;
+        }
+        try {
+            record.writeByte(CLIENT_FORGOTTEN);
+            writeString(clientId);
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void messageAdded(PublishedMessage message) {
+        try {
+            record.writeByte(MESSAGE_ADDED);
+            record.writeLong(message.getId());
+            record.writeLong(message.getCreatedTimestamp());
+            record.writeLong(message.getTtl());
+            writeBytes(message.getPayload());
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void messageQueued(PublishedMessage message, String clientId) {
+        try {
+            record.writeByte(MESSAGE_QUEUED);
+            record.writeLong(message.getId());
+            writeString(clientId);
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void messageDelivered(PublishedMessage message, String clientId) {
+        try {
+            record.writeByte(MESSAGE_DELIVERED);
+            record.writeLong(message.getId());
+            writeString(clientId);
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void messageDiscarded(PublishedMessage message) {
+        try {
+            record.writeByte(MESSAGE_DISCARDED);
+            record.writeLong(message.getId());
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void messageScheduled(ScheduledMessage message) {
+        try {
+            record.writeByte(MESSAGE_SCHEDULED);
+            writeScheduledMessage(record, message);
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void scheduledMessagePublished(ScheduledMessage message) {
+        try {
+            record.writeByte(SCHEDULED_MESSAGE_PUBLISHED);
+            record.writeLong(message.getId());
+            append();
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        record.writeInt(bytes.length);
+        record.write(bytes);
+    }
+
+    /**
+     * Writes the record that has been encoded into the record buffer to the log.
+     */
+    private void append() throws IOException {
+        try {
+            crc.reset();
+            crc.update(recordBuffer.toByteArray(), 0, recordBuffer.size());
+            out.writeInt(recordBuffer.size());
+            out.writeInt((int) crc.getValue());
+            recordBuffer.writeTo(out);
+        } finally {
+            recordBuffer.reset();
+        }
+    }
+
+    private void appendFailed(IOException e) {
+        recordBuffer.reset();
+        // Only the first failure is logged, since every following record would most
+        // likely fail the same way.
+        if (!failed) {
+            failed = true;
+            logger.error("Could not write to the write-ahead log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the buffered records to the log file, and forces them to disk if
+     * fsync is enabled.
+     */
+    public synchronized void flush() {
+        try {
+            out.flush();
+            if (fsync) {
+                file.getChannel().force(false);
+            }
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    /**
+     * Flushes and closes the current log file and starts the next generation.
+     *
+     * @return The new generation.
+     * @throws IOException This exception is thrown if the new file cannot be
+     *                     opened.
+     */
+    public synchronized long rotate() throws IOException {
+        flush();
+        out.close();
+        open(generation + 1);
+        return generation;
+    }
+
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    /**
+     * Applies the records of a log file to a state, stopping at the first record
+     * that is incomplete or does not match its checksum. A record's length is
+     * checked against what is left of the file before its content is read, so a
+     * corrupt length cannot make the replay allocate more than the file holds.
+     *
+     * @param file  The log file.
+     * @param state The state to apply the records to.
+     * @return The number of records applied.
+     * @throws IOException This exception is thrown if the file cannot be read.
+     */
+    public static long replay(Path file, PersistedState state) throws IOException {
+        long applied = 0;
+        CRC32 crc = new CRC32();
+        long remaining = Files.size(file);
+        try (InputStream inputStream = Files.newInputStream(file);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE))) {
+            while (true) {
+                byte[] content;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    remaining -= 8;
+                    if (length <= 0 || length > remaining) {
+                        break;
+                    }
+                    remaining -= length;
+                    content = new byte[length];
+                    in.readFully(content);
+                    crc.reset();
+                    crc.update(content, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        logger.warn("Ignoring the rest of " + file + " after a corrupt record.");
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(content)), state);
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    private static void apply(DataInputStream in, PersistedState state) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case SUBSCRIBED:
+                state.subscribe(readString(in), readString(in));
+                break;
+            case UNSUBSCRIBED:
+                state.unsubscribe(readString(in), readString(in));
+                break;
+            case CLIENT_FORGOTTEN:
+                state.forgetClient(readString(in));
+                break;
+            case MESSAGE_ADDED:
+                long id = in.readLong();
+                long createdTimestamp = in.readLong();
+                long ttl = in.readLong();
+                state.addMessage(new PublishedMessage.Builder().restore(id, createdTimestamp).ttl(ttl)
+                        .payload(readBytes(in)).build());
+                break;
+            case MESSAGE_QUEUED:
+                state.queueMessage(in.readLong(), readString(in));
+                break;
+            case MESSAGE_DELIVERED:
+                state.deliverMessage(in.readLong(), readString(in));
+                break;
+            case MESSAGE_DISCARDED:
+                state.discardMessage(in.readLong());
+                break;
+            case MESSAGE_SCHEDULED:
+                state.scheduleMessage(readScheduledMessage(in));
+                break;
+            case SCHEDULED_MESSAGE_PUBLISHED:
+                state.scheduledMessagePublished(in.readLong());
+                break;
+            default:
+                throw new IOException("Unknown write-ahead log record type " + type);
+        }
+    }
+
+    /**
+     * Writes a scheduled message as its id, due time, topic, idempotency key (an
+     * empty one standing for none) and text. Snapshots use the same encoding.
+     */
+    static void writeScheduledMessage(DataOutputStream out, ScheduledMessage message) throws IOException {
+        out.writeLong(message.getId());
+        out.writeLong(message.getDeliverAt());
+        writeBytes(out, message.getTopic().getBytes(StandardCharsets.UTF_8));
+        String idempotencyKey = message.getIdempotencyKey() != null ? message.getIdempotencyKey() : "";
+        writeBytes(out, idempotencyKey.getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, message.getPayload());
+    }
+
+    static ScheduledMessage readScheduledMessage(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long deliverAt = in.readLong();
+        String topic = readString(in);
+        String idempotencyKey = readString(in);
+        return new ScheduledMessage.Builder().restore(id).deliverAt(deliverAt).topic(topic)
+                .idempotencyKey(idempotencyKey.isEmpty() ? null : idempotencyKey).payload(readBytes(in)).build();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -3,6 +3,13 @@ package info.michaelmogessie.pubsubdemo.pojos;
 public class Message {
     private String body;
     private String topic;
+    // Optional. Messages published to the same topic with the same key within the
+    // idempotency window are only delivered once, so publishers can retry safely.
+    private String idempotencyKey;
+    // Optional, at most one of the two. When to publish the message, either in
+    // milliseconds since the epoch or in milliseconds from now.
+    private Long deliverAt;
+    private Long delay;
 
     public void setBody(String body) {
         this.body = body;
@@ -20,4 +27,28 @@ public class Message {
         this.topic = topic;
     }
 
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public Long getDeliverAt() {
+        return deliverAt;
+    }
+
+    public void setDeliverAt(Long deliverAt) {
+        this.deliverAt = deliverAt;
+    }
+
+    public Long getDelay() {
+        return delay;
+    }
+
+    public void setDelay(Long delay) {
+        this.delay = delay;
+    }
+
 }
@@ -1,27 +1,68 @@
 package info.michaelmogessie.pubsubdemo.pojos;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import info.michaelmogessie.pubsubdemo.offheap.PayloadArena;
+import info.michaelmogessie.pubsubdemo.receipts.DeliveryReceipt;
+
 public class PublishedMessage {
+    // Hands out message ids. Ids only have to be unique within the messages that
+    // are kept, including those recovered after a restart.
+    private static final AtomicLong ID_SEQUENCE = new AtomicLong();
+    private static final AtomicIntegerFieldUpdater<PublishedMessage> PINS = AtomicIntegerFieldUpdater
+            .newUpdater(PublishedMessage.class, "pins");
+
+    private long id;
     private long createdTimestamp;
     private long ttl;
-    private String message;
+    // The UTF-8 encoded text of the message while it is on the heap. Once the
+    // message is moved into a payload arena only its handle and length are kept.
+    private byte[] payload;
+    private int payloadLength;
+    private PayloadArena arena;
+    private long payloadHandle = PayloadArena.NONE;
+    private boolean released;
+    // How many senders still hold the message, which may yet have to be kept for
+    // the clients they could not send it to.
+    private volatile int pins;
+    // Where to record what becomes of the message if it was published
+    // asynchronously, or null.
+    private final DeliveryReceipt receipt;
 
     private PublishedMessage(Builder builder) {
+        this.id = builder.id;
         this.createdTimestamp = builder.createdTimestamp;
-        this.message = builder.message;
+        this.payload = builder.payload;
+        this.payloadLength = builder.payload.length;
         this.ttl = builder.ttl;
+        this.receipt = builder.receipt;
     }
 
     public static class Builder {
         private long ttl = 60000;
-        private String message;
-        private final long createdTimestamp;
+        private byte[] payload;
+        private long createdTimestamp;
+        private long id;
+        private DeliveryReceipt receipt;
 
         public Builder() {
             this.createdTimestamp = System.currentTimeMillis();
+            this.id = ID_SEQUENCE.incrementAndGet();
         }
 
         public Builder message(String message) {
-            this.message = message;
+            this.payload = message.getBytes(StandardCharsets.UTF_8);
+            return this;
+        }
+
+        /**
+         * Sets the text of the message as UTF-8 encoded bytes, which must not be
+         * modified afterwards.
+         */
+        public Builder payload(byte[] payload) {
+            this.payload = payload;
             return this;
         }
 
@@ -30,11 +71,62 @@ public class PublishedMessage {
             return this;
         }
 
+        public Builder receipt(DeliveryReceipt receipt) {
+            this.receipt = receipt;
+            return this;
+        }
+
+        /**
+         * Sets the id and creation time of a message that is being restored, for
+         * example after a restart. Ids handed out afterwards will be higher.
+         */
+        public Builder restore(long id, long createdTimestamp) {
+            this.id = id;
+            this.createdTimestamp = createdTimestamp;
+            ID_SEQUENCE.accumulateAndGet(id, Math::max);
+            return this;
+        }
+
         public PublishedMessage build() {
             return new PublishedMessage(this);
         }
     }
 
+    /**
+     * Moves the text of the message into a payload arena, unless the arena cannot
+     * take it. Must not be called concurrently with the other methods.
+     *
+     * @param arena The arena to move the text to.
+     */
+    public void moveOffHeap(PayloadArena arena) {
+        if (payload == null) {
+            return;
+        }
+        long handle = arena.store(payload);
+        if (handle != PayloadArena.NONE) {
+            this.arena = arena;
+            this.payloadHandle = handle;
+            this.payload = null;
+        }
+    }
+
+    /**
+     * Gives the text of the message back to the arena it was moved to. The text
+     * cannot be read afterwards.
+     */
+    public void release() {
+        if (payloadHandle != PayloadArena.NONE) {
+            arena.free(payloadHandle, payloadLength);
+            payloadHandle = PayloadArena.NONE;
+        }
+        payload = null;
+        released = true;
+    }
+
+    public long getId() {
+        return id;
+    }
+
     public long getCreatedTimestamp() {
         return createdTimestamp;
     }
@@ -44,7 +136,50 @@ public class PublishedMessage {
     }
 
     public String getMessage() {
-        return message;
+        return new String(getPayload(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The UTF-8 encoded text of the message, copied out of the arena if
+     *         it has been moved there.
+     */
+    public byte[] getPayload() {
+        return payloadHandle != PayloadArena.NONE ? arena.read(payloadHandle, payloadLength) : payload;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public DeliveryReceipt getReceipt() {
+        return receipt;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Records that the message is still being sent, or is about to be kept for a
+     * client it could not be sent to, so that it must not be discarded even if no
+     * client is waiting for it yet.
+     */
+    public void pin() {
+        PINS.incrementAndGet(this);
+    }
+
+    /**
+     * Takes back one {@link #pin()}.
+     */
+    public void unpin() {
+        PINS.decrementAndGet(this);
+    }
+
+    /**
+     * @return True if the message is still being sent or about to be kept.
+     */
+    public boolean isPinned() {
+        return pins > 0;
     }
 
 }
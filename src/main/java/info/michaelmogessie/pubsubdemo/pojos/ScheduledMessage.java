@@ -0,0 +1,99 @@
+package info.michaelmogessie.pubsubdemo.pojos;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A message that has been accepted for publishing at a later time and is
+ * waiting for it.
+ */
+public class ScheduledMessage {
+    // Hands out message ids. Ids only have to be unique within the messages that
+    // are waiting, including those recovered after a restart.
+    private static final AtomicLong ID_SEQUENCE = new AtomicLong();
+
+    private final long id;
+    private final String topic;
+    // The UTF-8 encoded text of the message.
+    private final byte[] payload;
+    private final String idempotencyKey;
+    // When to publish the message, in milliseconds since the epoch.
+    private final long deliverAt;
+
+    private ScheduledMessage(Builder builder) {
+        this.id = builder.id;
+        this.topic = builder.topic;
+        this.payload = builder.payload;
+        this.idempotencyKey = builder.idempotencyKey;
+        this.deliverAt = builder.deliverAt;
+    }
+
+    public static class Builder {
+        private long id;
+        private String topic;
+        private byte[] payload;
+        private String idempotencyKey;
+        private long deliverAt;
+
+        public Builder() {
+            this.id = ID_SEQUENCE.incrementAndGet();
+        }
+
+        public Builder topic(String topic) {
+            this.topic = topic;
+            return this;
+        }
+
+        /**
+         * Sets the text of the message as UTF-8 encoded bytes, which must not be
+         * modified afterwards.
+         */
+        public Builder payload(byte[] payload) {
+            this.payload = payload;
+            return this;
+        }
+
+        public Builder idempotencyKey(String idempotencyKey) {
+            this.idempotencyKey = idempotencyKey;
+            return this;
+        }
+
+        public Builder deliverAt(long deliverAt) {
+            this.deliverAt = deliverAt;
+            return this;
+        }
+
+        /**
+         * Sets the id of a message that is being restored, for example after a
+         * restart. Ids handed out afterwards will be higher.
+         */
+        public Builder restore(long id) {
+            this.id = id;
+            ID_SEQUENCE.accumulateAndGet(id, Math::max);
+            return this;
+        }
+
+        public ScheduledMessage build() {
+            return new ScheduledMessage(this);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public long getDeliverAt() {
+        return deliverAt;
+    }
+}
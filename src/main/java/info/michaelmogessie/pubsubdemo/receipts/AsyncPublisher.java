@@ -0,0 +1,143 @@
+package info.michaelmogessie.pubsubdemo.receipts;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.excpetions.TopicNotFoundException;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Publishes messages in the background, so that the publisher gets an answer
+ * as soon as its message has been accepted instead of once it has been sent to
+ * every subscriber. Each message gets a receipt in the receipt store, where the
+ * publisher can look up how its delivery went.
+ *
+ * The messages are published by a number of lanes, each a single thread with a
+ * bounded queue. A topic always falls in the same lane, chosen by its name, so
+ * its messages are published in the order they were accepted. A message is
+ * turned away when its lane's queue is full. The messages waiting in the lanes
+ * are published as the pubsub.async.queued gauge and turned away messages are
+ * counted in pubsub.async.rejected.
+ */
+@Component
+public class AsyncPublisher {
+    private static final String METRIC_QUEUED = "pubsub.async.queued";
+    private static final String METRIC_REJECTED = "pubsub.async.rejected";
+    private static final long RETRY_AFTER_SECONDS = 1;
+
+    private final ReceiptStore receiptStore;
+    private final ThreadPoolExecutor[] lanes;
+    private final Counter rejected = Metrics.counter(METRIC_REJECTED);
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(AsyncPublisher.class);
+
+    /**
+     * Constructor for the asynchronous publisher. Spring will inject the receipt
+     * store and the settings from the appropriate application.properties file.
+     *
+     * @param receiptStore  The store to keep the receipts in.
+     * @param laneCount     How many threads to publish with.
+     * @param queueCapacity How many messages may wait in each lane.
+     */
+    @Autowired
+    public AsyncPublisher(ReceiptStore receiptStore, @Value("${async.publish.lanes}") int laneCount,
+            @Value("${async.publish.queue.capacity}") int queueCapacity) {
+        this.receiptStore = receiptStore;
+        this.lanes = new ThreadPoolExecutor[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            String threadName = "async-publisher-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        Gauge.builder(METRIC_QUEUED, this, AsyncPublisher::getQueued).register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Accepts a message to be published in the background.
+     *
+     * @param topic          The topic to publish the message to.
+     * @param payload        The UTF-8 encoded text of the message, which must not
+     *                       be modified afterwards.
+     * @param idempotencyKey The idempotency key of the message, or null.
+     * @return The receipt of the message.
+     * @throws TopicNotFoundException This exception is thrown if the topic does
+     *                                not exist.
+     * @throws OverloadedException    This exception is thrown if the lane's queue
+     *                                is full.
+     */
+    public DeliveryReceipt publish(String topic, byte[] payload, String idempotencyKey)
+            throws TopicNotFoundException, OverloadedException {
+        if (topic == null || !WebSocketHandler.getTopicSubscriberMap().containsKey(topic)) {
+            throw new TopicNotFoundException();
+        }
+        DeliveryReceipt receipt = receiptStore.create(topic);
+        try {
+            lanes[Math.floorMod(topic.hashCode(), lanes.length)].execute(() -> {
+                try {
+                    WebSocketHandler.publish(topic, payload, idempotencyKey, receipt);
+                } catch (OverloadedException e) {
+                    receipt.setStatus(DeliveryReceipt.Status.REJECTED);
+                } catch (TopicNotFoundException e) {
+                    // Topics are not removed while the service is running.
+                } catch (RuntimeException e) {
+                    // The lane keeps publishing the messages after this one.
+                    logger.error("Publishing message " + receipt.getId() + " to " + topic + " failed", e);
+                    receipt.setStatus(DeliveryReceipt.Status.FAILED);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            receiptStore.remove(receipt.getId());
+            rejected.increment();
+            throw new OverloadedException(RETRY_AFTER_SECONDS, true);
+        }
+        return receipt;
+    }
+
+    /**
+     * @return How many messages are waiting to be published.
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queued += lane.getQueue().size();
+        }
+        return queued;
+    }
+
+    /**
+     * Stops the lanes when the service shuts down, after they have published the
+     * messages that are waiting.
+     */
+    @PreDestroy
+    public void close() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        try {
+            for (ThreadPoolExecutor lane : lanes) {
+                lane.awaitTermination(5, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package info.michaelmogessie.pubsubdemo.receipts;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What has become of a message that was published asynchronously: whether it
+ * has been sent to the topic's subscribers yet and, if so, to how many it was
+ * sent, how many sends failed and how many subscribers were offline.
+ *
+ * The counts keep changing after the message has been published while batches
+ * of coalescing subscribers are still waiting to be sent. A subscriber counts as
+ * targeted once the message is handed to it, and as sent, failed or queued
+ * offline once that is known, so targeted minus the other three is how many
+ * sends are still in flight.
+ */
+public class DeliveryReceipt {
+    // Hands out message ids.
+    private static final AtomicLong ID_SEQUENCE = new AtomicLong();
+
+    /**
+     * How far the message has got.
+     */
+    public enum Status {
+        /** The message is waiting to be sent. */
+        ACCEPTED,
+        /** The message has been handed to all the topic's subscribers. */
+        PUBLISHED,
+        /** The message was not sent, since it has been published with its idempotency key before. */
+        DUPLICATE,
+        /** The message was not sent, since the topic's dispatch pool was full. */
+        REJECTED,
+        /** Publishing the message broke off with an error, so it may not have been sent to everyone. */
+        FAILED
+    }
+
+    private final long id = ID_SEQUENCE.incrementAndGet();
+    private final String topic;
+    private final long acceptedAt = System.currentTimeMillis();
+    // When the receipt is dropped from the store, from System.nanoTime().
+    private final long expiresAtNanos;
+    private volatile Status status = Status.ACCEPTED;
+    private final AtomicInteger targeted = new AtomicInteger();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger queuedOffline = new AtomicInteger();
+
+    DeliveryReceipt(String topic, long expiresAtNanos) {
+        this.topic = topic;
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    /**
+     * Records that the message is handed to a number of subscribers.
+     */
+    public void targeted(int subscribers) {
+        targeted.addAndGet(subscribers);
+    }
+
+    /**
+     * Records that the message has been sent to a subscriber.
+     */
+    public void sent() {
+        sent.incrementAndGet();
+    }
+
+    /**
+     * Records that the message could not be sent to a subscriber, and is kept for
+     * it as an unreceived message.
+     */
+    public void failed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Records that the message is kept for a subscriber that is not connected.
+     */
+    public void queuedOffline() {
+        queuedOffline.incrementAndGet();
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * @return When the message was accepted, in milliseconds since the epoch.
+     */
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getTargeted() {
+        return targeted.get();
+    }
+
+    public int getSent() {
+        return sent.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public int getQueuedOffline() {
+        return queuedOffline.get();
+    }
+
+    long getExpiresAtNanos() {
+        return expiresAtNanos;
+    }
+}
@@ -0,0 +1,112 @@
+package info.michaelmogessie.pubsubdemo.receipts;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Keeps the receipts of asynchronously published messages for a while, so that
+ * publishers can look up what became of their messages.
+ *
+ * A receipt is kept for a fixed time after its message was accepted. Receipts
+ * are kept in the order they were created, which is also the order they expire
+ * in, so expired receipts are dropped from the front whenever a receipt is
+ * added. When the store is full the oldest receipt is dropped to make room, so
+ * it never holds more than its capacity. The number of receipts kept is
+ * published as the pubsub.receipts.stored gauge and receipts dropped before
+ * they expired are counted in pubsub.receipts.evicted.
+ */
+@Component
+public class ReceiptStore {
+    private static final String METRIC_STORED = "pubsub.receipts.stored";
+    private static final String METRIC_EVICTED = "pubsub.receipts.evicted";
+
+    private final int capacity;
+    private final long ttlNanos;
+    // The receipts by message id, oldest first. Guarded by the lock on this
+    // object.
+    private final Map<Long, DeliveryReceipt> receipts = new LinkedHashMap<>();
+    private final Counter evicted = Metrics.counter(METRIC_EVICTED);
+
+    /**
+     * Constructor for the receipt store. Spring will inject the settings from the
+     * appropriate application.properties file.
+     *
+     * @param capacity        How many receipts to keep at most.
+     * @param ttlMilliseconds How long a receipt is kept.
+     */
+    @Autowired
+    public ReceiptStore(@Value("${receipts.capacity}") int capacity,
+            @Value("${receipts.ttl.milliseconds}") long ttlMilliseconds) {
+        this.capacity = Math.max(1, capacity);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMilliseconds);
+        Gauge.builder(METRIC_STORED, this, ReceiptStore::size).register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Creates and keeps the receipt of a message that is about to be published.
+     *
+     * @param topic The topic the message is published to.
+     * @return The receipt.
+     */
+    public DeliveryReceipt create(String topic) {
+        long now = System.nanoTime();
+        DeliveryReceipt receipt = new DeliveryReceipt(topic, now + ttlNanos);
+        synchronized (this) {
+            Iterator<DeliveryReceipt> oldest = receipts.values().iterator();
+            while (oldest.hasNext()) {
+                DeliveryReceipt next = oldest.next();
+                if (next.getExpiresAtNanos() - now <= 0) {
+                    oldest.remove();
+                } else if (receipts.size() >= capacity) {
+                    oldest.remove();
+                    evicted.increment();
+                } else {
+                    break;
+                }
+            }
+            receipts.put(receipt.getId(), receipt);
+        }
+        return receipt;
+    }
+
+    /**
+     * @param id The id of the message.
+     * @return The receipt of the message, or null if there is none or it has
+     *         expired.
+     */
+    public DeliveryReceipt get(long id) {
+        DeliveryReceipt receipt;
+        synchronized (this) {
+            receipt = receipts.get(id);
+        }
+        return receipt == null || receipt.getExpiresAtNanos() - System.nanoTime() <= 0 ? null : receipt;
+    }
+
+    /**
+     * Forgets the receipt of a message that was turned away before it could be
+     * published.
+     *
+     * @param id The id of the message.
+     */
+    public synchronized void remove(long id) {
+        receipts.remove(id);
+    }
+
+    /**
+     * @return How many receipts are kept, including expired ones that have not
+     *         been dropped yet.
+     */
+    public synchronized int size() {
+        return receipts.size();
+    }
+}
@@ -0,0 +1,246 @@
+package info.michaelmogessie.pubsubdemo.scheduling;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.excpetions.TopicNotFoundException;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import info.michaelmogessie.pubsubdemo.persistence.Journal;
+import info.michaelmogessie.pubsubdemo.pojos.ScheduledMessage;
+import info.michaelmogessie.pubsubdemo.timers.HashedWheelTimer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Holds messages that are to be published at a later time and publishes them
+ * when they are due, through the same path as messages that are published
+ * right away.
+ *
+ * The messages wait on a hashed wheel timer, so there can be many of them at
+ * little cost, and are published up to one tick late. They are published on a
+ * separate thread, since publishing may block on slow subscribers. A message
+ * with an idempotency key is checked against the idempotency cache when it is
+ * published, so the same message scheduled twice for the same time is only
+ * published once.
+ *
+ * The bodies of the waiting messages may take up to a budget of bytes; further
+ * messages are turned away until some have been published. When persistence is
+ * enabled the waiting messages are journaled, and those recovered after a
+ * restart are published right away if their time has passed. The number of
+ * waiting messages and their bytes are published as the pubsub.scheduled.pending
+ * and pubsub.scheduled.pending.bytes gauges, and turned away messages are
+ * counted in pubsub.scheduled.rejected.
+ */
+@Component
+public class ScheduledPublisher {
+    private static final String METRIC_PENDING = "pubsub.scheduled.pending";
+    private static final String METRIC_PENDING_BYTES = "pubsub.scheduled.pending.bytes";
+    private static final String METRIC_REJECTED = "pubsub.scheduled.rejected";
+    private static final int TICKS_PER_WHEEL = 512;
+    private static final long RETRY_AFTER_SECONDS = 1;
+
+    private final long maxDelayMilliseconds;
+    private final long budgetBytes;
+    private final HashedWheelTimer timer;
+    // The waiting messages, keyed by id. Guarded by the lock on this object.
+    private final Map<Long, ScheduledMessage> pending = new LinkedHashMap<>();
+    private long pendingBytes;
+    private final Counter rejected = Metrics.counter(METRIC_REJECTED);
+    private volatile Journal journal = Journal.NONE;
+    private volatile ExecutorService executor;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(ScheduledPublisher.class);
+
+    /**
+     * Constructor for the scheduled publisher. Spring will inject the settings
+     * from the appropriate application.properties file.
+     *
+     * @param tickMilliseconds     How late a message may be published at most.
+     * @param maxDelayMilliseconds How far ahead a message may be scheduled.
+     * @param budgetBytes          How many bytes the bodies of the waiting
+     *                             messages may take, or 0 for no limit.
+     */
+    @Autowired
+    public ScheduledPublisher(@Value("${scheduled.tick.milliseconds}") long tickMilliseconds,
+            @Value("${scheduled.max.delay.milliseconds}") long maxDelayMilliseconds,
+            @Value("${scheduled.budget.bytes}") long budgetBytes) {
+        this.maxDelayMilliseconds = maxDelayMilliseconds;
+        this.budgetBytes = budgetBytes;
+        this.timer = new HashedWheelTimer("scheduled-timer", Math.max(1, tickMilliseconds), TimeUnit.MILLISECONDS,
+                TICKS_PER_WHEEL);
+        Gauge.builder(METRIC_PENDING, this, ScheduledPublisher::getPending).register(Metrics.globalRegistry);
+        Gauge.builder(METRIC_PENDING_BYTES, this, ScheduledPublisher::getPendingBytes).baseUnit("bytes")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Schedules a message to be published later.
+     *
+     * @param topic          The topic to publish the message to.
+     * @param payload        The UTF-8 encoded text of the message, which must not
+     *                       be modified afterwards.
+     * @param idempotencyKey The idempotency key of the message, or null.
+     * @param deliverAt      When to publish the message, in milliseconds since
+     *                       the epoch.
+     * @return The scheduled message.
+     * @throws TopicNotFoundException   This exception is thrown if the topic does
+     *                                  not exist.
+     * @throws OverloadedException      This exception is thrown if the waiting
+     *                                  messages already take the whole budget.
+     * @throws IllegalArgumentException This exception is thrown if the message is
+     *                                  scheduled too far ahead.
+     */
+    public ScheduledMessage schedule(String topic, byte[] payload, String idempotencyKey, long deliverAt)
+            throws TopicNotFoundException, OverloadedException {
+        if (topic == null || !WebSocketHandler.getTopicSubscriberMap().containsKey(topic)) {
+            throw new TopicNotFoundException();
+        }
+        if (deliverAt - System.currentTimeMillis() > maxDelayMilliseconds) {
+            throw new IllegalArgumentException("Messages can be scheduled at most " + maxDelayMilliseconds
+                    + " milliseconds ahead");
+        }
+        ScheduledMessage message = new ScheduledMessage.Builder().topic(topic).payload(payload)
+                .idempotencyKey(idempotencyKey).deliverAt(deliverAt).build();
+        synchronized (this) {
+            if (budgetBytes > 0 && pendingBytes + payload.length > budgetBytes) {
+                rejected.increment();
+                throw new OverloadedException(RETRY_AFTER_SECONDS, true);
+            }
+            add(message);
+            journal.messageScheduled(message);
+        }
+        arm(message, deliverAt - System.currentTimeMillis());
+        return message;
+    }
+
+    /**
+     * Schedules a message recovered after a restart, whatever the budget. It is
+     * published right away if its time has passed. The message is journaled
+     * again, since the snapshot taken during recovery does not hold it.
+     *
+     * @param message The message.
+     */
+    public void restore(ScheduledMessage message) {
+        synchronized (this) {
+            if (pending.containsKey(message.getId())) {
+                return;
+            }
+            add(message);
+            journal.messageScheduled(message);
+        }
+        arm(message, message.getDeliverAt() - System.currentTimeMillis());
+    }
+
+    private void add(ScheduledMessage message) {
+        pending.put(message.getId(), message);
+        pendingBytes += message.getPayload().length;
+    }
+
+    private void arm(ScheduledMessage message, long delayMilliseconds) {
+        timer.schedule(() -> getExecutor().execute(() -> publish(message)), delayMilliseconds,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes a message that is due. A message that is turned away because its
+     * topic's dispatch pool is full is tried again later. A message whose
+     * publishing fails otherwise is logged and dropped, since it may already have
+     * been sent to some subscribers.
+     */
+    private void publish(ScheduledMessage message) {
+        try {
+            WebSocketHandler.publish(message.getTopic(), message.getPayload(), message.getIdempotencyKey());
+        } catch (OverloadedException e) {
+            arm(message, TimeUnit.SECONDS.toMillis(e.getRetryAfterSeconds()));
+            return;
+        } catch (TopicNotFoundException e) {
+            logger.error("Dropping scheduled message " + message.getId() + " for unknown topic "
+                    + message.getTopic());
+        } catch (RuntimeException e) {
+            logger.error("Dropping scheduled message " + message.getId() + " to " + message.getTopic()
+                    + " after publishing it failed", e);
+        }
+        synchronized (this) {
+            if (pending.remove(message.getId()) != null) {
+                pendingBytes -= message.getPayload().length;
+                journal.scheduledMessagePublished(message);
+            }
+        }
+    }
+
+    /**
+     * Calls a consumer with each waiting message, in the order they were
+     * scheduled.
+     *
+     * @param consumer The consumer.
+     */
+    public void forEachPending(Consumer<ScheduledMessage> consumer) {
+        List<ScheduledMessage> messages;
+        synchronized (this) {
+            messages = new ArrayList<>(pending.values());
+        }
+        messages.forEach(consumer);
+    }
+
+    /**
+     * @return How many messages are waiting.
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return How many bytes the bodies of the waiting messages take.
+     */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = Executors.newSingleThreadExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "scheduled-publisher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Stops publishing when the service shuts down. Messages that have not been
+     * published yet stay in the journal if persistence is enabled.
+     */
+    @PreDestroy
+    public void close() {
+        timer.stop();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
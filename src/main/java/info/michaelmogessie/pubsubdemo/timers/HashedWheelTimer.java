@@ -0,0 +1,238 @@
+package info.michaelmogessie.pubsubdemo.timers;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A timer for large numbers of tasks that do not need to run at the exact
+ * moment they are due, such as one per connected client. Scheduling and
+ * cancelling a task take constant time and no lock, where a scheduled executor
+ * keeps its tasks in a heap and locks it for every change.
+ *
+ * Time is divided into ticks and the tasks are kept in a wheel of buckets, one
+ * per tick. A task goes into the bucket of the tick it is due in, together with
+ * how many turns of the wheel are left before then. A single daemon thread,
+ * started with the first task, moves through the wheel one bucket per tick and
+ * runs the tasks in it that are due, so a task runs up to one tick late. Tasks
+ * run on that thread and must be short; anything that may block should be
+ * handed to another thread.
+ *
+ * Newly scheduled tasks are handed to the thread through a queue and only
+ * placed in the wheel by it, so the buckets are never shared between threads.
+ * Cancelled tasks are dropped when their bucket comes up.
+ */
+public class HashedWheelTimer {
+    private final String threadName;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Thread worker;
+    private volatile boolean stopped;
+    private long startNanos;
+
+    // Initialize SLF4J logger.
+    private static Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * Constructor for the timer.
+     *
+     * @param threadName    The name of the timer's thread.
+     * @param tickDuration  How long a tick takes, which is how late a task may
+     *                      run at most.
+     * @param unit          The unit of the tick duration.
+     * @param ticksPerWheel How many buckets the wheel has, rounded up to a power
+     *                      of two. Tasks due further away than a turn of the
+     *                      wheel wait in their bucket for the turns in between.
+     */
+    public HashedWheelTimer(String threadName, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("The tick duration and the ticks per wheel must be positive");
+        }
+        this.threadName = threadName;
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules a task to run once after a delay.
+     *
+     * @param task  The task.
+     * @param delay How long to wait before running it.
+     * @param unit  The unit of the delay.
+     * @return The scheduled task, which can be cancelled.
+     * @throws IllegalStateException This exception is thrown if the timer has
+     *                               been stopped.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("The timer has been stopped");
+        }
+        start();
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return How many tasks are scheduled and have neither run nor been
+     *         cancelled.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the timer. Tasks that have not run yet never will.
+     */
+    public void stop() {
+        stopped = true;
+        Thread thread = worker;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void start() {
+        if (worker == null) {
+            synchronized (this) {
+                if (worker == null) {
+                    startNanos = System.nanoTime();
+                    Thread thread = new Thread(this::run, threadName);
+                    thread.setDaemon(true);
+                    thread.start();
+                    worker = thread;
+                }
+            }
+        }
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!stopped) {
+            long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            transferScheduled(tick);
+            wheel[(int) (tick & mask)].expire(tick);
+            tick++;
+        }
+    }
+
+    /**
+     * Places the newly scheduled tasks in the wheel. A task that is already due
+     * goes into the current bucket so it runs right away.
+     */
+    private void transferScheduled(long currentTick) {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+            long dueTick = Math.max(timeout.deadlineNanos / tickNanos, currentTick);
+            timeout.dueTick = dueTick;
+            wheel[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * A task scheduled on the timer.
+     */
+    public class Timeout {
+        private static final int WAITING = 0;
+        private static final int RUN = 1;
+        private static final int CANCELLED = 2;
+
+        private final Runnable task;
+        // When the task is due, in nanoseconds since the timer started.
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long dueTick;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Cancels the task if it has not run yet.
+         *
+         * @return Whether the task was cancelled.
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /**
+     * The tasks due in one tick of every turn of the wheel, as a singly linked
+     * list only touched by the timer's thread.
+     */
+    private class Bucket {
+        private Timeout head;
+
+        private void add(Timeout timeout) {
+            timeout.next = head;
+            head = timeout;
+        }
+
+        /**
+         * Runs the tasks that are due in this tick and drops the cancelled ones,
+         * keeping those due in a later turn of the wheel.
+         */
+        private void expire(long currentTick) {
+            Timeout timeout = head;
+            Timeout kept = null;
+            head = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.dueTick > currentTick && timeout.state.get() == Timeout.WAITING) {
+                    timeout.next = kept;
+                    kept = timeout;
+                } else if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.RUN)) {
+                    pending.decrementAndGet();
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        logger.error("A task of timer " + threadName + " failed", t);
+                    }
+                }
+                timeout = next;
+            }
+            while (kept != null) {
+                Timeout next = kept.next;
+                add(kept);
+                kept = next;
+            }
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package info.michaelmogessie.pubsubdemo.controllers;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.util.List;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,8 +28,16 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.excpetions.RateLimitExceededException;
 import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import info.michaelmogessie.pubsubdemo.limits.LoadShedder;
+import info.michaelmogessie.pubsubdemo.limits.RateLimiter;
 import info.michaelmogessie.pubsubdemo.pojos.Message;
+import info.michaelmogessie.pubsubdemo.receipts.AsyncPublisher;
+import info.michaelmogessie.pubsubdemo.receipts.DeliveryReceipt;
+import info.michaelmogessie.pubsubdemo.receipts.ReceiptStore;
+import info.michaelmogessie.pubsubdemo.scheduling.ScheduledPublisher;
 
 @RunWith(SpringRunner.class)
 @WebMvcTest(MessageController.class)
@@ -31,12 +49,32 @@ public class MessageControllerIntegrationTest {
     @MockBean
     private WebSocketHandler webSocketHandler;
 
+    @MockBean
+    private RateLimiter rateLimiter;
+
+    @MockBean
+    private LoadShedder loadShedder;
+
+    @MockBean
+    private ScheduledPublisher scheduledPublisher;
+
+    @MockBean
+    private AsyncPublisher asyncPublisher;
+
+    @MockBean
+    private ReceiptStore receiptStore;
+
     @Value("#{${message.topics}}")
     List<String> topics;
 
     @Value("${housekeepingthread.sleepduration.milliseconds}")
     int houseKeepingThreadSleepDurationMilliseconds;
 
+    @Before
+    public void setup() {
+        when(rateLimiter.getPublisherHeader()).thenReturn("X-Publisher-Id");
+    }
+
     @Test
     public void givenMessagePublishMessageAndReturnSuccess() throws Exception {
         webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
@@ -60,4 +98,77 @@ public class MessageControllerIntegrationTest {
                 .contentType(MediaType.APPLICATION_JSON)).andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void givenMessageOverRateLimitTryToPublishMessageAndReturnTooManyRequests() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+        doThrow(new RateLimitExceededException(3)).when(rateLimiter).acquire(any(), any());
+        Message message = new Message();
+        message.setBody("32 degrees");
+        message.setTopic("temperature");
+
+        mvc.perform(post("/topics").content(new ObjectMapper().writeValueAsString(message))
+                .contentType(MediaType.APPLICATION_JSON).header("X-Publisher-Id", "publisher1"))
+                .andExpect(status().isTooManyRequests()).andExpect(header().string("Retry-After", "3"));
+    }
+
+    @Test
+    public void givenMalformedMessageTryToPublishMessageAndReturnError() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        mvc.perform(post("/topics").content("{\"topic\":\"temperature\"").contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void givenOverloadedServiceTryToPublishMessageAndReturnServiceUnavailable() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+        doThrow(new OverloadedException(5, true)).when(loadShedder).check(any());
+        Message message = new Message();
+        message.setBody("32 degrees");
+        message.setTopic("temperature");
+
+        mvc.perform(post("/topics").content(new ObjectMapper().writeValueAsString(message))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isServiceUnavailable()).andExpect(header().string("Retry-After", "5"));
+    }
+
+    @Test
+    public void givenDelayedMessageScheduleItAndReturnAccepted() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        mvc.perform(post("/topics").content("{\"topic\":\"temperature\",\"body\":\"32 degrees\",\"delay\":60000}")
+                .contentType(MediaType.APPLICATION_JSON)).andExpect(status().isAccepted());
+        verify(scheduledPublisher).schedule(eq("temperature"), any(), any(), anyLong());
+    }
+
+    @Test
+    public void givenAsyncPublishReturnAcceptedWithMessageId() throws Exception {
+        DeliveryReceipt receipt = new ReceiptStore(1, 60000).create("temperature");
+        when(asyncPublisher.publish(eq("temperature"), any(), any())).thenReturn(receipt);
+
+        mvc.perform(post("/topics?async=true").content("{\"topic\":\"temperature\",\"body\":\"32 degrees\"}")
+                .contentType(MediaType.APPLICATION_JSON)).andExpect(status().isAccepted())
+                .andExpect(header().string("Location", "/receipts/" + receipt.getId()))
+                .andExpect(jsonPath("$.id").value(receipt.getId()));
+    }
+
+    @Test
+    public void givenMessageIdReturnItsReceiptOrNotFound() throws Exception {
+        DeliveryReceipt receipt = new ReceiptStore(1, 60000).create("temperature");
+        receipt.targeted(2);
+        receipt.sent();
+        receipt.queuedOffline();
+        receipt.setStatus(DeliveryReceipt.Status.PUBLISHED);
+        when(receiptStore.get(receipt.getId())).thenReturn(receipt);
+
+        mvc.perform(get("/receipts/" + receipt.getId())).andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("PUBLISHED"))
+                .andExpect(jsonPath("$.topic").value("temperature"))
+                .andExpect(jsonPath("$.targeted").value(2))
+                .andExpect(jsonPath("$.sent").value(1))
+                .andExpect(jsonPath("$.failed").value(0))
+                .andExpect(jsonPath("$.queuedOffline").value(1));
+        mvc.perform(get("/receipts/" + (receipt.getId() + 1))).andExpect(status().isNotFound());
+    }
+
 }
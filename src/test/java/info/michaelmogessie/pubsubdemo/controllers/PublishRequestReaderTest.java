@@ -0,0 +1,69 @@
+package info.michaelmogessie.pubsubdemo.controllers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+import org.junit.jupiter.api.Test;
+
+import info.michaelmogessie.pubsubdemo.controllers.PublishRequestReader.PublishRequest;
+
+public class PublishRequestReaderTest {
+
+    private final PublishRequestReader publishRequestReader = new PublishRequestReader(new JsonFactory());
+
+    @Test
+    void testBodyIsCopiedFromTheRequestAsItIs() throws Exception {
+        PublishRequest publishRequest = read("{\"topic\":\"temperature\",\"body\":\"32 \u00b0C\"}");
+
+        assertEquals("temperature", publishRequest.getTopic());
+        assertArrayEquals("32 \u00b0C".getBytes(StandardCharsets.UTF_8), publishRequest.getPayload());
+        assertNull(publishRequest.getIdempotencyKey());
+    }
+
+    @Test
+    void testBodyWithEscapeSequencesIsDecoded() throws Exception {
+        PublishRequest publishRequest = read("{\"body\":\"say \\\"hi\\\"\\n\",\"topic\":\"temperature\"}");
+
+        assertArrayEquals("say \"hi\"\n".getBytes(StandardCharsets.UTF_8), publishRequest.getPayload());
+    }
+
+    @Test
+    void testOtherFieldsAreSkippedAndIdempotencyKeyIsRead() throws Exception {
+        PublishRequest publishRequest = read("{\"extra\":{\"body\":\"no\",\"list\":[1,2]},\"topic\":\"temperature\","
+                + "\"idempotencyKey\":\"request-1\",\"body\":32}");
+
+        assertEquals("request-1", publishRequest.getIdempotencyKey());
+        assertArrayEquals("32".getBytes(StandardCharsets.UTF_8), publishRequest.getPayload());
+    }
+
+    @Test
+    void testDeliverAtOrDelayIsRead() throws Exception {
+        assertEquals(0, read("{\"topic\":\"temperature\",\"body\":\"32\"}").getDeliverAt());
+        assertEquals(1234, read("{\"topic\":\"temperature\",\"body\":\"32\",\"deliverAt\":1234}").getDeliverAt());
+        long before = System.currentTimeMillis();
+        long deliverAt = read("{\"delay\":60000,\"topic\":\"temperature\",\"body\":\"32\"}").getDeliverAt();
+        assertTrue(deliverAt >= before + 60000 && deliverAt <= System.currentTimeMillis() + 60000);
+    }
+
+    @Test
+    void testInvalidRequestsAreRejected() {
+        assertThrows(IOException.class, () -> read("{\"topic\":\"temperature\"}"));
+        assertThrows(IOException.class, () -> read("[\"temperature\"]"));
+        assertThrows(IOException.class, () -> read("{\"topic\":\"temperature\",\"body\":\"32"));
+        assertThrows(IOException.class, () -> read("{\"topic\":\"temperature\",\"body\":{\"value\":32}}"));
+        assertThrows(IOException.class, () -> read("{\"body\":\"32\",\"deliverAt\":1234,\"delay\":5}"));
+        assertThrows(IOException.class, () -> read("{\"body\":\"32\",\"delay\":-5}"));
+    }
+
+    private PublishRequest read(String request) throws IOException {
+        return publishRequestReader.read(request.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,5 +1,7 @@
 package info.michaelmogessie.pubsubdemo.fakes;
 
+import java.util.UUID;
+
 import org.springframework.web.socket.TextMessage;
 
 import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
@@ -10,7 +12,7 @@ public class FakeClient implements Runnable {
     private final String topic;
 
     public FakeClient(WebSocketHandler webSocketHandler, String topic) {
-        this.id = System.currentTimeMillis() + "";
+        this.id = UUID.randomUUID().toString();
         this.webSocketHandler = webSocketHandler;
         this.topic = topic;
     }
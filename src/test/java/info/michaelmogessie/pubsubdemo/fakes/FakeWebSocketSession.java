@@ -5,6 +5,8 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -17,10 +19,18 @@ import org.springframework.web.socket.WebSocketSession;
 public class FakeWebSocketSession implements WebSocketSession {
 
     private String id;
+    private String query;
     private String message;
+    private List<String> messages = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean open = true;
 
     public FakeWebSocketSession(String id) {
+        this(id, "clientId=" + id);
+    }
+
+    public FakeWebSocketSession(String id, String query) {
         this.id = id;
+        this.query = query;
     }
 
     @Override
@@ -31,7 +41,7 @@ public class FakeWebSocketSession implements WebSocketSession {
     @Override
     public URI getUri() {
         try {
-            return new URI("fake.com?clientId=" + id);
+            return new URI("fake.com?" + query);
         } catch (URISyntaxException e) {
             return null;
         }
@@ -106,27 +116,29 @@ public class FakeWebSocketSession implements WebSocketSession {
     @Override
     public void sendMessage(WebSocketMessage<?> message) throws IOException {
         this.message = message.getPayload().toString();
+        this.messages.add(this.message);
     }
 
     @Override
     public boolean isOpen() {
-        // TODO Auto-generated method stub
-        return false;
+        return open;
     }
 
     @Override
     public void close() throws IOException {
-        // TODO Auto-generated method stub
-
+        open = false;
     }
 
     @Override
     public void close(CloseStatus status) throws IOException {
-        // TODO Auto-generated method stub
-
+        open = false;
     }
 
     public String getMessage() {
         return message;
     }
+
+    public List<String> getMessages() {
+        return messages;
+    }
 }
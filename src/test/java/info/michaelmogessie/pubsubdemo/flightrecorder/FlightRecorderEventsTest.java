@@ -0,0 +1,103 @@
+package info.michaelmogessie.pubsubdemo.flightrecorder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class FlightRecorderEventsTest {
+    private static final List<String> EVENTS = Arrays.asList("Publish", "SendFailed", "Redelivery", "Housekeeping");
+
+    @Test
+    void testPublishAndFailedSendAreRecorded() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        webSocketHandler.handleMessage(new FakeWebSocketSession("client1"), new TextMessage("temperature/subscribe"));
+        webSocketHandler.handleMessage(new FakeWebSocketSession("client2") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        }, new TextMessage("temperature/subscribe"));
+
+        List<RecordedEvent> events = record(() -> publish("temperature", "32 degrees"), "Publish", "SendFailed");
+
+        RecordedEvent publishEvent = find(events, "Publish").get(0);
+        assertEquals("temperature", publishEvent.getString("topic"));
+        assertEquals(2, publishEvent.getInt("subscribers"));
+        assertEquals(10, publishEvent.getInt("payloadBytes"));
+        RecordedEvent sendFailedEvent = find(events, "SendFailed").get(0);
+        assertEquals("client2", sendFailedEvent.getString("clientId"));
+    }
+
+    @Test
+    void testEventsThatAreNotEnabledAreNotRecorded() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+
+        List<RecordedEvent> events = record(() -> publish("temperature", "32 degrees"), "SendFailed");
+
+        assertTrue(find(events, "Publish").isEmpty());
+    }
+
+    @Test
+    void testBundledSettingsEnableEveryEvent() throws Exception {
+        Configuration configuration = Configuration.create(Paths.get("src/main/jfr/pubsub.jfc"));
+
+        for (String event : EVENTS) {
+            assertEquals("true", configuration.getSettings().get(FlightRecorderEvents.PREFIX + event + "#enabled"));
+        }
+    }
+
+    private static void publish(String topic, String body) throws Exception {
+        Message message = new Message();
+        message.setBody(body);
+        message.setTopic(topic);
+        WebSocketHandler.publish(message);
+    }
+
+    private static List<RecordedEvent> record(Work work, String... enabledEvents) throws Exception {
+        Path file = Files.createTempFile("pubsub", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String event : EVENTS) {
+                if (Arrays.asList(enabledEvents).contains(event)) {
+                    recording.enable(FlightRecorderEvents.PREFIX + event).withoutThreshold();
+                } else {
+                    recording.disable(FlightRecorderEvents.PREFIX + event);
+                }
+            }
+            recording.start();
+            work.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> find(List<RecordedEvent> events, String name) {
+        return events.stream().filter(event -> event.getEventType().getName().equals(FlightRecorderEvents.PREFIX + name))
+                .collect(Collectors.toList());
+    }
+
+    private interface Work {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,51 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class ClientIdSetTest {
+
+    @Test
+    void testIdsAreAddedAndRemovedOnce() {
+        ClientIdSet ids = new ClientIdSet();
+
+        assertTrue(ids.add(3));
+        assertFalse(ids.add(3));
+        assertTrue(ids.contains(3));
+        assertFalse(ids.contains(4));
+        assertTrue(ids.remove(3));
+        assertFalse(ids.remove(3));
+        assertTrue(ids.isEmpty());
+    }
+
+    @Test
+    void testSetAgreesWithHashSetUnderRandomChanges() {
+        ClientIdSet ids = new ClientIdSet();
+        Set<Integer> expected = new HashSet<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            int id = random.nextInt(500);
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(id), ids.add(id));
+            } else {
+                assertEquals(expected.remove(id), ids.remove(id));
+            }
+        }
+
+        assertEquals(expected.size(), ids.size());
+        for (int id = 0; id < 500; id++) {
+            assertEquals(expected.contains(id), ids.contains(id));
+        }
+        Set<Integer> iterated = new HashSet<>();
+        ids.forEach(iterated::add);
+        assertEquals(expected, iterated);
+    }
+}
@@ -0,0 +1,201 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+
+public class CoalescerTest {
+    private static final Pattern ENVELOPED_MESSAGE = Pattern.compile("\"(message \\d+)\"");
+
+    @Test
+    void testEnvelopeEscapesMessages() {
+        TextMessage envelope = Coalescer.encode("temperature",
+                Arrays.asList(new TextMessage("say \"hi\""), new TextMessage("a\\b\n")));
+
+        assertEquals("{\"topic\":\"temperature\",\"messages\":[\"say \\\"hi\\\"\",\"a\\\\b\\u000a\"]}",
+                envelope.getPayload());
+    }
+
+    @Test
+    void testFirstMessageToQuietTopicIsSentRightAway() {
+        Coalescer coalescer = new Coalescer(Collections.singletonList("temperature"), 1000, 65536);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("coalesced");
+        ClientInfo clientInfo = new ClientInfo.Builder().clientId("coalesced").webSocketSession(webSocketSession)
+                .build();
+
+        offer(coalescer, clientInfo, "message 1");
+
+        assertEquals("{\"topic\":\"temperature\",\"messages\":[\"message 1\"]}", webSocketSession.getMessage());
+    }
+
+    @Test
+    void testBurstOfMessagesIsSentInFewerFramesInOrder() throws Exception {
+        Coalescer coalescer = new Coalescer(Collections.singletonList("temperature"), 50, 65536);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("coalesced");
+        ClientInfo clientInfo = new ClientInfo.Builder().clientId("coalesced").webSocketSession(webSocketSession)
+                .build();
+
+        for (int i = 1; i <= 200; i++) {
+            offer(coalescer, clientInfo, "message " + i);
+        }
+
+        List<String> received = awaitMessages(webSocketSession, 200);
+        for (int i = 1; i <= 200; i++) {
+            assertEquals("message " + i, received.get(i - 1));
+        }
+        assertTrue(webSocketSession.getMessages().size() < 200);
+    }
+
+    @Test
+    void testBatchIsSentWhenItReachesTheByteThreshold() {
+        Coalescer coalescer = new Coalescer(Collections.singletonList("temperature"), 60000, 18);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("coalesced");
+        ClientInfo clientInfo = new ClientInfo.Builder().clientId("coalesced").webSocketSession(webSocketSession)
+                .build();
+
+        for (int i = 1; i <= 20; i++) {
+            offer(coalescer, clientInfo, "message " + i);
+        }
+
+        // Messages are sent on their own while the window grows from 0, and once it is
+        // long enough they wait until two of them reach the threshold together.
+        int pairs = 0;
+        for (String envelope : new ArrayList<>(webSocketSession.getMessages())) {
+            Matcher matcher = ENVELOPED_MESSAGE.matcher(envelope);
+            int count = 0;
+            while (matcher.find()) {
+                count++;
+            }
+            assertTrue(count <= 2);
+            pairs += count == 2 ? 1 : 0;
+        }
+        assertTrue(pairs > 0);
+    }
+
+    @Test
+    void testClientConnectingWithCoalesceReceivesEnvelopes() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("coalescing", "coalesce=true");
+        FakeWebSocketSession plainWebSocketSession = new FakeWebSocketSession("plain");
+        webSocketHandler.afterConnectionEstablished(webSocketSession);
+        webSocketHandler.afterConnectionEstablished(plainWebSocketSession);
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+        webSocketHandler.handleMessage(plainWebSocketSession, new TextMessage("temperature/subscribe"));
+
+        Message message = new Message();
+        message.setBody("32 degrees");
+        message.setTopic("temperature");
+        WebSocketHandler.publish(message);
+
+        assertEquals("{\"topic\":\"temperature\",\"messages\":[\"32 degrees\"]}", webSocketSession.getMessage());
+        assertEquals("32 degrees", plainWebSocketSession.getMessage());
+        webSocketHandler.afterConnectionClosed(webSocketSession, CloseStatus.NORMAL);
+        webSocketHandler.afterConnectionClosed(plainWebSocketSession, CloseStatus.NORMAL);
+    }
+
+    @Test
+    void testMessageOfferedAfterTheSessionClosedIsNotBatched() throws Exception {
+        Coalescer coalescer = new Coalescer(Collections.singletonList("temperature"), 1000, 65536);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("coalesced");
+        ClientInfo clientInfo = new ClientInfo.Builder().clientId("coalesced").webSocketSession(webSocketSession)
+                .build();
+        webSocketSession.close(CloseStatus.NORMAL);
+        coalescer.removeSession("coalesced");
+
+        offer(coalescer, clientInfo, "message 1");
+        offer(coalescer, clientInfo, "message 2");
+
+        assertEquals(0, coalescer.getPendingMessages("coalesced"));
+        assertEquals(0, coalescer.getPendingMessagesForTopic("temperature"));
+        assertTrue(webSocketSession.getMessages().isEmpty());
+    }
+
+    @Test
+    void testScheduledFlushesNeverSendAtTheSameTimeAsOtherSends() throws Exception {
+        Coalescer coalescer = new Coalescer(Collections.singletonList("temperature"), 5, 65536);
+        AtomicBoolean sending = new AtomicBoolean();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("coalesced") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                if (!sending.compareAndSet(false, true)) {
+                    overlapped.set(true);
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.sendMessage(message);
+                sending.set(false);
+            }
+        };
+        ClientInfo clientInfo = new ClientInfo.Builder().clientId("coalesced").webSocketSession(webSocketSession)
+                .build();
+
+        // The heartbeat and uncoalesced topics send to the session directly while
+        // the coalescer's thread flushes the batches whose window has ended.
+        Thread directSender = new Thread(() -> {
+            for (int i = 0; i < 100; i++) {
+                try {
+                    WebSocketHandler.send(webSocketSession, new TextMessage("direct " + i));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        directSender.start();
+        for (int i = 1; i <= 100; i++) {
+            offer(coalescer, clientInfo, "message " + i);
+            Thread.sleep(1);
+        }
+        directSender.join();
+
+        assertEquals(100, awaitMessages(webSocketSession, 100).size());
+        assertFalse(overlapped.get());
+    }
+
+    private static void offer(Coalescer coalescer, ClientInfo clientInfo, String text) {
+        TextMessage frame = new TextMessage(text);
+        coalescer.offer(clientInfo, "temperature", frame,
+                new PublishedMessage.Builder().payload(frame.asBytes()).build());
+    }
+
+    private static List<String> awaitMessages(FakeWebSocketSession webSocketSession, int count)
+            throws InterruptedException {
+        List<String> received = new ArrayList<>();
+        for (int attempt = 0; attempt < 100 && received.size() < count; attempt++) {
+            Thread.sleep(20);
+            received.clear();
+            synchronized (webSocketSession.getMessages()) {
+                for (String envelope : webSocketSession.getMessages()) {
+                    Matcher matcher = ENVELOPED_MESSAGE.matcher(envelope);
+                    while (matcher.find()) {
+                        received.add(matcher.group(1));
+                    }
+                }
+            }
+        }
+        return received;
+    }
+}
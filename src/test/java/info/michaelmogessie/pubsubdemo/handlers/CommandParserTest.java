@@ -0,0 +1,122 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import info.michaelmogessie.pubsubdemo.handlers.CommandParser.Action;
+import info.michaelmogessie.pubsubdemo.handlers.CommandParser.CommandError;
+
+public class CommandParserTest {
+
+    private CommandParser commandParser;
+
+    private CommandBatch commandBatch;
+
+    @BeforeEach
+    public void setup() {
+        commandParser = new CommandParser(Arrays.asList("topic1", "topic2", "topic3", "temperature"));
+        commandBatch = new CommandBatch();
+    }
+
+    @Test
+    void testSingleCommandIsParsed() {
+        String payload = "temperature/subscribe";
+        commandParser.parse(payload, commandBatch);
+
+        assertEquals(1, commandBatch.size());
+        assertEquals("temperature", commandBatch.getTopic(0));
+        assertEquals(Action.SUBSCRIBE, commandBatch.getAction(0));
+        assertFalse(commandBatch.isReplay(0));
+        assertNull(commandBatch.getError(0));
+    }
+
+    @Test
+    void testParsedTopicIsTheKnownTopicInstance() {
+        String topic = "topic2";
+        commandParser = new CommandParser(Arrays.asList(topic));
+        commandParser.parse(new StringBuilder("topic").append(2).append("/unsubscribe").toString(), commandBatch);
+
+        assertSame(topic, commandBatch.getTopic(0));
+    }
+
+    @Test
+    void testMultipleCommandsInOneFrameAreParsedInOrder() {
+        commandParser.parse("topic1/subscribe\ntopic2/unsubscribe;temperature/clientId\n", commandBatch);
+
+        assertEquals(3, commandBatch.size());
+        assertEquals(Action.SUBSCRIBE, commandBatch.getAction(0));
+        assertEquals("topic2", commandBatch.getTopic(1));
+        assertEquals(Action.UNSUBSCRIBE, commandBatch.getAction(1));
+        assertEquals(Action.CLIENT_ID, commandBatch.getAction(2));
+    }
+
+    @Test
+    void testReplayParametersAreParsed() {
+        commandParser.parse("temperature/subscribe?last=100&since=1650000000000", commandBatch);
+
+        assertTrue(commandBatch.isReplay(0));
+        assertEquals(100, commandBatch.getLast(0));
+        assertEquals(1650000000000L, commandBatch.getSince(0));
+    }
+
+    @Test
+    void testInvalidCommandsAreRejectedWithTheirReason() {
+        commandParser.parse("temperature;unknown/subscribe;temperature/publish;temperature/subscribe?last=-1;"
+                + "temperature/subscribe?first=1;a/b/c", commandBatch);
+
+        assertEquals(6, commandBatch.size());
+        assertEquals(CommandError.MALFORMED, commandBatch.getError(0));
+        assertEquals(CommandError.TOPIC_NOT_FOUND, commandBatch.getError(1));
+        assertEquals(CommandError.NO_SUCH_ACTION, commandBatch.getError(2));
+        assertEquals(CommandError.MALFORMED, commandBatch.getError(3));
+        assertEquals(CommandError.MALFORMED, commandBatch.getError(4));
+        assertEquals(CommandError.MALFORMED, commandBatch.getError(5));
+    }
+
+    @Test
+    void testSharedSubscriptionCommandsAreParsedWithTheirGroup() {
+        commandParser.parse("temperature/subscribe-group/workers;topic1/unsubscribe-group/workers;"
+                + "temperature/subscribe-group;temperature/subscribe-group/a/b;temperature/subscribe-group/",
+                commandBatch);
+
+        assertEquals(5, commandBatch.size());
+        assertEquals(Action.SUBSCRIBE_GROUP, commandBatch.getAction(0));
+        assertEquals("temperature", commandBatch.getTopic(0));
+        assertEquals("workers", commandBatch.getGroup(0));
+        assertEquals(Action.UNSUBSCRIBE_GROUP, commandBatch.getAction(1));
+        assertEquals("workers", commandBatch.getGroup(1));
+        assertEquals(CommandError.MALFORMED, commandBatch.getError(2));
+        assertEquals(CommandError.MALFORMED, commandBatch.getError(3));
+        assertEquals(CommandError.MALFORMED, commandBatch.getError(4));
+    }
+
+    @Test
+    void testEmptyFrameIsMalformed() {
+        commandParser.parse("", commandBatch);
+
+        assertEquals(1, commandBatch.size());
+        assertEquals(CommandError.MALFORMED, commandBatch.getError(0));
+    }
+
+    @Test
+    void testBatchIsReusedAcrossFrames() {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            payload.append("topic1/subscribe\n");
+        }
+        commandParser.parse(payload.toString(), commandBatch);
+        assertEquals(200, commandBatch.size());
+
+        commandParser.parse("topic3/unsubscribe", commandBatch);
+        assertEquals(1, commandBatch.size());
+        assertEquals("topic3", commandBatch.getTopic(0));
+    }
+}
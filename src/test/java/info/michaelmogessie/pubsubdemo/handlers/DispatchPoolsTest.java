@@ -0,0 +1,209 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class DispatchPoolsTest {
+    private DispatchPools dispatchPools;
+    // Holds up the sends to the stuck subscriber until it is opened.
+    private final CountDownLatch gate = new CountDownLatch(1);
+    // Opens once the stuck subscriber has been sent its first message.
+    private final CountDownLatch stuck = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        gate.countDown();
+        if (dispatchPools != null) {
+            dispatchPools.close();
+        }
+        WebSocketHandler.setDispatchPools(new DispatchPools(Collections.emptyMap(), 1, 1, 0));
+    }
+
+    @Test
+    void testStuckPoolDoesNotHoldUpOtherPoolsOrUnassignedTopics() throws Exception {
+        WebSocketHandler webSocketHandler = setUp(10, 0);
+        subscribeStuck(webSocketHandler, "slow");
+        FakeWebSocketSession other = new FakeWebSocketSession("other");
+        webSocketHandler.handleMessage(other, new TextMessage("fast/subscribe"));
+        webSocketHandler.handleMessage(other, new TextMessage("temperature/subscribe"));
+
+        WebSocketHandler.publish(message("slow", "1 degrees"));
+        WebSocketHandler.publish(message("slow", "2 degrees"));
+        assertTrue(stuck.await(5, TimeUnit.SECONDS));
+        WebSocketHandler.publish(message("temperature", "3 degrees"));
+        assertEquals(Arrays.asList("3 degrees"), other.getMessages());
+        WebSocketHandler.publish(message("fast", "4 degrees"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (other.getMessages().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(Arrays.asList("3 degrees", "4 degrees"), other.getMessages());
+    }
+
+    @Test
+    void testPublishIsTurnedAwayWhenLaneQueueIsFull() throws Exception {
+        WebSocketHandler webSocketHandler = setUp(1, 0);
+        subscribeStuck(webSocketHandler, "slow");
+
+        WebSocketHandler.publish(message("slow", "1 degrees"));
+        assertTrue(stuck.await(5, TimeUnit.SECONDS));
+        WebSocketHandler.publish(message("slow", "2 degrees"));
+        OverloadedException e = assertThrows(OverloadedException.class,
+                () -> WebSocketHandler.publish(message("slow", "3 degrees")));
+        assertEquals(false, e.isServiceWide());
+    }
+
+    @Test
+    void testPublishIsTurnedAwayWhenPoolBudgetIsSpentAndMayBeRetried() throws Exception {
+        WebSocketHandler webSocketHandler = setUp(10, 20);
+        FakeWebSocketSession subscriber = subscribeStuck(webSocketHandler, "slow");
+
+        WebSocketHandler.publish(message("slow", "1 degrees"));
+        assertTrue(stuck.await(5, TimeUnit.SECONDS));
+        Message retried = message("slow", "2 degrees, again");
+        retried.setIdempotencyKey("key");
+        assertThrows(OverloadedException.class, () -> WebSocketHandler.publish(retried));
+
+        gate.countDown();
+        dispatchPools.close();
+        dispatchPools = new DispatchPools(pools(), 1, 10, 20);
+        WebSocketHandler.setDispatchPools(dispatchPools);
+        WebSocketHandler.publish(retried);
+        dispatchPools.close();
+        assertEquals(Arrays.asList("1 degrees", "2 degrees, again"), subscriber.getMessages());
+    }
+
+    @Test
+    void testMessagesOfATopicKeepTheirOrder() throws Exception {
+        dispatchPools = new DispatchPools(pools(), 4, 1000, 0);
+        WebSocketHandler.setDispatchPools(dispatchPools);
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("slow", "fast"), 10000);
+        FakeWebSocketSession subscriber = new FakeWebSocketSession("subscriber");
+        webSocketHandler.handleMessage(subscriber, new TextMessage("slow/subscribe"));
+        webSocketHandler.handleMessage(subscriber, new TextMessage("fast/subscribe"));
+
+        List<String> slow = new ArrayList<>();
+        List<String> fast = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            WebSocketHandler.publish(message("slow", "slow " + i));
+            WebSocketHandler.publish(message("fast", "fast " + i));
+            slow.add("slow " + i);
+            fast.add("fast " + i);
+        }
+        // Closing waits for the lanes to send what is queued.
+        dispatchPools.close();
+
+        List<String> received = new ArrayList<>(subscriber.getMessages());
+        assertEquals(400, received.size());
+        List<String> receivedSlow = new ArrayList<>(received);
+        receivedSlow.retainAll(slow);
+        assertEquals(slow, receivedSlow);
+        received.retainAll(fast);
+        assertEquals(fast, received);
+    }
+
+    @Test
+    void testPoolSettingsOverrideTheSharedOnes() throws Exception {
+        MockEnvironment poolSettings = new MockEnvironment().withProperty("dispatch.pools.tenantA.lanes", "3")
+                .withProperty("dispatch.pools.tenantA.queue.capacity", "1");
+        dispatchPools = new DispatchPools(pools(), 1, 10, 0, poolSettings);
+        WebSocketHandler.setDispatchPools(dispatchPools);
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("slow", "fast"), 10000);
+        subscribeStuck(webSocketHandler, "slow");
+        subscribeStuck(webSocketHandler, "fast");
+
+        assertEquals(3, dispatchPools.getPool("slow").getLaneCount());
+        assertEquals(1, dispatchPools.getPool("fast").getLaneCount());
+        WebSocketHandler.publish(message("slow", "1 degrees"));
+        assertTrue(stuck.await(5, TimeUnit.SECONDS));
+        WebSocketHandler.publish(message("slow", "2 degrees"));
+        assertThrows(OverloadedException.class, () -> WebSocketHandler.publish(message("slow", "3 degrees")));
+        for (int i = 0; i < 10; i++) {
+            WebSocketHandler.publish(message("fast", i + " degrees"));
+        }
+    }
+
+    @Test
+    void testFailedDispatchIsCountedAndLaneKeepsSending() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        Metrics.addRegistry(meterRegistry);
+        try {
+            dispatchPools = new DispatchPools(pools(), 1, 10, 0);
+            DispatchPools.DispatchPool pool = dispatchPools.getPool("slow");
+            CountDownLatch sent = new CountDownLatch(1);
+
+            pool.dispatch("slow", 10, System.nanoTime(), () -> {
+                throw new IllegalStateException("Subscriber list is broken");
+            });
+            pool.dispatch("slow", 10, System.nanoTime(), sent::countDown);
+
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+            dispatchPools.close();
+            assertEquals(1, meterRegistry.counter("pubsub.dispatch.failed", "pool", "tenantA").count());
+            assertEquals(0, pool.getQueuedBytes());
+        } finally {
+            Metrics.removeRegistry(meterRegistry);
+        }
+    }
+
+    private WebSocketHandler setUp(int queueCapacity, long budgetBytes) {
+        dispatchPools = new DispatchPools(pools(), 1, queueCapacity, budgetBytes);
+        WebSocketHandler.setDispatchPools(dispatchPools);
+        return new WebSocketHandler(Arrays.asList("slow", "fast"), 10000);
+    }
+
+    private static Map<String, List<String>> pools() {
+        Map<String, List<String>> pools = new HashMap<>();
+        pools.put("tenantA", Arrays.asList("slow"));
+        pools.put("tenantB", Arrays.asList("fast"));
+        return pools;
+    }
+
+    private FakeWebSocketSession subscribeStuck(WebSocketHandler webSocketHandler, String topic) throws Exception {
+        FakeWebSocketSession subscriber = new FakeWebSocketSession("stuck") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                super.sendMessage(message);
+                stuck.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        webSocketHandler.handleMessage(subscriber, new TextMessage(topic + "/subscribe"));
+        return subscriber;
+    }
+
+    private static Message message(String topic, String body) {
+        Message message = new Message();
+        message.setTopic(topic);
+        message.setBody(body);
+        return message;
+    }
+}
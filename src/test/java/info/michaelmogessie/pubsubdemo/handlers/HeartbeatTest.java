@@ -0,0 +1,95 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+
+public class HeartbeatTest {
+    private Heartbeat heartbeat = new Heartbeat(20, 2, 60000);
+
+    @AfterEach
+    void stopHeartbeat() {
+        heartbeat.close();
+        WebSocketHandler.setHeartbeat(new Heartbeat(0, 1, 0));
+    }
+
+    @Test
+    void testSessionThatStopsAnsweringIsReapedAndGetsItsMessagesAfterReconnecting() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        WebSocketHandler.setHeartbeat(heartbeat);
+        FakeWebSocketSession alive = new FakeWebSocketSession("alive") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                if (message instanceof PingMessage) {
+                    try {
+                        webSocketHandler.handleMessage(this, new PongMessage());
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                } else {
+                    super.sendMessage(message);
+                }
+            }
+        };
+        FakeWebSocketSession dead = new FakeWebSocketSession("dead");
+        for (FakeWebSocketSession session : Arrays.asList(alive, dead)) {
+            webSocketHandler.afterConnectionEstablished(session);
+            webSocketHandler.handleMessage(session, new TextMessage("temperature/subscribe"));
+        }
+
+        SubscriberList subscribers = WebSocketHandler.getTopicSubscriberMap().get("temperature");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getSession(subscribers, "dead") != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertNull(getSession(subscribers, "dead"));
+        assertNotNull(getSession(subscribers, "alive"));
+        assertEquals(1, heartbeat.getSessions());
+
+        Message message = new Message();
+        message.setBody("32 degrees");
+        message.setTopic("temperature");
+        WebSocketHandler.publish(message);
+        assertEquals("32 degrees", alive.getMessage());
+        assertFalse(dead.getMessages().contains("32 degrees"));
+
+        FakeWebSocketSession reconnected = new FakeWebSocketSession("reconnected", "clientId=dead");
+        webSocketHandler.afterConnectionEstablished(reconnected);
+
+        assertEquals("32 degrees", reconnected.getMessage());
+        assertNotNull(getSession(subscribers, "reconnected"));
+    }
+
+    @Test
+    void testNothingIsPingedWithoutAnInterval() throws Exception {
+        Heartbeat disabled = new Heartbeat(0, 2, 60000);
+        FakeWebSocketSession session = new FakeWebSocketSession("client1");
+
+        disabled.addSession(session);
+
+        assertEquals(0, disabled.getSessions());
+        disabled.close();
+    }
+
+    private static ClientInfo getSession(SubscriberList subscribers, String clientId) {
+        return Arrays.stream(subscribers.snapshot())
+                .filter(clientInfo -> clientInfo.getClientId().equals(clientId) && clientInfo.getWebSocketSession() != null)
+                .findFirst().orElse(null);
+    }
+}
@@ -0,0 +1,49 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class IdempotencyCacheTest {
+
+    @Test
+    void testKeyIsOnlySeenFirstOncePerTopic() {
+        IdempotencyCache idempotencyCache = new IdempotencyCache(1024, 60000);
+
+        assertTrue(idempotencyCache.firstSeen("temperature", "request-1"));
+        assertFalse(idempotencyCache.firstSeen("temperature", "request-1"));
+        assertTrue(idempotencyCache.firstSeen("topic1", "request-1"));
+        assertTrue(idempotencyCache.firstSeen("temperature", "request-2"));
+    }
+
+    @Test
+    void testKeyIsSeenFirstAgainAfterTheWindow() throws Exception {
+        IdempotencyCache idempotencyCache = new IdempotencyCache(1024, 50);
+
+        assertTrue(idempotencyCache.firstSeen("temperature", "request-1"));
+        Thread.sleep(100);
+        assertTrue(idempotencyCache.firstSeen("temperature", "request-1"));
+        assertFalse(idempotencyCache.firstSeen("temperature", "request-1"));
+    }
+
+    @Test
+    void testCacheNeverHoldsMoreThanItsCapacity() {
+        IdempotencyCache idempotencyCache = new IdempotencyCache(256, 60000);
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(idempotencyCache.firstSeen("temperature", "request-" + i));
+        }
+
+        assertTrue(idempotencyCache.size() <= 256);
+        assertFalse(idempotencyCache.firstSeen("temperature", "request-9999"));
+    }
+
+    @Test
+    void testNothingIsADuplicateWithoutAWindow() {
+        IdempotencyCache idempotencyCache = new IdempotencyCache(1024, 0);
+
+        assertTrue(idempotencyCache.firstSeen("temperature", "request-1"));
+        assertTrue(idempotencyCache.firstSeen("temperature", "request-1"));
+    }
+}
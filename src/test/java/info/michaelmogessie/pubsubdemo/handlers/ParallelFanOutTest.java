@@ -0,0 +1,207 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+
+public class ParallelFanOutTest {
+
+    @AfterEach
+    public void tearDown() {
+        WebSocketHandler.setParallelFanOut(new ParallelFanOut(0, 1));
+    }
+
+    @Test
+    void testOnlyTopicsAtOrAboveThresholdAreSentInParallel() {
+        assertFalse(new ParallelFanOut(10, 4).isParallel(9));
+        assertTrue(new ParallelFanOut(10, 4).isParallel(10));
+        assertFalse(new ParallelFanOut(0, 4).isParallel(1000));
+        assertFalse(new ParallelFanOut(10, 1).isParallel(1000));
+    }
+
+    @Test
+    void testEverySubscriberReceivesMessagesInOrderWhenSentInParallel() throws Exception {
+        ParallelFanOut parallelFanOut = new ParallelFanOut(10, 4);
+        WebSocketHandler.setParallelFanOut(parallelFanOut);
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        List<FakeWebSocketSession> webSocketSessions = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            FakeWebSocketSession webSocketSession = new FakeWebSocketSession("subscriber" + i);
+            webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+            webSocketSessions.add(webSocketSession);
+        }
+
+        List<String> published = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            Message message = new Message();
+            message.setBody(i + " degrees");
+            message.setTopic("temperature");
+            WebSocketHandler.publish(message);
+            published.add(message.getBody());
+        }
+
+        // Publishing returns once every chunk has been sent, so nothing is left to wait
+        // for.
+        for (FakeWebSocketSession webSocketSession : webSocketSessions) {
+            assertEquals(published, webSocketSession.getMessages());
+        }
+    }
+
+    @Test
+    void testOfflineSubscribersKeepMessagesWhenSentInParallel() throws Exception {
+        WebSocketHandler.setParallelFanOut(new ParallelFanOut(10, 4));
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        for (int i = 0; i < 20; i++) {
+            ClientInfo clientInfo = new ClientInfo.Builder().clientId("offline" + i).build();
+            WebSocketHandler.getTopicSubscriberMap().get("temperature").add(clientInfo);
+        }
+
+        Message message = new Message();
+        message.setBody("32 degrees");
+        message.setTopic("temperature");
+        WebSocketHandler.publish(message);
+
+        List<String> clientIds = new ArrayList<>();
+        WebSocketHandler.forEachUnreceivedMessage((publishedMessage, ids) -> clientIds.addAll(ids));
+        assertEquals(20, clientIds.size());
+    }
+
+    @Test
+    void testConcurrentPublishersOfATopicDoNotOverlapOrReorderTheirMessages() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        AtomicInteger sending = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        FakeWebSocketSession subscriber = new FakeWebSocketSession("subscriber") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                if (sending.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                Thread.yield();
+                super.sendMessage(message);
+                sending.decrementAndGet();
+            }
+        };
+        webSocketHandler.handleMessage(subscriber, new TextMessage("temperature/subscribe"));
+
+        List<Thread> publishers = new ArrayList<>();
+        for (String publisher : Arrays.asList("A", "B")) {
+            publishers.add(new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    Message message = new Message();
+                    message.setBody(publisher + i);
+                    message.setTopic("temperature");
+                    try {
+                        WebSocketHandler.publish(message);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }));
+        }
+        publishers.forEach(Thread::start);
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+
+        assertFalse(overlapped.get());
+        List<String> received = new ArrayList<>(subscriber.getMessages());
+        assertEquals(400, received.size());
+        for (String publisher : Arrays.asList("A", "B")) {
+            int last = -1;
+            for (String body : received) {
+                if (body.startsWith(publisher)) {
+                    int number = Integer.parseInt(body.substring(1));
+                    assertTrue(number > last);
+                    last = number;
+                }
+            }
+        }
+    }
+
+    @Test
+    void testSlowSubscriberDoesNotHoldUpOtherPublishersOfTheTopic() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        FakeWebSocketSession fast = new FakeWebSocketSession("fast");
+        FakeWebSocketSession slow = new FakeWebSocketSession("slow") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                stuck.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.sendMessage(message);
+            }
+        };
+        webSocketHandler.handleMessage(fast, new TextMessage("temperature/subscribe"));
+        webSocketHandler.handleMessage(slow, new TextMessage("temperature/subscribe"));
+
+        Thread first = new Thread(() -> publish("1 degrees"));
+        Thread second = new Thread(() -> publish("2 degrees"));
+        try {
+            first.start();
+            assertTrue(stuck.await(5, TimeUnit.SECONDS));
+            second.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (fast.getMessages().size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(Arrays.asList("1 degrees", "2 degrees"), fast.getMessages());
+        } finally {
+            gate.countDown();
+            first.join();
+            second.join();
+        }
+        assertEquals(2, slow.getMessages().size());
+    }
+
+    private static void publish(String body) {
+        Message message = new Message();
+        message.setBody(body);
+        message.setTopic("temperature");
+        try {
+            WebSocketHandler.publish(message);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    void testAwaitKeepsWaitingWhenInterruptedAndKeepsTheInterrupt() {
+        CompletableFuture<Void> chunk = new CompletableFuture<>();
+        CompletableFuture.runAsync(() -> chunk.complete(null),
+                CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+        List<Future<?>> pending = Collections.singletonList(chunk);
+
+        Thread.currentThread().interrupt();
+        new ParallelFanOut(10, 4).await(pending);
+
+        assertTrue(chunk.isDone());
+        assertTrue(Thread.interrupted());
+    }
+}
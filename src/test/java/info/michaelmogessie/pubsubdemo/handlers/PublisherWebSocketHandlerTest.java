@@ -0,0 +1,148 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.socket.TextMessage;
+
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.limits.LoadShedder;
+import info.michaelmogessie.pubsubdemo.limits.RateLimiter;
+import info.michaelmogessie.pubsubdemo.scheduling.ScheduledPublisher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@WebMvcTest(WebSocketHandler.class)
+@ActiveProfiles("test")
+public class PublisherWebSocketHandlerTest {
+
+    @Value("#{${message.topics}}")
+    private List<String> topics;
+
+    @Value("${housekeepingthread.sleepduration.milliseconds}")
+    private int houseKeepingThreadSleepDurationMilliseconds;
+
+    private WebSocketHandler webSocketHandler;
+
+    private PublisherWebSocketHandler publisherWebSocketHandler;
+
+    private final ScheduledPublisher scheduledPublisher = new ScheduledPublisher(5, 60000, 0);
+
+    @BeforeEach
+    public void setup() {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+        publisherWebSocketHandler = new PublisherWebSocketHandler(new ObjectMapper(),
+                new RateLimiter(0, 0, 0, 0, "X-Publisher-Id", new SimpleMeterRegistry()),
+                new LoadShedder(0, 0, 0, 1, new SimpleMeterRegistry()), scheduledPublisher);
+    }
+
+    @Test
+    void testMessagesStreamedByPublisherAreReceivedBySubscriber() throws Exception {
+        FakeWebSocketSession subscriberSession = new FakeWebSocketSession("abcdefghi");
+        webSocketHandler.handleMessage(subscriberSession, new TextMessage("temperature/subscribe"));
+
+        FakeWebSocketSession publisherSession = new FakeWebSocketSession("jklmnopq", "");
+        publisherWebSocketHandler.afterConnectionEstablished(publisherSession);
+        publisherWebSocketHandler.handleMessage(publisherSession,
+                new TextMessage("{\"topic\":\"temperature\",\"body\":\"32 degrees\"}"));
+        publisherWebSocketHandler.handleMessage(publisherSession,
+                new TextMessage("[{\"topic\":\"temperature\",\"body\":\"33 degrees\"},"
+                        + "{\"topic\":\"temperature\",\"body\":\"34 degrees\"}]"));
+
+        assertEquals(Arrays.asList("32 degrees", "33 degrees", "34 degrees"), subscriberSession.getMessages());
+        assertNull(publisherSession.getMessage());
+    }
+
+    @Test
+    void testPublisherIsAcknowledgedEveryRequestedNumberOfMessages() throws Exception {
+        FakeWebSocketSession publisherSession = new FakeWebSocketSession("jklmnopq", "ack=2");
+        publisherWebSocketHandler.afterConnectionEstablished(publisherSession);
+        for (int i = 0; i < 5; i++) {
+            publisherWebSocketHandler.handleMessage(publisherSession,
+                    new TextMessage("{\"topic\":\"temperature\",\"body\":\"32 degrees\"}"));
+        }
+
+        assertEquals(Arrays.asList("ACK 2", "ACK 4"), publisherSession.getMessages());
+    }
+
+    @Test
+    void testPublisherIsToldWhichMessageHadAnUnknownTopic() throws Exception {
+        FakeWebSocketSession publisherSession = new FakeWebSocketSession("jklmnopq", "");
+        publisherWebSocketHandler.afterConnectionEstablished(publisherSession);
+        publisherWebSocketHandler.handleMessage(publisherSession,
+                new TextMessage("{\"topic\":\"temperature\",\"body\":\"32 degrees\"}"));
+        publisherWebSocketHandler.handleMessage(publisherSession,
+                new TextMessage("{\"topic\":\"some unknown topic\",\"body\":\"32 degrees\"}"));
+
+        assertEquals(Arrays.asList("ERROR 2 TOPIC NOT FOUND"), publisherSession.getMessages());
+    }
+
+    @Test
+    void testPublisherIsToldWhichMessageHadNoBodyAndStaysConnected() throws Exception {
+        FakeWebSocketSession subscriberSession = new FakeWebSocketSession("abcdefghi");
+        webSocketHandler.handleMessage(subscriberSession, new TextMessage("temperature/subscribe"));
+
+        FakeWebSocketSession publisherSession = new FakeWebSocketSession("jklmnopq", "");
+        publisherWebSocketHandler.afterConnectionEstablished(publisherSession);
+        publisherWebSocketHandler.handleMessage(publisherSession, new TextMessage("{\"topic\":\"temperature\"}"));
+        publisherWebSocketHandler.handleMessage(publisherSession,
+                new TextMessage("[{\"body\":\"32 degrees\"},{\"topic\":\"temperature\",\"body\":\"33 degrees\"}]"));
+
+        assertEquals(Arrays.asList("ERROR 1 MESSAGE PAYLOAD IS INVALID.", "ERROR 2 MESSAGE PAYLOAD IS INVALID."),
+                publisherSession.getMessages());
+        assertEquals(Arrays.asList("33 degrees"), subscriberSession.getMessages());
+    }
+
+    @Test
+    void testDelayedMessagesAreHeldUntilTheirTime() throws Exception {
+        FakeWebSocketSession subscriberSession = new FakeWebSocketSession("abcdefghi");
+        webSocketHandler.handleMessage(subscriberSession, new TextMessage("temperature/subscribe"));
+
+        FakeWebSocketSession publisherSession = new FakeWebSocketSession("jklmnopq", "");
+        publisherWebSocketHandler.afterConnectionEstablished(publisherSession);
+        publisherWebSocketHandler.handleMessage(publisherSession,
+                new TextMessage("[{\"topic\":\"temperature\",\"body\":\"32 degrees\",\"delay\":200},"
+                        + "{\"topic\":\"temperature\",\"body\":\"33 degrees\",\"deliverAt\":"
+                        + (System.currentTimeMillis() + 400) + "},"
+                        + "{\"topic\":\"temperature\",\"body\":\"34 degrees\",\"delay\":600000},"
+                        + "{\"topic\":\"temperature\",\"body\":\"35 degrees\",\"delay\":1,\"deliverAt\":1}]"));
+
+        assertTrue(subscriberSession.getMessages().isEmpty());
+        assertEquals(2, scheduledPublisher.getPending());
+        assertEquals(
+                Arrays.asList("ERROR 3 MESSAGE IS SCHEDULED TOO FAR AHEAD.", "ERROR 4 MESSAGE PAYLOAD IS INVALID."),
+                publisherSession.getMessages());
+        for (int attempt = 0; attempt < 100 && subscriberSession.getMessages().size() < 2; attempt++) {
+            Thread.sleep(20);
+        }
+        assertEquals(Arrays.asList("32 degrees", "33 degrees"), subscriberSession.getMessages());
+    }
+
+    @Test
+    void testPublisherIsToldWhenTopicRateLimitIsExceeded() throws Exception {
+        publisherWebSocketHandler = new PublisherWebSocketHandler(new ObjectMapper(),
+                new RateLimiter(0.001, 1, 0, 0, "X-Publisher-Id", new SimpleMeterRegistry()),
+                new LoadShedder(0, 0, 0, 1, new SimpleMeterRegistry()), scheduledPublisher);
+        FakeWebSocketSession subscriberSession = new FakeWebSocketSession("abcdefghi");
+        webSocketHandler.handleMessage(subscriberSession, new TextMessage("temperature/subscribe"));
+
+        FakeWebSocketSession publisherSession = new FakeWebSocketSession("jklmnopq", "");
+        publisherWebSocketHandler.afterConnectionEstablished(publisherSession);
+        publisherWebSocketHandler.handleMessage(publisherSession,
+                new TextMessage("[{\"topic\":\"temperature\",\"body\":\"32 degrees\"},"
+                        + "{\"topic\":\"temperature\",\"body\":\"33 degrees\"}]"));
+
+        assertEquals(Arrays.asList("32 degrees"), subscriberSession.getMessages());
+        assertEquals(Arrays.asList("ERROR 2 RATE LIMIT EXCEEDED 1000"), publisherSession.getMessages());
+    }
+}
@@ -0,0 +1,73 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+import info.michaelmogessie.pubsubdemo.handlers.SubscriberGroup.Balancing;
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+
+public class SubscriberGroupTest {
+
+    @Test
+    void testMembersArePickedInTurn() {
+        SubscriberGroup group = new SubscriberGroup();
+        ClientInfo first = new ClientInfo.Builder().clientId("worker1").build();
+        ClientInfo second = new ClientInfo.Builder().clientId("worker2").build();
+        group.add(first);
+        group.add(second);
+        assertFalse(group.add(first));
+
+        assertEquals(first, group.pick(Balancing.ROUND_ROBIN, clientId -> 0));
+        assertEquals(second, group.pick(Balancing.ROUND_ROBIN, clientId -> 0));
+        assertEquals(first, group.pick(Balancing.ROUND_ROBIN, clientId -> 0));
+    }
+
+    @Test
+    void testLeastLoadedMemberIsPicked() {
+        SubscriberGroup group = new SubscriberGroup();
+        ClientInfo first = new ClientInfo.Builder().clientId("worker1").build();
+        ClientInfo second = new ClientInfo.Builder().clientId("worker2").build();
+        ClientInfo third = new ClientInfo.Builder().clientId("worker3").build();
+        group.add(first);
+        group.add(second);
+        group.add(third);
+
+        group.sending(first);
+        assertEquals(third, group.pick(Balancing.LEAST_LOADED, clientId -> clientId.equals("worker2") ? 5 : 0));
+        group.sent(first);
+        assertEquals(first, group.pick(Balancing.LEAST_LOADED, clientId -> clientId.equals("worker1") ? 0 : 1));
+    }
+
+    @Test
+    void testMembersAlreadyTriedArePassedOver() {
+        SubscriberGroup group = new SubscriberGroup();
+        ClientInfo first = new ClientInfo.Builder().clientId("worker1").build();
+        ClientInfo second = new ClientInfo.Builder().clientId("worker2").build();
+        group.add(first);
+        group.add(second);
+
+        assertEquals(second, group.pick(Balancing.ROUND_ROBIN, clientId -> 0, Collections.singleton(first)));
+        assertEquals(second, group.pick(Balancing.ROUND_ROBIN, clientId -> 0, Collections.singleton(first)));
+        assertEquals(first, group.pick(Balancing.LEAST_LOADED, clientId -> clientId.equals("worker1") ? 3 : 0,
+                Collections.singleton(second)));
+        assertNull(group.pick(Balancing.LEAST_LOADED, clientId -> 0, new HashSet<>(Arrays.asList(first, second))));
+    }
+
+    @Test
+    void testEmptyGroupPicksNobody() {
+        SubscriberGroup group = new SubscriberGroup();
+        ClientInfo member = new ClientInfo.Builder().clientId("worker1").build();
+        group.add(member);
+        group.remove(member);
+
+        assertNull(group.pick(Balancing.LEAST_LOADED, clientId -> 0));
+        assertEquals(Balancing.LEAST_LOADED, Balancing.parse("least-loaded"));
+    }
+}
@@ -0,0 +1,127 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+
+public class SubscriberListTest {
+
+    @Test
+    void testSubscribersAreFoundByTheirIds() {
+        ClientIds clientIds = new ClientIds();
+        SubscriberList subscribers = new SubscriberList(clientIds);
+        ClientInfo client1 = clientInfo("client1");
+
+        subscribers.add(client1);
+        subscribers.add(clientInfo("client2"));
+
+        assertTrue(subscribers.contains(new ClientInfo.Builder().clientId("client1").build()));
+        assertFalse(subscribers.contains(clientInfo("client3")));
+        assertTrue(subscribers.remove(client1));
+        assertFalse(subscribers.contains(client1));
+        assertEquals(1, subscribers.snapshot().length);
+    }
+
+    @Test
+    void testIdsAreReusedOnceNoSubscriberHoldsThem() {
+        ClientIds clientIds = new ClientIds();
+        SubscriberList temperature = new SubscriberList(clientIds);
+        SubscriberList humidity = new SubscriberList(clientIds);
+
+        temperature.add(clientInfo("client1"));
+        humidity.add(clientInfo("client1"));
+        int id = clientIds.get("client1");
+        temperature.remove(clientInfo("client1"));
+
+        assertEquals(id, clientIds.get("client1"));
+
+        humidity.remove(clientInfo("client1"));
+        temperature.add(clientInfo("client2"));
+
+        assertEquals(ClientIds.NONE, clientIds.get("client1"));
+        assertEquals(id, clientIds.get("client2"));
+        assertEquals(1, clientIds.size());
+    }
+
+    @Test
+    void testAddingSubscribedClientReplacesItsEntryAndKeepsItsId() {
+        ClientIds clientIds = new ClientIds();
+        SubscriberList subscribers = new SubscriberList(clientIds);
+        subscribers.add(clientInfo("client1"));
+        int id = clientIds.get("client1");
+
+        subscribers.add(clientInfo("client2"));
+
+        ClientInfo dormant = new ClientInfo.Builder().clientId("client1").build();
+        assertFalse(subscribers.add(dormant));
+
+        assertEquals(id, clientIds.get("client1"));
+        assertSame(dormant, subscribers.snapshot()[0]);
+        assertEquals(2, subscribers.snapshot().length);
+    }
+
+    @Test
+    void testSnapshotIsNotChangedBySubscribing() {
+        SubscriberList subscribers = new SubscriberList(new ClientIds());
+        subscribers.add(clientInfo("client1"));
+        ClientInfo[] snapshot = subscribers.snapshot();
+
+        subscribers.add(clientInfo("client2"));
+        subscribers.remove(clientInfo("client1"));
+        assertFalse(subscribers.remove(clientInfo("client3")));
+
+        assertEquals(1, snapshot.length);
+        assertEquals("client1", snapshot[0].getClientId());
+        assertEquals("client2", subscribers.snapshot()[0].getClientId());
+    }
+
+    @Test
+    void testRemovingASubscriberMovesTheLastOneIntoItsPlace() {
+        SubscriberList subscribers = new SubscriberList(new ClientIds());
+        for (int i = 0; i < 5; i++) {
+            subscribers.add(clientInfo("client" + i));
+        }
+
+        assertTrue(subscribers.remove(clientInfo("client1")));
+        assertTrue(subscribers.remove(clientInfo("client4")));
+        assertFalse(subscribers.remove(clientInfo("client1")));
+
+        ClientInfo[] snapshot = subscribers.snapshot();
+        assertEquals(3, snapshot.length);
+        assertEquals("client0", snapshot[0].getClientId());
+        assertEquals("client3", snapshot[1].getClientId());
+        assertEquals("client2", snapshot[2].getClientId());
+        assertTrue(subscribers.remove(clientInfo("client3")));
+        assertFalse(subscribers.contains(clientInfo("client3")));
+        assertTrue(subscribers.contains(clientInfo("client2")));
+    }
+
+    @Test
+    void testSnapshotIsTakenOnceForManyChanges() {
+        SubscriberList subscribers = new SubscriberList(new ClientIds());
+        for (int i = 0; i < 1000; i++) {
+            subscribers.add(clientInfo("client" + i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            subscribers.remove(clientInfo("client" + i));
+        }
+
+        ClientInfo[] snapshot = subscribers.snapshot();
+        assertSame(snapshot, subscribers.snapshot());
+        assertEquals(500, snapshot.length);
+        for (ClientInfo clientInfo : snapshot) {
+            assertTrue(subscribers.contains(clientInfo));
+        }
+    }
+
+    private static ClientInfo clientInfo(String clientId) {
+        return new ClientInfo.Builder().clientId(clientId).webSocketSession(new FakeWebSocketSession(clientId))
+                .build();
+    }
+}
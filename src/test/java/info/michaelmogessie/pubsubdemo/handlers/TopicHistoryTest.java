@@ -0,0 +1,52 @@
+package info.michaelmogessie.pubsubdemo.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+
+import info.michaelmogessie.pubsubdemo.offheap.PayloadArena;
+
+public class TopicHistoryTest {
+
+    @Test
+    void testHistoryKeepsOnlyTheMostRecentMessagesOnceFull() {
+        TopicHistory topicHistory = new TopicHistory(3, new PayloadArena(1024 * 1024, 4096));
+        for (int i = 1; i <= 5; i++) {
+            topicHistory.append(new TextMessage("message " + i), i);
+        }
+
+        List<String> messages = topicHistory.read(topicHistory.getNextSequence(), Integer.MAX_VALUE, 0).stream()
+                .map(TextMessage::getPayload).collect(Collectors.toList());
+
+        assertEquals(5, topicHistory.getNextSequence());
+        assertEquals(3, messages.size());
+        assertEquals("message 3", messages.get(0));
+        assertEquals("message 5", messages.get(2));
+    }
+
+    @Test
+    void testHistoryReadsOnlyMessagesPublishedSinceTheGivenTime() {
+        TopicHistory topicHistory = new TopicHistory(10, new PayloadArena(1024 * 1024, 4096));
+        for (int i = 1; i <= 5; i++) {
+            topicHistory.append(new TextMessage("message " + i), i * 1000);
+        }
+
+        List<TextMessage> messages = topicHistory.read(topicHistory.getNextSequence(), Integer.MAX_VALUE, 4000);
+
+        assertEquals(2, messages.size());
+        assertEquals("message 4", messages.get(0).getPayload());
+    }
+
+    @Test
+    void testHistoryWithoutCapacityKeepsNothing() {
+        TopicHistory topicHistory = new TopicHistory(0, new PayloadArena(1024 * 1024, 4096));
+        topicHistory.append(new TextMessage("message"), 1);
+
+        assertTrue(topicHistory.read(topicHistory.getNextSequence(), Integer.MAX_VALUE, 0).isEmpty());
+    }
+}
@@ -3,9 +3,12 @@ package info.michaelmogessie.pubsubdemo.handlers;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -16,6 +19,7 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 
 import info.michaelmogessie.pubsubdemo.excpetions.TopicNotFoundException;
 import info.michaelmogessie.pubsubdemo.fakes.FakeClient;
@@ -101,6 +105,90 @@ public class WebSocketHandlerTest {
         assertEquals(webSocketSession.getMessage(), message.getBody());
     }
 
+    @Test
+    void testClientSubscribingAfterPublishReceivesLastPublishedMessage() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        Message message = new Message();
+        message.setBody("32 degrees");
+        message.setTopic("temperature");
+        WebSocketHandler.publish(message);
+        message.setBody("33 degrees");
+        WebSocketHandler.publish(message);
+
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        TextMessage textMessage = new TextMessage("temperature/subscribe".getBytes());
+        webSocketHandler.handleMessage(webSocketSession, textMessage);
+
+        assertEquals("33 degrees", webSocketSession.getMessage());
+    }
+
+    @Test
+    void testClientSubscribingToTopicWithoutPublishedMessagesReceivesNothing() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        TextMessage textMessage = new TextMessage("topic1/subscribe".getBytes());
+        webSocketHandler.handleMessage(webSocketSession, textMessage);
+
+        assertNull(webSocketSession.getMessage());
+    }
+
+    @Test
+    void testClientSubscribingWithReplayReceivesLastMessagesThenLiveMessages() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        Message message = new Message();
+        message.setTopic("temperature");
+        for (int i = 1; i <= 5; i++) {
+            message.setBody(i + " degrees");
+            WebSocketHandler.publish(message);
+        }
+
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        TextMessage textMessage = new TextMessage("temperature/subscribe?last=3".getBytes());
+        webSocketHandler.handleMessage(webSocketSession, textMessage);
+
+        message.setBody("6 degrees");
+        WebSocketHandler.publish(message);
+
+        assertEquals(Arrays.asList("3 degrees", "4 degrees", "5 degrees", "6 degrees"),
+                webSocketSession.getMessages());
+    }
+
+    @Test
+    void testClientSubscribingWithReplaySinceLaterTimeReceivesOnlyLiveMessages() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        Message message = new Message();
+        message.setTopic("temperature");
+        message.setBody("32 degrees");
+        WebSocketHandler.publish(message);
+
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        long since = System.currentTimeMillis() + 60000;
+        TextMessage textMessage = new TextMessage(("temperature/subscribe?since=" + since).getBytes());
+        webSocketHandler.handleMessage(webSocketSession, textMessage);
+
+        message.setBody("33 degrees");
+        WebSocketHandler.publish(message);
+
+        assertEquals(Arrays.asList("33 degrees"), webSocketSession.getMessages());
+    }
+
+    @Test
+    void testClientSubscribingWithMalformedReplayIsNotSubscribed() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        TextMessage textMessage = new TextMessage("temperature/subscribe?last=many".getBytes());
+        webSocketHandler.handleMessage(webSocketSession, textMessage);
+
+        ClientInfo clientInfo = new ClientInfo.Builder().webSocketSession(webSocketSession)
+                .clientId(webSocketSession.getId()).build();
+        assertFalse(WebSocketHandler.getTopicSubscriberMap().get("temperature").contains(clientInfo));
+    }
+
     @Test
     void testDisconnectedSubscribedClientReceivesUnreceivedMessagesAfterReconnectingUsingPreviousConnectionId()
             throws Exception {
@@ -136,7 +224,7 @@ public class WebSocketHandlerTest {
     @Test
     void testUnreceivedMessageIsDiscardedAfterTtlHasExpired() throws Exception {
         PublishedMessage publishedMessage = new PublishedMessage.Builder().message("test message").ttl(5000).build();
-        WebSocketHandler.getUnreceivedMessages().put(publishedMessage, new ArrayList<>());
+        WebSocketHandler.getUnreceivedMessages().put(publishedMessage, new ClientIdSet());
         new Thread(webSocketHandler).start();
         Thread.sleep(20000);
         assertFalse(WebSocketHandler.getUnreceivedMessages().containsKey(publishedMessage));
@@ -301,6 +389,54 @@ public class WebSocketHandlerTest {
         assertNotEquals(message.getBody(), webSocketSession.getMessage());
     }
 
+    @Test
+    void testClientCanSubscribeToMultipleTopicsInOneMessage() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        TextMessage textMessage = new TextMessage("temperature/subscribe\ntopic1/subscribe\ntopic2/subscribe".getBytes());
+        webSocketHandler.handleMessage(webSocketSession, textMessage);
+
+        ClientInfo clientInfo = new ClientInfo.Builder().webSocketSession(webSocketSession)
+                .clientId(webSocketSession.getId()).build();
+        assertTrue(WebSocketHandler.getTopicSubscriberMap().get("temperature").contains(clientInfo));
+        assertTrue(WebSocketHandler.getTopicSubscriberMap().get("topic1").contains(clientInfo));
+        assertTrue(WebSocketHandler.getTopicSubscriberMap().get("topic2").contains(clientInfo));
+    }
+
+    @Test
+    void testInvalidCommandInMessageDoesNotPreventOtherCommands() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        TextMessage textMessage = new TextMessage("topic1/unsubscribe;topic1/subscribe".getBytes());
+        webSocketHandler.handleMessage(webSocketSession, textMessage);
+
+        ClientInfo clientInfo = new ClientInfo.Builder().webSocketSession(webSocketSession)
+                .clientId(webSocketSession.getId()).build();
+        assertEquals(Arrays.asList(WebSocketHandler.MESSAGE_NOT_SUBSCRIBED), webSocketSession.getMessages());
+        assertTrue(WebSocketHandler.getTopicSubscriberMap().get("topic1").contains(clientInfo));
+    }
+
+    @Test
+    void testClientCanSubscribeAndUnsubscribeInOneMessage() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+        Message message = new Message();
+        message.setTopic("topic1");
+        message.setBody("retained");
+        WebSocketHandler.publish(message);
+
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("topic1/subscribe;topic1/unsubscribe"));
+        message.setBody("live");
+        WebSocketHandler.publish(message);
+
+        ClientInfo clientInfo = new ClientInfo.Builder().webSocketSession(webSocketSession)
+                .clientId(webSocketSession.getId()).build();
+        assertEquals(Arrays.asList("retained"), webSocketSession.getMessages());
+        assertFalse(WebSocketHandler.getTopicSubscriberMap().get("topic1").contains(clientInfo));
+    }
+
     @Test
     void testMultipleClientsConnectingAndSubscribingToTopic() throws Exception {
         webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
@@ -312,7 +448,7 @@ public class WebSocketHandlerTest {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        assertEquals(20, WebSocketHandler.getTopicSubscriberMap().get("temperature").size());
+        assertEquals(20, WebSocketHandler.getTopicSubscriberMap().get("temperature").snapshot().length);
     }
 
     @Test
@@ -332,7 +468,7 @@ public class WebSocketHandlerTest {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        assertEquals(0, WebSocketHandler.getTopicSubscriberMap().get("temperature").size());
+        assertEquals(0, WebSocketHandler.getTopicSubscriberMap().get("temperature").snapshot().length);
     }
 
     @Test
@@ -352,7 +488,151 @@ public class WebSocketHandlerTest {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        assertEquals(0, WebSocketHandler.getTopicSubscriberMap().get("temperature").size());
+        assertEquals(0, WebSocketHandler.getTopicSubscriberMap().get("temperature").snapshot().length);
+    }
+
+    @Test
+    void testOldestUnreceivedMessagesAreEvictedWhenClientBudgetIsExceeded() throws Exception {
+        long messageSize = BacklogBudget.sizeOf(new PublishedMessage.Builder().message("message 1").build());
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds, 256, 0,
+                3 * messageSize, 1024 * 1024, 4096);
+        ClientInfo clientInfo = new ClientInfo.Builder().webSocketSession(null).clientId("offline").build();
+        WebSocketHandler.getTopicSubscriberMap().get("temperature").add(clientInfo);
+
+        for (int i = 1; i <= 5; i++) {
+            Message message = new Message();
+            message.setBody("message " + i);
+            message.setTopic("temperature");
+            WebSocketHandler.publish(message);
+        }
+
+        List<String> kept = new ArrayList<>();
+        WebSocketHandler
+                .forEachUnreceivedMessage((publishedMessage, clientIds) -> kept.add(publishedMessage.getMessage()));
+        assertEquals(Arrays.asList("message 3", "message 4", "message 5"), kept);
+        assertEquals(2, WebSocketHandler.getBacklogBudget().getEvictedMessages());
+        assertEquals(3 * messageSize, WebSocketHandler.getBacklogBudget().getClientBytes("offline"));
+    }
+
+    @Test
+    void testOldestUnreceivedMessagesAreEvictedWhenGlobalBudgetIsExceeded() throws Exception {
+        long messageSize = BacklogBudget.sizeOf(new PublishedMessage.Builder().message("message 1").build());
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds, 256,
+                2 * messageSize + 100, 0, 1024 * 1024, 4096);
+        for (String clientId : Arrays.asList("offline1", "offline2")) {
+            ClientInfo clientInfo = new ClientInfo.Builder().webSocketSession(null).clientId(clientId).build();
+            WebSocketHandler.getTopicSubscriberMap().get("temperature").add(clientInfo);
+        }
+
+        for (int i = 1; i <= 4; i++) {
+            Message message = new Message();
+            message.setBody("message " + i);
+            message.setTopic("temperature");
+            WebSocketHandler.publish(message);
+        }
+
+        List<String> kept = new ArrayList<>();
+        WebSocketHandler.forEachUnreceivedMessage((publishedMessage, clientIds) -> {
+            kept.add(publishedMessage.getMessage());
+            assertEquals(2, clientIds.size());
+        });
+        assertEquals(Arrays.asList("message 3", "message 4"), kept);
+        assertEquals(2, WebSocketHandler.getBacklogBudget().getEvictedMessages());
+        assertTrue(WebSocketHandler.getBacklogBudget().getTotalBytes() <= 2 * messageSize + 100);
+    }
+
+    @Test
+    void testEachMessageIsSentToOneGroupMemberInTurn() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+        List<FakeWebSocketSession> members = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            FakeWebSocketSession webSocketSession = new FakeWebSocketSession("worker" + i);
+            webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe-group/workers"));
+            members.add(webSocketSession);
+        }
+        FakeWebSocketSession subscriber = new FakeWebSocketSession("abcdefghi");
+        webSocketHandler.handleMessage(subscriber, new TextMessage("temperature/subscribe"));
+
+        for (int i = 1; i <= 6; i++) {
+            Message message = new Message();
+            message.setBody(i + " degrees");
+            message.setTopic("temperature");
+            WebSocketHandler.publish(message);
+        }
+
+        List<String> received = new ArrayList<>();
+        for (FakeWebSocketSession member : members) {
+            assertEquals(2, member.getMessages().size());
+            received.addAll(member.getMessages());
+        }
+        received.sort(null);
+        assertEquals(Arrays.asList("1 degrees", "2 degrees", "3 degrees", "4 degrees", "5 degrees", "6 degrees"),
+                received);
+        assertEquals(6, subscriber.getMessages().size());
+    }
+
+    @Test
+    void testGroupMessageIsSentToAnotherMemberWhenTheSendFails() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+        FakeWebSocketSession broken = new FakeWebSocketSession("worker1") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        FakeWebSocketSession working = new FakeWebSocketSession("worker2");
+        webSocketHandler.handleMessage(broken, new TextMessage("temperature/subscribe-group/workers"));
+        webSocketHandler.handleMessage(working, new TextMessage("temperature/subscribe-group/workers"));
+
+        for (int i = 1; i <= 4; i++) {
+            Message message = new Message();
+            message.setBody(i + " degrees");
+            message.setTopic("temperature");
+            WebSocketHandler.publish(message);
+        }
+
+        assertEquals(Arrays.asList("1 degrees", "2 degrees", "3 degrees", "4 degrees"), working.getMessages());
+        Thread.sleep(100);
+        List<String> keptFor = new ArrayList<>();
+        WebSocketHandler.forEachUnreceivedMessage((publishedMessage, clientIds) -> keptFor.addAll(clientIds));
+        assertFalse(keptFor.contains("worker1"));
+        webSocketHandler.afterConnectionClosed(broken, CloseStatus.NORMAL);
+        webSocketHandler.afterConnectionClosed(working, CloseStatus.NORMAL);
+    }
+
+    @Test
+    void testGroupIsRemovedWhenItsLastMemberLeaves() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+        FakeWebSocketSession first = new FakeWebSocketSession("worker1");
+        FakeWebSocketSession second = new FakeWebSocketSession("worker2");
+        webSocketHandler.handleMessage(first, new TextMessage("temperature/subscribe-group/workers"));
+        webSocketHandler.handleMessage(second, new TextMessage("temperature/subscribe-group/workers"));
+
+        webSocketHandler.handleMessage(first, new TextMessage("temperature/unsubscribe-group/workers"));
+        webSocketHandler.handleMessage(first, new TextMessage("temperature/unsubscribe-group/workers"));
+        assertEquals(WebSocketHandler.MESSAGE_NOT_SUBSCRIBED, first.getMessage());
+        assertEquals(1, WebSocketHandler.getTopicGroups().get("temperature").get("workers").getMembers().length);
+
+        webSocketHandler.afterConnectionClosed(second, CloseStatus.NORMAL);
+        assertTrue(WebSocketHandler.getTopicGroups().get("temperature").isEmpty());
+    }
+
+    @Test
+    void testMessageRepublishedWithSameIdempotencyKeyIsDeliveredOnce() throws Exception {
+        webSocketHandler = new WebSocketHandler(topics, houseKeepingThreadSleepDurationMilliseconds);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("abcdefghi");
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+        String idempotencyKey = "retried-" + System.nanoTime();
+
+        for (int i = 0; i < 3; i++) {
+            Message message = new Message();
+            message.setBody("32 degrees");
+            message.setTopic("temperature");
+            message.setIdempotencyKey(idempotencyKey);
+            WebSocketHandler.publish(message);
+        }
+
+        assertEquals(Arrays.asList("32 degrees"), webSocketSession.getMessages());
     }
 
 }
@@ -0,0 +1,144 @@
+package info.michaelmogessie.pubsubdemo.limits;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.handlers.BacklogBudget;
+import info.michaelmogessie.pubsubdemo.handlers.DispatchPools;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class LoadShedderTest {
+
+    @Test
+    void testPublishersAreTurnedAwayServiceWideWhileBacklogIsOverLimit() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        ClientInfo clientInfo = new ClientInfo.Builder().clientId("offline").build();
+        WebSocketHandler.getTopicSubscriberMap().get("temperature").add(clientInfo);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        LoadShedder loadShedder = new LoadShedder(0, 0, 1000, 2, meterRegistry);
+
+        loadShedder.check("topic1");
+        for (int i = 0; i < 10; i++) {
+            Message message = new Message();
+            message.setBody("message " + i);
+            message.setTopic("temperature");
+            WebSocketHandler.publish(message);
+        }
+        long backlogBytes = BacklogBudget.getCurrentBytes();
+        OverloadedException e = assertThrows(OverloadedException.class, () -> loadShedder.check("topic1"));
+
+        assertTrue(e.isServiceWide());
+        assertEquals((long) Math.ceil(2 * backlogBytes / 1000.0), e.getRetryAfterSeconds());
+        assertEquals(1, meterRegistry.get("pubsub.publish.shed").tag("signal", "backlog").counter().count());
+
+        // Topics that do not exist are not checked, so they cannot add meters.
+        loadShedder.check("random topic");
+        loadShedder.check(null);
+        assertEquals(1, meterRegistry.find("pubsub.publish.shed").counters().size());
+    }
+
+    @Test
+    void testPublishersAreTurnedAwayFromTopicWhileItsMessagesAreBeingSent() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FakeWebSocketSession slowSession = new FakeWebSocketSession("slow") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                sending.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.sendMessage(message);
+            }
+        };
+        new WebSocketHandler(Arrays.asList("topic1"), 10000).handleMessage(slowSession,
+                new TextMessage("temperature/subscribe"));
+        LoadShedder loadShedder = new LoadShedder(1, 0, 0, 1, new SimpleMeterRegistry());
+        Thread publisher = new Thread(() -> {
+            try {
+                Message message = new Message();
+                message.setBody("32 degrees");
+                message.setTopic("temperature");
+                WebSocketHandler.publish(message);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        publisher.start();
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        OverloadedException e = assertThrows(OverloadedException.class, () -> loadShedder.check("temperature"));
+        assertFalse(e.isServiceWide());
+        loadShedder.check("topic1");
+        release.countDown();
+        publisher.join();
+
+        loadShedder.check("temperature");
+        assertEquals(Arrays.asList("32 degrees"), slowSession.getMessages());
+    }
+
+    @Test
+    void testPublishesWaitingInADispatchPoolCountTowardsTheQueueDepth() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FakeWebSocketSession slowSession = new FakeWebSocketSession("slow") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                sending.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.sendMessage(message);
+            }
+        };
+        Map<String, List<String>> pools = new HashMap<>();
+        pools.put("tenantA", Arrays.asList("temperature"));
+        DispatchPools dispatchPools = new DispatchPools(pools, 1, 10, 0);
+        WebSocketHandler.setDispatchPools(dispatchPools);
+        try {
+            new WebSocketHandler(Arrays.asList("topic1"), 10000).handleMessage(slowSession,
+                    new TextMessage("temperature/subscribe"));
+            LoadShedder loadShedder = new LoadShedder(3, 0, 0, 1, new SimpleMeterRegistry());
+
+            for (int i = 0; i < 3; i++) {
+                Message message = new Message();
+                message.setBody(i + " degrees");
+                message.setTopic("temperature");
+                WebSocketHandler.publish(message);
+            }
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+            // One message is being sent and two wait for the pool's thread.
+            assertEquals(3, WebSocketHandler.getOutboundQueueDepth("temperature"));
+            assertThrows(OverloadedException.class, () -> loadShedder.check("temperature"));
+        } finally {
+            release.countDown();
+            dispatchPools.close();
+            WebSocketHandler.setDispatchPools(new DispatchPools(Collections.emptyMap(), 1, 1, 0));
+        }
+        assertEquals(0, WebSocketHandler.getOutboundQueueDepth("temperature"));
+    }
+}
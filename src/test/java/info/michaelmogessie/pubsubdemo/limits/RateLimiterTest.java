@@ -0,0 +1,101 @@
+package info.michaelmogessie.pubsubdemo.limits;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import info.michaelmogessie.pubsubdemo.excpetions.RateLimitExceededException;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class RateLimiterTest {
+
+    @Test
+    void testTokenBucketAllowsBurstThenRefillsAtRate() {
+        long start = 0;
+        TokenBucket tokenBucket = new TokenBucket(10, 3, start);
+
+        assertEquals(0, tokenBucket.tryAcquire(start));
+        assertEquals(0, tokenBucket.tryAcquire(start));
+        assertEquals(0, tokenBucket.tryAcquire(start));
+        assertEquals(100_000_000L, tokenBucket.tryAcquire(start));
+        assertEquals(0, tokenBucket.tryAcquire(start + 100_000_000L));
+        assertTrue(tokenBucket.isFull(start + 400_000_000L));
+    }
+
+    @Test
+    void testPublisherOverLimitIsThrottledAndCounted() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        RateLimiter rateLimiter = new RateLimiter(0, 0, 0.5, 2, "X-Publisher-Id", meterRegistry);
+
+        rateLimiter.acquire("topic1", "publisher1");
+        rateLimiter.acquire("topic1", "publisher1");
+        RateLimitExceededException e = assertThrows(RateLimitExceededException.class,
+                () -> rateLimiter.acquire("topic1", "publisher1"));
+        rateLimiter.acquire("topic1", "publisher2");
+
+        assertEquals(2, e.getRetryAfterSeconds());
+        assertEquals(1, meterRegistry.get("pubsub.publish.throttled").tag("scope", "publisher").counter().count());
+    }
+
+    @Test
+    void testTopicOverLimitIsThrottledForAllPublishers() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        RateLimiter rateLimiter = new RateLimiter(1, 1, 0, 0, "X-Publisher-Id", new SimpleMeterRegistry());
+
+        rateLimiter.acquire("topic1", "publisher1");
+        assertThrows(RateLimitExceededException.class, () -> rateLimiter.acquire("topic1", "publisher2"));
+        rateLimiter.acquire("unknown topic", "publisher2");
+        rateLimiter.acquire("unknown topic", "publisher2");
+    }
+
+    @Test
+    void testPublishTurnedAwayByTheTopicLimitDoesNotChargeThePublisher() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        RateLimiter rateLimiter = new RateLimiter(0.001, 1, 0.001, 2, "X-Publisher-Id", new SimpleMeterRegistry());
+
+        rateLimiter.acquire("topic1", "publisher1");
+        for (int i = 0; i < 5; i++) {
+            assertThrows(RateLimitExceededException.class, () -> rateLimiter.acquire("topic1", "publisher1"));
+        }
+        rateLimiter.acquire("temperature", "publisher1");
+    }
+
+    @Test
+    void testFullPublisherBucketsAreDiscardedOnceThereAreTooMany() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        RateLimiter rateLimiter = new RateLimiter(0, 0, 1, 1, "X-Publisher-Id", new SimpleMeterRegistry());
+
+        for (int i = 0; i <= 10001; i++) {
+            rateLimiter.acquire("topic1", "publisher" + i);
+        }
+        assertEquals(10002, rateLimiter.getPublisherBucketCount());
+        Thread.sleep(1100);
+        // The first publish after the cleanup interval finds all the buckets refilled
+        // and discards them.
+        rateLimiter.acquire("topic1", "publisher0");
+        assertEquals(1, rateLimiter.getPublisherBucketCount());
+    }
+
+    @Test
+    void testUnknownTopicsChargeNoBucketAndAreNotTagged() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        RateLimiter rateLimiter = new RateLimiter(0, 0, 0.5, 1, "X-Publisher-Id", meterRegistry);
+
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.acquire("random topic " + i, "publisher1");
+        }
+        rateLimiter.acquire(null, "publisher1");
+        rateLimiter.acquire("topic1", "publisher1");
+        assertThrows(RateLimitExceededException.class, () -> rateLimiter.acquire("topic1", "publisher1"));
+
+        assertEquals(1, meterRegistry.find("pubsub.publish.throttled").counters().size());
+        assertEquals(1, meterRegistry.get("pubsub.publish.throttled").tag("topic", "topic1").counter().count());
+    }
+}
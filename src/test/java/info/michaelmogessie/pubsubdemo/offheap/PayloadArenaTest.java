@@ -0,0 +1,56 @@
+package info.michaelmogessie.pubsubdemo.offheap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class PayloadArenaTest {
+
+    @Test
+    void testStoredPayloadIsReadBack() {
+        PayloadArena payloadArena = new PayloadArena(4096, 1024);
+        byte[] first = "32 degrees".getBytes(StandardCharsets.UTF_8);
+        byte[] second = new byte[300];
+        second[299] = 7;
+
+        long firstHandle = payloadArena.store(first);
+        long secondHandle = payloadArena.store(second);
+
+        assertArrayEquals(first, payloadArena.read(firstHandle, first.length));
+        assertArrayEquals(second, payloadArena.read(secondHandle, second.length));
+        assertEquals(PayloadArena.MIN_CHUNK_SIZE + 512, payloadArena.getUsedBytes());
+    }
+
+    @Test
+    void testFreedChunkIsReused() {
+        PayloadArena payloadArena = new PayloadArena(1024, 1024);
+        byte[] payload = new byte[100];
+        long handle = payloadArena.store(payload);
+        payloadArena.free(handle, payload.length);
+
+        assertEquals(handle, payloadArena.store(new byte[128]));
+        assertEquals(1024, payloadArena.getReservedBytes());
+    }
+
+    @Test
+    void testPayloadIsNotStoredWhenArenaIsFullOrPayloadIsLargerThanASlab() {
+        PayloadArena payloadArena = new PayloadArena(1024, 512);
+
+        assertEquals(PayloadArena.NONE, payloadArena.store(new byte[513]));
+        assertNotEquals(PayloadArena.NONE, payloadArena.store(new byte[512]));
+        assertNotEquals(PayloadArena.NONE, payloadArena.store(new byte[512]));
+        assertEquals(PayloadArena.NONE, payloadArena.store(new byte[1]));
+    }
+
+    @Test
+    void testNothingIsStoredWithoutCapacity() {
+        PayloadArena payloadArena = new PayloadArena(0, 1024);
+
+        assertEquals(PayloadArena.NONE, payloadArena.store(new byte[1]));
+        assertEquals(0, payloadArena.getReservedBytes());
+    }
+}
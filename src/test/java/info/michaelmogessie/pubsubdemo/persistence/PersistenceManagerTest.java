@@ -0,0 +1,193 @@
+package info.michaelmogessie.pubsubdemo.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.handlers.SubscriberList;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import info.michaelmogessie.pubsubdemo.pojos.ClientInfo;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+import info.michaelmogessie.pubsubdemo.pojos.PublishedMessage;
+import info.michaelmogessie.pubsubdemo.pojos.ScheduledMessage;
+import info.michaelmogessie.pubsubdemo.scheduling.ScheduledPublisher;
+
+public class PersistenceManagerTest {
+
+    private static final List<String> TOPICS = Arrays.asList("temperature");
+
+    @TempDir
+    Path directory;
+
+    private PersistenceManager persistenceManager;
+    private WebSocketHandler webSocketHandler;
+    private ScheduledPublisher scheduledPublisher;
+
+    @AfterEach
+    public void tearDown() {
+        if (persistenceManager != null) {
+            persistenceManager.close();
+            scheduledPublisher.close();
+        }
+        WebSocketHandler.setJournal(Journal.NONE);
+    }
+
+    /**
+     * Starts the handler and the persistence manager afresh, as after a restart of
+     * the service.
+     */
+    private void restart() throws IOException {
+        if (persistenceManager != null) {
+            persistenceManager.close();
+            scheduledPublisher.close();
+        }
+        WebSocketHandler.getUnreceivedMessages().clear();
+        webSocketHandler = new WebSocketHandler(TOPICS, 1000);
+        scheduledPublisher = new ScheduledPublisher(5, 60000, 0);
+        persistenceManager = new PersistenceManager(webSocketHandler, scheduledPublisher, true, directory.toString(),
+                60000, 100, false, 60000);
+        persistenceManager.recover();
+    }
+
+    @Test
+    void testWriteAheadLogIsReplayedUpToATornRecord() throws Exception {
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 1, false);
+        PublishedMessage publishedMessage = new PublishedMessage.Builder().message("32 degrees").build();
+        writeAheadLog.subscribed("client1", "temperature");
+        writeAheadLog.subscribed("client2", "temperature");
+        writeAheadLog.clientForgotten("client2");
+        writeAheadLog.messageAdded(publishedMessage);
+        writeAheadLog.messageQueued(publishedMessage, "client1");
+        writeAheadLog.close();
+        // A record that was only partly written when the process died.
+        Files.write(WriteAheadLog.getFile(directory, 1), new byte[] { 0, 0, 0, 42, 1, 2 },
+                StandardOpenOption.APPEND);
+
+        PersistedState state = new PersistedState();
+        long records = WriteAheadLog.replay(WriteAheadLog.getFile(directory, 1), state);
+
+        assertEquals(5, records);
+        assertEquals(Collections.singleton("client1"), state.getSubscriptions().keySet());
+        assertEquals("32 degrees", state.getMessages().get(publishedMessage.getId()).getMessage());
+        assertTrue(state.getPendingClients().get(publishedMessage.getId()).contains("client1"));
+    }
+
+    @Test
+    void testWriteAheadLogWithACorruptLengthIsReplayedUpToIt() throws Exception {
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 1, false);
+        writeAheadLog.subscribed("client1", "temperature");
+        writeAheadLog.close();
+        // A length far beyond the end of the file, which must not be allocated.
+        Files.write(WriteAheadLog.getFile(directory, 1), new byte[] { 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0,
+                1, 2, 3, 4, 5, 6 }, StandardOpenOption.APPEND);
+
+        PersistedState state = new PersistedState();
+        long records = WriteAheadLog.replay(WriteAheadLog.getFile(directory, 1), state);
+
+        assertEquals(1, records);
+        assertEquals(Collections.singleton("client1"), state.getSubscriptions().keySet());
+    }
+
+    @Test
+    void testSnapshotIsReadBackAsWritten() throws Exception {
+        PersistedState state = new PersistedState();
+        PublishedMessage publishedMessage = new PublishedMessage.Builder().message("32 degrees").ttl(5000).build();
+        state.subscribe("client1", "temperature");
+        state.addMessage(publishedMessage);
+        state.queueMessage(publishedMessage.getId(), "client1");
+        ScheduledMessage scheduledMessage = new ScheduledMessage.Builder().topic("temperature")
+                .payload("33 degrees".getBytes(StandardCharsets.UTF_8)).idempotencyKey("key").deliverAt(1234).build();
+        state.scheduleMessage(scheduledMessage);
+        SnapshotFile.write(directory, 3, state);
+
+        PersistedState readState = new PersistedState();
+        SnapshotFile.read(SnapshotFile.getFile(directory, 3), readState);
+
+        assertEquals(state.getSubscriptions(), readState.getSubscriptions());
+        PublishedMessage readMessage = readState.getMessages().get(publishedMessage.getId());
+        assertEquals(publishedMessage.getCreatedTimestamp(), readMessage.getCreatedTimestamp());
+        assertEquals(5000, readMessage.getTtl());
+        assertEquals(state.getPendingClients(), readState.getPendingClients());
+        ScheduledMessage readScheduledMessage = readState.getScheduledMessages().get(scheduledMessage.getId());
+        assertEquals("temperature", readScheduledMessage.getTopic());
+        assertEquals("key", readScheduledMessage.getIdempotencyKey());
+        assertEquals(1234, readScheduledMessage.getDeliverAt());
+        assertEquals("33 degrees", new String(readScheduledMessage.getPayload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testSubscriptionsAndUnreceivedMessagesSurviveARestart() throws Exception {
+        restart();
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("client1");
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+
+        persistenceManager.stop();
+        webSocketHandler.afterConnectionClosed(webSocketSession, CloseStatus.GOING_AWAY);
+        restart();
+
+        ClientInfo dormantClientInfo = new ClientInfo.Builder().clientId("client1").build();
+        assertTrue(WebSocketHandler.getTopicSubscriberMap().get("temperature").contains(dormantClientInfo));
+
+        Message message = new Message();
+        message.setBody("32 degrees");
+        message.setTopic("temperature");
+        WebSocketHandler.publish(message);
+        // The message is still waiting for the client after another restart.
+        restart();
+
+        FakeWebSocketSession reconnectedSession = new FakeWebSocketSession("client2", "clientId=client1");
+        webSocketHandler.afterConnectionEstablished(reconnectedSession);
+
+        assertEquals("32 degrees", reconnectedSession.getMessage());
+        SubscriberList subscribers = WebSocketHandler.getTopicSubscriberMap().get("temperature");
+        assertFalse(subscribers.contains(dormantClientInfo));
+        assertEquals(reconnectedSession, subscribers.snapshot()[0].getWebSocketSession());
+    }
+
+    @Test
+    void testClientThatDisconnectsIsForgottenAfterARestart() throws Exception {
+        restart();
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("client1");
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+        webSocketHandler.afterConnectionClosed(webSocketSession, CloseStatus.NORMAL);
+        restart();
+
+        assertTrue(WebSocketHandler.getTopicSubscriberMap().get("temperature").snapshot().length == 0);
+    }
+
+    @Test
+    void testScheduledMessageSurvivesARestartAndIsPublishedOnce() throws Exception {
+        restart();
+        scheduledPublisher.schedule("temperature", "32 degrees".getBytes(StandardCharsets.UTF_8), null,
+                System.currentTimeMillis() + 300);
+        restart();
+        assertEquals(1, scheduledPublisher.getPending());
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("client1");
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduledPublisher.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(Arrays.asList("32 degrees"), webSocketSession.getMessages());
+        // It is not published again after another restart.
+        restart();
+        assertEquals(0, scheduledPublisher.getPending());
+    }
+}
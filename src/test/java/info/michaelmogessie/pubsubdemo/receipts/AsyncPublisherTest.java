@@ -0,0 +1,140 @@
+package info.michaelmogessie.pubsubdemo.receipts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.excpetions.TopicNotFoundException;
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.handlers.ParallelFanOut;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+
+public class AsyncPublisherTest {
+    private final ReceiptStore receiptStore = new ReceiptStore(100, 60000);
+    private AsyncPublisher asyncPublisher = new AsyncPublisher(receiptStore, 2, 100);
+    // Holds up the sends to the stuck subscriber until it is opened.
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        gate.countDown();
+        asyncPublisher.close();
+    }
+
+    @Test
+    void testReceiptCountsSentFailedAndOfflineSubscribers() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        FakeWebSocketSession subscriber = new FakeWebSocketSession("client1");
+        webSocketHandler.handleMessage(subscriber, new TextMessage("temperature/subscribe"));
+        FakeWebSocketSession broken = new FakeWebSocketSession("client2") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        webSocketHandler.handleMessage(broken, new TextMessage("temperature/subscribe"));
+        WebSocketHandler.restoreSubscription("client3", "temperature", System.currentTimeMillis() + 60000);
+
+        DeliveryReceipt receipt = asyncPublisher.publish("temperature", bytes("32 degrees"), null);
+        waitUntilPublished(receipt);
+
+        assertEquals(DeliveryReceipt.Status.PUBLISHED, receipt.getStatus());
+        assertEquals(3, receipt.getTargeted());
+        assertEquals(1, receipt.getSent());
+        assertEquals(1, receipt.getFailed());
+        assertEquals(1, receipt.getQueuedOffline());
+        assertEquals(Arrays.asList("32 degrees"), subscriber.getMessages());
+    }
+
+    @Test
+    void testDuplicateIsRecordedOnItsReceipt() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        DeliveryReceipt first = asyncPublisher.publish("temperature", bytes("32 degrees"), "async-key");
+        DeliveryReceipt second = asyncPublisher.publish("temperature", bytes("32 degrees"), "async-key");
+        waitUntilPublished(first);
+        waitUntilPublished(second);
+
+        assertEquals(DeliveryReceipt.Status.PUBLISHED, first.getStatus());
+        assertEquals(DeliveryReceipt.Status.DUPLICATE, second.getStatus());
+        assertThrows(TopicNotFoundException.class, () -> asyncPublisher.publish("pressure", bytes("1"), null));
+    }
+
+    @Test
+    void testPublishThatFailsIsMarkedOnItsReceiptAndMayBeRetried() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        FakeWebSocketSession subscriber = new FakeWebSocketSession("client1");
+        webSocketHandler.handleMessage(subscriber, new TextMessage("temperature/subscribe"));
+        String idempotencyKey = "failing-" + System.nanoTime();
+        // A fan-out whose threads have stopped, as while the service shuts down, turns
+        // the message away with an unexpected exception.
+        ParallelFanOut stopped = new ParallelFanOut(1, 2);
+        WebSocketHandler.setParallelFanOut(stopped);
+        try {
+            WebSocketHandler.publish("temperature", bytes("31 degrees"), null);
+            stopped.close();
+            DeliveryReceipt failed = asyncPublisher.publish("temperature", bytes("32 degrees"), idempotencyKey);
+            waitUntilPublished(failed);
+            assertEquals(DeliveryReceipt.Status.FAILED, failed.getStatus());
+        } finally {
+            WebSocketHandler.setParallelFanOut(new ParallelFanOut(0, 1));
+        }
+
+        DeliveryReceipt retried = asyncPublisher.publish("temperature", bytes("32 degrees"), idempotencyKey);
+        waitUntilPublished(retried);
+
+        assertEquals(DeliveryReceipt.Status.PUBLISHED, retried.getStatus());
+        assertEquals(Arrays.asList("31 degrees", "32 degrees"), subscriber.getMessages());
+    }
+
+    @Test
+    void testPublishIsTurnedAwayWhenLaneQueueIsFull() throws Exception {
+        asyncPublisher.close();
+        asyncPublisher = new AsyncPublisher(receiptStore, 1, 1);
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        CountDownLatch stuck = new CountDownLatch(1);
+        FakeWebSocketSession subscriber = new FakeWebSocketSession("stuck") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                super.sendMessage(message);
+                stuck.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        webSocketHandler.handleMessage(subscriber, new TextMessage("temperature/subscribe"));
+
+        asyncPublisher.publish("temperature", bytes("1 degrees"), null);
+        assertTrue(stuck.await(5, TimeUnit.SECONDS));
+        asyncPublisher.publish("temperature", bytes("2 degrees"), null);
+        OverloadedException e = assertThrows(OverloadedException.class,
+                () -> asyncPublisher.publish("temperature", bytes("3 degrees"), null));
+        assertTrue(e.isServiceWide());
+        assertEquals(2, receiptStore.size());
+    }
+
+    private static void waitUntilPublished(DeliveryReceipt receipt) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (receipt.getStatus() == DeliveryReceipt.Status.ACCEPTED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
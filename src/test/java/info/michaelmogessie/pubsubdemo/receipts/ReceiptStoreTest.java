@@ -0,0 +1,46 @@
+package info.michaelmogessie.pubsubdemo.receipts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+public class ReceiptStoreTest {
+
+    @Test
+    void testOldestReceiptIsDroppedWhenFull() {
+        ReceiptStore receiptStore = new ReceiptStore(2, 60000);
+        DeliveryReceipt first = receiptStore.create("temperature");
+        DeliveryReceipt second = receiptStore.create("temperature");
+        DeliveryReceipt third = receiptStore.create("temperature");
+
+        assertNull(receiptStore.get(first.getId()));
+        assertSame(second, receiptStore.get(second.getId()));
+        assertSame(third, receiptStore.get(third.getId()));
+        assertEquals(2, receiptStore.size());
+    }
+
+    @Test
+    void testReceiptsExpire() throws InterruptedException {
+        ReceiptStore receiptStore = new ReceiptStore(10, 50);
+        DeliveryReceipt receipt = receiptStore.create("temperature");
+        assertSame(receipt, receiptStore.get(receipt.getId()));
+
+        Thread.sleep(100);
+        assertNull(receiptStore.get(receipt.getId()));
+        // Expired receipts are dropped when the next one is added.
+        receiptStore.create("temperature");
+        assertEquals(1, receiptStore.size());
+    }
+
+    @Test
+    void testUnknownOrRemovedReceiptIsNotFound() {
+        ReceiptStore receiptStore = new ReceiptStore(10, 60000);
+        DeliveryReceipt receipt = receiptStore.create("temperature");
+        assertNull(receiptStore.get(receipt.getId() + 1));
+
+        receiptStore.remove(receipt.getId());
+        assertNull(receiptStore.get(receipt.getId()));
+    }
+}
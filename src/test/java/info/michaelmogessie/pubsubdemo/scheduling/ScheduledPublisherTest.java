@@ -0,0 +1,110 @@
+package info.michaelmogessie.pubsubdemo.scheduling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+
+import info.michaelmogessie.pubsubdemo.excpetions.OverloadedException;
+import info.michaelmogessie.pubsubdemo.excpetions.TopicNotFoundException;
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.handlers.ParallelFanOut;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import info.michaelmogessie.pubsubdemo.pojos.ScheduledMessage;
+
+public class ScheduledPublisherTest {
+    private final ScheduledPublisher scheduledPublisher = new ScheduledPublisher(5, 60000, 20);
+
+    @AfterEach
+    void tearDown() {
+        scheduledPublisher.close();
+    }
+
+    @Test
+    void testMessageIsPublishedWhenDueAndNotBefore() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("client1");
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+
+        long deliverAt = System.currentTimeMillis() + 200;
+        scheduledPublisher.schedule("temperature", bytes("32 degrees"), null, deliverAt);
+        assertEquals(Collections.emptyList(), webSocketSession.getMessages());
+        assertEquals(1, scheduledPublisher.getPending());
+
+        waitUntilPublished();
+        assertTrue(System.currentTimeMillis() >= deliverAt);
+        assertEquals(Arrays.asList("32 degrees"), webSocketSession.getMessages());
+        assertEquals(0, scheduledPublisher.getPendingBytes());
+    }
+
+    @Test
+    void testMessagesOverTheBudgetOrTooFarAheadAreTurnedAway() throws Exception {
+        new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        long deliverAt = System.currentTimeMillis() + 10000;
+        scheduledPublisher.schedule("temperature", bytes("32 degrees"), null, deliverAt);
+
+        OverloadedException e = assertThrows(OverloadedException.class,
+                () -> scheduledPublisher.schedule("temperature", bytes("33 degrees!"), null, deliverAt));
+        assertTrue(e.isServiceWide());
+        assertThrows(IllegalArgumentException.class, () -> scheduledPublisher.schedule("temperature",
+                bytes("1"), null, System.currentTimeMillis() + 120000));
+        assertThrows(TopicNotFoundException.class,
+                () -> scheduledPublisher.schedule("pressure", bytes("1"), null, deliverAt));
+        assertEquals(1, scheduledPublisher.getPending());
+    }
+
+    @Test
+    void testRestoredMessageThatIsOverdueIsPublishedRightAway() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("client1");
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+
+        // Restored messages are taken whatever the budget.
+        scheduledPublisher.restore(new ScheduledMessage.Builder().restore(42).topic("temperature")
+                .payload(bytes("32 degrees, a while ago")).deliverAt(System.currentTimeMillis() - 1000).build());
+
+        waitUntilPublished();
+        assertEquals(Arrays.asList("32 degrees, a while ago"), webSocketSession.getMessages());
+    }
+
+    @Test
+    void testMessageWhosePublishingFailsIsDroppedAndItsBytesReleased() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(Arrays.asList("topic1"), 10000);
+        FakeWebSocketSession webSocketSession = new FakeWebSocketSession("client1");
+        webSocketHandler.handleMessage(webSocketSession, new TextMessage("temperature/subscribe"));
+        // A fan-out whose threads have stopped, as while the service shuts down, makes
+        // publishing fail with an unexpected exception.
+        ParallelFanOut stopped = new ParallelFanOut(1, 2);
+        WebSocketHandler.setParallelFanOut(stopped);
+        try {
+            WebSocketHandler.publish("temperature", bytes("31 degrees"), null);
+            stopped.close();
+            scheduledPublisher.schedule("temperature", bytes("32 degrees"), null, System.currentTimeMillis());
+
+            waitUntilPublished();
+        } finally {
+            WebSocketHandler.setParallelFanOut(new ParallelFanOut(0, 1));
+        }
+        assertEquals(0, scheduledPublisher.getPending());
+        assertEquals(0, scheduledPublisher.getPendingBytes());
+        assertEquals(Arrays.asList("31 degrees"), webSocketSession.getMessages());
+    }
+
+    private void waitUntilPublished() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduledPublisher.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
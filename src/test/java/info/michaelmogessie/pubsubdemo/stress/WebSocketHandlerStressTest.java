@@ -0,0 +1,338 @@
+package info.michaelmogessie.pubsubdemo.stress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import info.michaelmogessie.pubsubdemo.fakes.FakeWebSocketSession;
+import info.michaelmogessie.pubsubdemo.handlers.WebSocketHandler;
+import info.michaelmogessie.pubsubdemo.pojos.Message;
+
+/**
+ * Hammers the subscriber handler's shared state from many threads at once:
+ * publishers, subscribers whose sends fail and stall at random, clients that
+ * reconnect to collect their unreceived messages while others are published,
+ * clients that connect, join a group and disconnect while messages are sent to
+ * them, and the housekeeping thread. Every message must reach every steady
+ * subscriber exactly once, live or after reconnecting, no thread may throw, and
+ * the heap must not keep growing.
+ *
+ * The test runs in rounds of a few seconds. After each round the publishers
+ * stop, the steady subscribers collect what they are owed and the deliveries
+ * are checked, so a long run needs no more memory than a short one. It runs for
+ * stress.duration.seconds, a few seconds by default; the soak profile (mvn
+ * -Psoak test) runs it for half an hour, or as long as -Dstress.duration.seconds
+ * says, and compares the heap after each round with the heap after the first.
+ */
+public class WebSocketHandlerStressTest {
+    private static final long DURATION_SECONDS = Long.getLong("stress.duration.seconds", 3);
+    private static final long ROUND_SECONDS = 5;
+    private static final long HEAP_GROWTH_BYTES = Long.getLong("stress.heap.growth.bytes", 128L * 1024 * 1024);
+    private static final List<String> TOPICS = Arrays.asList("topic1", "topic2", "topic3");
+    private static final int PUBLISHERS = 4;
+    // How many messages each publisher publishes in a round at most.
+    private static final int MESSAGES_PER_ROUND = 20000;
+    private static final int STEADY_SUBSCRIBERS = 16;
+    private static final int CHURNERS = 4;
+    // Out of 1000 sends.
+    private static final int FAILURES_PER_MILLE = 50;
+    private static final int STALLS_PER_MILLE = 5;
+
+    private final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private volatile boolean roundRunning;
+    private volatile int round;
+    private Thread.UncaughtExceptionHandler defaultHandler;
+    private Level handlerLogLevel;
+
+    @BeforeEach
+    void setUp() {
+        // The handler's background threads report uncaught errors here.
+        defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> errors.add(e));
+        // Failed sends are logged, which would flood the output.
+        Logger handlerLogger = (Logger) LoggerFactory.getLogger(WebSocketHandler.class);
+        handlerLogLevel = handlerLogger.getLevel();
+        handlerLogger.setLevel(Level.OFF);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        ((Logger) LoggerFactory.getLogger(WebSocketHandler.class)).setLevel(handlerLogLevel);
+    }
+
+    @Test
+    void testNoMessageIsLostOrDuplicatedUnderConcurrentChurn() throws Exception {
+        WebSocketHandler webSocketHandler = new WebSocketHandler(TOPICS, 5);
+        Thread housekeeping = new Thread(webSocketHandler, "housekeeping");
+        housekeeping.setDaemon(true);
+        housekeeping.start();
+
+        // How many times each steady subscriber has been sent each message of the
+        // round, on any of its sessions.
+        AtomicIntegerArray[] received = new AtomicIntegerArray[STEADY_SUBSCRIBERS];
+        for (int i = 0; i < STEADY_SUBSCRIBERS; i++) {
+            received[i] = new AtomicIntegerArray(PUBLISHERS * MESSAGES_PER_ROUND);
+            FakeWebSocketSession session = new UnreliableSession(steadyId(i), received[i], true);
+            webSocketHandler.afterConnectionEstablished(session);
+            for (String topic : TOPICS) {
+                webSocketHandler.handleMessage(session, new TextMessage(topic + "/subscribe"));
+            }
+        }
+        int[] published = new int[PUBLISHERS];
+        // The workers and the test thread meet here at the start and the end of each
+        // round.
+        int workers = PUBLISHERS + 1 + CHURNERS;
+        CyclicBarrier roundStarted = new CyclicBarrier(workers + 1);
+        CyclicBarrier roundEnded = new CyclicBarrier(workers + 1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < PUBLISHERS; p++) {
+            int publisher = p;
+            threads.add(worker("publisher" + p, roundStarted, roundEnded, () -> {
+                int sequence = 0;
+                while (roundRunning && sequence < MESSAGES_PER_ROUND) {
+                    Message message = new Message();
+                    message.setTopic(TOPICS.get(sequence % TOPICS.size()));
+                    message.setBody(round + ":" + publisher + ":" + sequence++);
+                    WebSocketHandler.publish(message);
+                }
+                published[publisher] = sequence;
+            }));
+        }
+        threads.add(worker("reconnector", roundStarted, roundEnded, () -> {
+            while (roundRunning) {
+                int i = ThreadLocalRandom.current().nextInt(STEADY_SUBSCRIBERS);
+                reconnect(webSocketHandler, i, received[i], true);
+            }
+        }));
+        for (int c = 0; c < CHURNERS; c++) {
+            String churner = "churner" + c;
+            threads.add(worker(churner, roundStarted, roundEnded, () -> {
+                while (roundRunning) {
+                    FakeWebSocketSession session = new UnreliableSession(churner + "-" + System.nanoTime(), null,
+                            true);
+                    webSocketHandler.afterConnectionEstablished(session);
+                    webSocketHandler.handleMessage(session, new TextMessage(
+                            "topic1/subscribe;topic2/subscribe;topic3/subscribe-group/" + churner));
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                    webSocketHandler.afterConnectionClosed(session, CloseStatus.GOING_AWAY);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+
+        long rounds = Math.max(1, (DURATION_SECONDS + ROUND_SECONDS - 1) / ROUND_SECONDS);
+        long roundMillis = TimeUnit.SECONDS.toMillis(Math.min(DURATION_SECONDS, ROUND_SECONDS));
+        long firstHeap = 0;
+        try {
+            for (round = 0; round < rounds; round++) {
+                roundRunning = true;
+                roundStarted.await(30, TimeUnit.SECONDS);
+                long roundEnd = System.currentTimeMillis() + roundMillis;
+                while (System.currentTimeMillis() < roundEnd && errors.isEmpty()) {
+                    Thread.sleep(10);
+                }
+                roundRunning = false;
+                roundEnded.await(30, TimeUnit.SECONDS);
+                if (!errors.isEmpty()) {
+                    fail("Concurrent use of the handler threw", errors.peek());
+                }
+                assertTrue(Arrays.stream(published).sum() > 0, "Nothing was published in round " + round);
+                collectUnreceivedMessages(webSocketHandler, received, published);
+                assertDeliveredOnce(received, published);
+                for (AtomicIntegerArray counts : received) {
+                    for (int j = 0; j < counts.length(); j++) {
+                        counts.set(j, 0);
+                    }
+                }
+                System.gc();
+                long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                if (round == 0) {
+                    firstHeap = heap;
+                } else {
+                    assertTrue(heap - firstHeap <= HEAP_GROWTH_BYTES,
+                            "Heap grew from " + firstHeap + " to " + heap + " bytes by round " + round);
+                }
+            }
+        } finally {
+            stopped.set(true);
+            roundRunning = false;
+            threads.forEach(Thread::interrupt);
+            housekeeping.interrupt();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            assertFalse(thread.isAlive(), thread.getName() + " did not stop");
+        }
+        assertTrue(errors.isEmpty(), () -> "Concurrent use of the handler threw " + errors);
+    }
+
+    /**
+     * Reconnects the steady subscribers over sessions that do not fail until they
+     * have been sent every message of the round. Messages whose sends failed are
+     * kept by background threads, so this keeps trying for a while before it
+     * gives up on them.
+     */
+    private void collectUnreceivedMessages(WebSocketHandler webSocketHandler, AtomicIntegerArray[] received,
+            int[] published) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        boolean complete = false;
+        while (!complete && System.currentTimeMillis() < deadline) {
+            complete = true;
+            for (int i = 0; i < STEADY_SUBSCRIBERS; i++) {
+                reconnect(webSocketHandler, i, received[i], false);
+                complete &= missing(received[i], published) == 0;
+            }
+            if (!complete) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private void assertDeliveredOnce(AtomicIntegerArray[] received, int[] published) {
+        for (int i = 0; i < STEADY_SUBSCRIBERS; i++) {
+            int duplicated = 0;
+            int unpublished = 0;
+            for (int p = 0; p < PUBLISHERS; p++) {
+                for (int sequence = 0; sequence < MESSAGES_PER_ROUND; sequence++) {
+                    int count = received[i].get(p * MESSAGES_PER_ROUND + sequence);
+                    if (count > 1) {
+                        duplicated++;
+                    } else if (count > 0 && sequence >= published[p]) {
+                        unpublished++;
+                    }
+                }
+            }
+            String subscriber = steadyId(i) + " in round " + round;
+            assertEquals(0, missing(received[i], published), subscriber + " lost messages");
+            assertEquals(0, duplicated, subscriber + " was sent messages more than once");
+            assertEquals(0, unpublished, subscriber + " was sent messages nobody published");
+        }
+    }
+
+    private static int missing(AtomicIntegerArray counts, int[] published) {
+        int missing = 0;
+        for (int p = 0; p < PUBLISHERS; p++) {
+            for (int sequence = 0; sequence < published[p]; sequence++) {
+                if (counts.get(p * MESSAGES_PER_ROUND + sequence) == 0) {
+                    missing++;
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Opens a new session for a steady subscriber, which is sent the subscriber's
+     * unreceived messages, and closes it again.
+     */
+    private void reconnect(WebSocketHandler webSocketHandler, int subscriber, AtomicIntegerArray counts,
+            boolean stalling) throws Exception {
+        FakeWebSocketSession session = new UnreliableSession(steadyId(subscriber) + "-" + System.nanoTime(),
+                "clientId=" + steadyId(subscriber), counts, false, stalling);
+        webSocketHandler.afterConnectionEstablished(session);
+        webSocketHandler.afterConnectionClosed(session, CloseStatus.NORMAL);
+    }
+
+    private static String steadyId(int subscriber) {
+        return "steady" + subscriber;
+    }
+
+    private Thread worker(String name, CyclicBarrier roundStarted, CyclicBarrier roundEnded, Work work) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (!stopped.get()) {
+                    roundStarted.await();
+                    try {
+                        work.run();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                    roundEnded.await();
+                }
+            } catch (Exception e) {
+                // Interrupted or the barrier broke because the test is over.
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private interface Work {
+        void run() throws Exception;
+    }
+
+    /**
+     * A session whose sends fail or stall at random. The messages it was sent are
+     * counted by publisher and sequence number, in counts shared by all the
+     * sessions of the same client, or not at all if there are no counts.
+     */
+    private class UnreliableSession extends FakeWebSocketSession {
+        private final AtomicIntegerArray counts;
+        private final boolean failing;
+        private final boolean stalling;
+
+        UnreliableSession(String id, AtomicIntegerArray counts, boolean failing) {
+            this(id, "clientId=" + id, counts, failing, failing);
+        }
+
+        UnreliableSession(String id, String query, AtomicIntegerArray counts, boolean failing, boolean stalling) {
+            super(id, query);
+            this.counts = counts;
+            this.failing = failing;
+            this.stalling = stalling;
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            int roll = ThreadLocalRandom.current().nextInt(1000);
+            if (failing && roll < FAILURES_PER_MILLE) {
+                throw new IOException("Connection reset");
+            }
+            if (stalling && roll >= 1000 - STALLS_PER_MILLE) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (counts == null) {
+                return;
+            }
+            // Bodies are round:publisher:sequence. Every message of an earlier round has
+            // been sent already, so getting one again is a duplicate.
+            String[] body = message.getPayload().toString().split(":");
+            if (Integer.parseInt(body[0]) != round) {
+                errors.add(new AssertionError(getId() + " was sent " + message.getPayload() + " in round " + round));
+                return;
+            }
+            counts.incrementAndGet(Integer.parseInt(body[1]) * MESSAGES_PER_ROUND + Integer.parseInt(body[2]));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package info.michaelmogessie.pubsubdemo.timers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class HashedWheelTimerTest {
+    private HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 8);
+
+    @AfterEach
+    void stopTimer() {
+        timer.stop();
+    }
+
+    @Test
+    void testTasksRunInTheOrderTheyAreDue() throws Exception {
+        List<Integer> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+
+        timer.schedule(() -> {
+            ran.add(3);
+            done.countDown();
+        }, 60, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> {
+            ran.add(1);
+            done.countDown();
+        }, 0, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> {
+            ran.add(2);
+            done.countDown();
+        }, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2, 3), ran);
+        assertEquals(0, timer.getPending());
+    }
+
+    @Test
+    void testTaskDueAfterSeveralTurnsOfTheWheelDoesNotRunEarly() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        long scheduled = System.nanoTime();
+        long[] ranAfter = new long[1];
+
+        // A turn of the wheel takes 8 ticks of 5 ms.
+        timer.schedule(() -> {
+            ranAfter[0] = System.nanoTime() - scheduled;
+            done.countDown();
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAfter[0] >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    void testCancelledTaskDoesNotRun() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        CountDownLatch later = new CountDownLatch(1);
+
+        HashedWheelTimer.Timeout timeout = timer.schedule(ran::countDown, 20, TimeUnit.MILLISECONDS);
+        timer.schedule(later::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertEquals(1, timer.getPending());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.await(0, TimeUnit.MILLISECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    void testStoppedTimerDoesNotTakeTasks() {
+        timer.stop();
+
+        assertThrows(IllegalStateException.class, () -> timer.schedule(() -> {
+        }, 0, TimeUnit.MILLISECONDS));
+    }
+}